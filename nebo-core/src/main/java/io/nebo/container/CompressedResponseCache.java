@@ -0,0 +1,106 @@
+package io.nebo.container;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.Weigher;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+
+/**
+ * Compressed response bodies, shared by all connections and evicted least recently used first once they take more
+ * than the configured number of bytes. Entries are looked up by encoding and by the body before compression, so a
+ * body that has changed is never answered with the compression of an older one.
+ */
+public class CompressedResponseCache {
+    private final Cache<Key, byte[]> cache;
+
+    public CompressedResponseCache(long maxBytes) {
+        this.cache = CacheBuilder.newBuilder()
+                .maximumWeight(maxBytes)
+                .weigher(new Weigher<Key, byte[]>() {
+                    @Override
+                    public int weigh(Key key, byte[] compressed) {
+                        return key.content.readableBytes() + compressed.length;
+                    }
+                })
+                .build();
+    }
+
+    /**
+     * @return the body compressed with {@code encoding}, or {@code null}
+     */
+    public byte[] get(String encoding, ByteBuf content) {
+        return cache.getIfPresent(new Key(encoding, content));
+    }
+
+    public void put(String encoding, ByteBuf content, byte[] compressed) {
+        byte[] copy = new byte[content.readableBytes()];
+        content.getBytes(content.readerIndex(), copy);
+        cache.put(new Key(encoding, Unpooled.wrappedBuffer(copy)), compressed);
+    }
+
+    public long size() {
+        return cache.size();
+    }
+
+    private static final class Key {
+        private final String encoding;
+        private final ByteBuf content;
+        private final int hash;
+
+        Key(String encoding, ByteBuf content) {
+            this.encoding = encoding;
+            this.content = content;
+            this.hash = 31 * encoding.hashCode() + hash(content);
+        }
+
+        // A long at a time, ByteBufUtil's hashCode and equals go an int or a byte at a time
+        private static int hash(ByteBuf content) {
+            int index = content.readerIndex();
+            int end = content.writerIndex();
+            long hash = 1;
+            for (; index + 8 <= end; index += 8) {
+                hash = 31 * hash + content.getLong(index);
+            }
+            for (; index < end; index++) {
+                hash = 31 * hash + content.getByte(index);
+            }
+            return (int) (hash ^ (hash >>> 32));
+        }
+
+        private static boolean contentEquals(ByteBuf a, ByteBuf b) {
+            int length = a.readableBytes();
+            if (length != b.readableBytes()) {
+                return false;
+            }
+            int aIndex = a.readerIndex();
+            int bIndex = b.readerIndex();
+            int end = aIndex + length;
+            for (; aIndex + 8 <= end; aIndex += 8, bIndex += 8) {
+                if (a.getLong(aIndex) != b.getLong(bIndex)) {
+                    return false;
+                }
+            }
+            for (; aIndex < end; aIndex++, bIndex++) {
+                if (a.getByte(aIndex) != b.getByte(bIndex)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return hash == other.hash && encoding.equals(other.encoding) && contentEquals(content, other.content);
+        }
+    }
+}
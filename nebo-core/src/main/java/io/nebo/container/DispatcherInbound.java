@@ -2,88 +2,169 @@ package io.nebo.container;
 
 
 
+import io.nebo.hessian.HessianHttpHandler;
+import io.nebo.hessian.HessianServiceRegistry;
+import io.nebo.protocol.ProtocolDetector;
 import io.nebo.protocol.ProtocolRouter;
-import io.nebo.protocol.ProtocolRouterFactory;
+import io.nebo.protocol.ProtocolSignature;
+import io.nebo.thrift.ThriftHttpHandler;
+import io.nebo.thrift.ThriftProtocolRouter;
 import io.netty.buffer.ByteBuf;
 import io.netty.channel.ChannelHandlerContext;
-import io.netty.channel.ChannelInboundHandlerAdapter;
 import io.netty.channel.ChannelPipeline;
-import io.netty.handler.codec.http.HttpObjectAggregator;
+import io.netty.handler.codec.ByteToMessageDecoder;
 import io.netty.handler.codec.http.HttpServerCodec;
 import io.netty.handler.stream.ChunkedWriteHandler;
-import io.netty.util.concurrent.DefaultEventExecutorGroup;
+import io.netty.util.concurrent.ScheduledFuture;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import java.net.InetSocketAddress;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Created by pengbo on 2016/6/28.
+ * <p/>
+ * Sniffs the protocol of a new connection and replaces itself with the matching pipeline. Bytes are cumulated until
+ * the {@link ProtocolDetector} can decide; connections that match no signature, match a protocol no router accepts, or
+ * don't send enough bytes before the detection deadline are closed. HTTP connections also serve Thrift calls posted
+ * to {@link ThriftHttpHandler#PATH} when the {@link ThriftProtocolRouter} is registered, and answer Hessian calls with
+ * a {@link HessianHttpHandler} before they reach the servlets. Requests on a connection are answered one at a time, in
+ * order, see {@link HttpPipeliningHandler}. Their responses are compressed by a
+ * {@link HttpResponseCompressor} when {@link ResponseCompressionConfig compression} is enabled.
  */
-public class DispatcherInbound extends ChannelInboundHandlerAdapter {
+public class DispatcherInbound extends ByteToMessageDecoder {
 
     private static final Logger log = LoggerFactory.getLogger(DispatcherInbound.class);
     private final InetSocketAddress address;
     private final NettyEmbeddedContext context;
     private final RequestDispatcherHandler requestDispatcherHandler;
-    private List<ProtocolRouter> protocolRouterList = ProtocolRouterFactory.loadAllProtocolRouter();
-    private static  int MAX_CONTENT_LENGTH = 65536;
-    private static  int THREAD_SIZE = 50;
+    private final List<ProtocolRouter> protocolRouterList;
+    private final RequestContentConfig contentConfig;
+    private final ProtocolDetector protocolDetector;
+    private final ResponseCompressionConfig compressionConfig;
+    private final CompressedResponseCache compressedResponseCache;
+    private ScheduledFuture<?> detectionTimeout;
 
-    public DispatcherInbound(InetSocketAddress address, NettyEmbeddedContext context) {
+    public DispatcherInbound(InetSocketAddress address, NettyEmbeddedContext context, RequestDispatcherHandler requestDispatcherHandler,
+                             RequestContentConfig contentConfig, List<ProtocolRouter> protocolRouterList,
+                             ProtocolDetector protocolDetector, ResponseCompressionConfig compressionConfig,
+                             CompressedResponseCache compressedResponseCache) {
         this.address = address;
         this.context = context;
-        this.requestDispatcherHandler = new RequestDispatcherHandler(context);
-        for(ProtocolRouter router : protocolRouterList){
-           router.init(context);
-        }
+        this.requestDispatcherHandler = requestDispatcherHandler;
+        this.contentConfig = contentConfig;
+        this.protocolRouterList = protocolRouterList;
+        this.protocolDetector = protocolDetector;
+        this.compressionConfig = compressionConfig;
+        this.compressedResponseCache = compressedResponseCache;
     }
 
     @Override
-    public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
-        ByteBuf buffer = (ByteBuf) msg;
-        final int magic1 = buffer.getUnsignedByte(buffer.readerIndex());
-        final int magic2 = buffer.getUnsignedByte(buffer.readerIndex() + 1);
-        log.info("addressIP --> " + address.getAddress().getHostAddress() + " magic1 --> " + magic1);
-        if(isHttp(magic1,magic2)) {
-            switchToHttp(ctx);
-            ctx.fireChannelRead(msg);
-        }else {
-            //获取其他协议路由
-            for(ProtocolRouter router : protocolRouterList){
-                if(router.isProtocol(buffer)){
-                    router.setRounter(ctx,context);
-                    ctx.fireChannelRead(msg);
+    public void channelActive(final ChannelHandlerContext ctx) throws Exception {
+        detectionTimeout = ctx.executor().schedule(new Runnable() {
+            @Override
+            public void run() {
+                if (!ctx.isRemoved() && ctx.channel().isOpen()) {
+                    protocolDetector.timedOut();
+                    log.warn("No protocol detected from " + ctx.channel().remoteAddress() + " within "
+                            + protocolDetector.getTimeoutMillis() + "ms, closing connection");
+                    ctx.close();
                 }
             }
+        }, protocolDetector.getTimeoutMillis(), TimeUnit.MILLISECONDS);
+        super.channelActive(ctx);
+    }
+
+    @Override
+    protected void decode(ChannelHandlerContext ctx, ByteBuf buffer, List<Object> out) throws Exception {
+        ProtocolSignature signature = protocolDetector.detect(buffer);
+        if (signature == null) {
+            // Not enough bytes to decide yet
+            return;
+        }
+        if (signature == ProtocolDetector.UNKNOWN) {
+            protocolDetector.unknown();
+            log.warn("Unknown protocol from " + ctx.channel().remoteAddress() + ", closing connection");
+            close(ctx, buffer);
+            return;
+        }
+        log.debug("addressIP --> " + address.getAddress().getHostAddress() + " protocol --> " + signature);
+        if (ProtocolDetector.HTTP.equals(signature.getProtocol())) {
+            protocolDetector.detected(signature);
+            switchToHttp(ctx);
+            return;
         }
+        //获取其他协议路由
+        for (ProtocolRouter router : protocolRouterList) {
+            if (router.isProtocol(buffer)) {
+                protocolDetector.detected(signature);
+                router.setRounter(ctx, context);
+                ctx.pipeline().remove(this);
+                return;
+            }
+        }
+        protocolDetector.unsupported();
+        log.warn("Unsupported protocol " + signature + " from " + ctx.channel().remoteAddress() + ", closing connection");
+        close(ctx, buffer);
+    }
+
+    private void close(ChannelHandlerContext ctx, ByteBuf buffer) {
+        buffer.skipBytes(buffer.readableBytes());
+        ctx.close();
+    }
+
+    @Override
+    protected void handlerRemoved0(ChannelHandlerContext ctx) throws Exception {
+        if (detectionTimeout != null) {
+            detectionTimeout.cancel(false);
+            detectionTimeout = null;
+        }
+    }
+
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+        if (detectionTimeout != null) {
+            detectionTimeout.cancel(false);
+            detectionTimeout = null;
+        }
+        super.channelInactive(ctx);
     }
 
     private void switchToHttp(ChannelHandlerContext ctx) {
+        ThriftProtocolRouter thriftRouter = null;
+        for (ProtocolRouter router : protocolRouterList) {
+            if (router instanceof ThriftProtocolRouter && ((ThriftProtocolRouter) router).isHttpEnabled(context)) {
+                thriftRouter = (ThriftProtocolRouter) router;
+            }
+        }
+        HessianServiceRegistry hessianRegistry = context.getHessianRegistry();
         ChannelPipeline p = ctx.pipeline();
         p.addLast(new HttpServerCodec());
-        p.addLast(new HttpObjectAggregator(MAX_CONTENT_LENGTH));
+        p.addLast(new HttpPipeliningHandler());
+        if (compressionConfig.isEnabled()) {
+            // Below the chunked writer, so that chunked bodies are compressed too
+            p.addLast(new HttpResponseCompressor(compressionConfig, compressedResponseCache));
+        }
         p.addLast(new ChunkedWriteHandler());
-        p.addLast(new ServletContentHandler(context,ctx.channel()));
-        p.addLast(new DefaultEventExecutorGroup(THREAD_SIZE),requestDispatcherHandler);
+        if (thriftRouter != null) {
+            p.addLast(new ThriftHttpHandler(contentConfig));
+        }
+        if (hessianRegistry != null && !hessianRegistry.isEmpty()) {
+            p.addLast(new HessianHttpHandler(context, hessianRegistry,
+                    (WorkerExecutor) context.getAttribute(WorkerExecutor.ATTRIBUTE), contentConfig));
+        }
+        p.addLast(new ServletContentHandler(context, contentConfig));
+        p.addLast(requestDispatcherHandler);
+        if (thriftRouter != null) {
+            // Thrift messages pass the servlet handlers untouched
+            p.addLast(thriftRouter.newHttpInboundHandler(context));
+        }
+        // The bytes cumulated so far are handed to the codec when this handler is removed
         p.remove(this);
     }
 
 
-    private static boolean isHttp(int magic1, int magic2) {
-        return
-                magic1 == 'G' && magic2 == 'E' || // GET
-                        magic1 == 'P' && magic2 == 'O' || // POST
-                        magic1 == 'P' && magic2 == 'U' || // PUT
-                        magic1 == 'H' && magic2 == 'E' || // HEAD
-                        magic1 == 'O' && magic2 == 'P' || // OPTIONS
-                        magic1 == 'P' && magic2 == 'A' || // PATCH
-                        magic1 == 'D' && magic2 == 'E' || // DELETE
-                        magic1 == 'T' && magic2 == 'R' || // TRACE
-                        magic1 == 'C' && magic2 == 'O';   // CONNECT
-    }
-
-
 
 
 }
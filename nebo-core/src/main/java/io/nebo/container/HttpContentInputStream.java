@@ -17,73 +17,413 @@
 
 package io.nebo.container;
 
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.Channel;
 import io.netty.handler.codec.http.HttpContent;
 import io.netty.handler.codec.http.LastHttpContent;
-import org.apache.commons.logging.Log;
-import org.apache.commons.logging.LogFactory;
 import javax.servlet.ReadListener;
 import javax.servlet.ServletInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
 
+/**
+ * {@link ServletInputStream} over the {@link HttpContent} chunks of a single request, as they are handed over by
+ * {@link ServletContentHandler}. Reads block until the next chunk has arrived; bulk reads copy straight out of the
+ * chunks, and each chunk is released as soon as it has been read.
+ * <p/>
+ * A servlet that has started async processing can read without blocking through a {@link ReadListener}.
+ * <p/>
+ * With flow control enabled, reading from the channel is suspended while more than the high water mark of bytes is
+ * queued, and resumed when the reader has drained the queue below the low water mark.
+ */
 public class HttpContentInputStream extends ServletInputStream {
 
-    private final Log logger = LogFactory.getLog(getClass());
+    private static final int TRANSFER_BUFFER_SIZE = 8192;
+    private final Channel channel;
+    private final ReadSuspension readSuspension;
+    private final int highWaterMark;
+    private final int lowWaterMark;
     private AtomicBoolean closed;
     private final BlockingQueue<HttpContent> queue;
-    private HttpContent current;
+    private final AtomicInteger queuedBytes;
+    // Only moved by the reading thread, the event loop just looks at what is left of it
+    private volatile HttpContent current;
+    // Set on the event loop once the last chunk of the body has been queued
+    private volatile boolean lastContentQueued;
+    private volatile boolean flowControl;
+    // Only changed on the event loop
+    private volatile boolean paused;
+    private volatile IOException failure;
+    private volatile ReadListener readListener;
+    // Whether the read listener is owed onDataAvailable, i.e. isReady() has returned false since it was last called
+    private volatile boolean dataAvailablePending;
+    private boolean allDataRead;
+    private final Runnable resumeIfDrained = new Runnable() {
+        @Override
+        public void run() {
+            if (paused && queuedBytes.get() <= lowWaterMark) {
+                resume();
+            }
+        }
+    };
 
-    public HttpContentInputStream() {
+    public HttpContentInputStream(Channel channel, int highWaterMark, int lowWaterMark) {
+        this.channel = channel;
+        this.readSuspension = ReadSuspension.of(channel);
+        this.highWaterMark = highWaterMark;
+        this.lowWaterMark = lowWaterMark;
         this.closed = new AtomicBoolean();
-        queue = new LinkedBlockingQueue<>();
+        this.queue = new LinkedBlockingQueue<>();
+        this.queuedBytes = new AtomicInteger();
     }
 
+    /**
+     * Enable suspending channel reads while the reader falls behind. Only safe once a reader has been dispatched,
+     * otherwise the rest of the body would never be read.
+     */
+    void setFlowControl(boolean flowControl) {
+        this.flowControl = flowControl;
+    }
 
     public void addContent(HttpContent httpContent) {
-        checkNotClosed();
+        if (closed.get()) {
+            // The reader has gone away, the rest of the body is discarded
+            return;
+        }
+        int bytes = httpContent.content().readableBytes();
         this.queue.offer(httpContent.retain());
+        if (httpContent instanceof LastHttpContent) {
+            lastContentQueued = true;
+        }
+        if (queuedBytes.addAndGet(bytes) > highWaterMark && flowControl && !paused) {
+            pause();
+        }
+        if (closed.get()) {
+            // Raced with close
+            drain();
+            if (paused) {
+                resume();
+            }
+        }
+        if (readListener != null) {
+            notifyReadListener();
+        }
+    }
+
+    /**
+     * Fail the stream, waking up a blocked reader, e.g. when the connection is lost before the body was complete.
+     */
+    void fail(IOException cause) {
+        failure = cause;
+        close();
+        if (readListener != null) {
+            runOnEventLoop(new Runnable() {
+                @Override
+                public void run() {
+                    notifyReadListener();
+                }
+            });
+        }
     }
 
     @Override
     public boolean isFinished() {
-        return current instanceof LastHttpContent && current.content().readableBytes() == 0;
+        return current instanceof LastHttpContent && !current.content().isReadable();
     }
 
     @Override
     public boolean isReady() {
-        return !queue.isEmpty() && current != null && current.content().readableBytes() > 0;
+        HttpContent content = current;
+        boolean ready = (content != null && content.content().isReadable()) || !queue.isEmpty();
+        if (!ready && readListener != null) {
+            dataAvailablePending = true;
+            if (lastContentQueued) {
+                // Read to the end without a chunk left to arrive and notify the listener. Always run later, never
+                // from within a listener call on the event loop.
+                channel.eventLoop().execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        notifyReadListener();
+                    }
+                });
+            }
+        }
+        return ready;
     }
 
+    /**
+     * Switch to non-blocking reads. The listener is called on the channel's event loop: {@code onDataAvailable} as
+     * chunks arrive once {@link #isReady()} has returned {@code false}, {@code onAllDataRead} once the whole body has
+     * been read, and {@code onError} if the connection is lost first.
+     */
     @Override
     public void setReadListener(ReadListener readListener) {
-        logger.info(readListener + (readListener != null ? readListener.getClass() + "" : ""));
+        checkNotNull(readListener);
+        checkState(this.readListener == null, "ReadListener already set");
+        dataAvailablePending = true;
+        this.readListener = readListener;
+        runOnEventLoop(new Runnable() {
+            @Override
+            public void run() {
+                notifyReadListener();
+            }
+        });
+    }
+
+    /**
+     * Tell the read listener what has changed, on the event loop.
+     */
+    private void notifyReadListener() {
+        ReadListener listener = readListener;
+        if (allDataRead) {
+            return;
+        }
+        try {
+            if (failure != null) {
+                allDataRead = true;
+                listener.onError(failure);
+                return;
+            }
+            if (!isAllDataRead() && dataAvailablePending && isReady()) {
+                dataAvailablePending = false;
+                listener.onDataAvailable();
+            }
+            if (isAllDataRead()) {
+                allDataRead = true;
+                listener.onAllDataRead();
+            }
+        } catch (Throwable t) {
+            allDataRead = true;
+            listener.onError(t);
+        }
+    }
+
+    /**
+     * @return {@code true} if the whole body has been read. Decided from what has been queued alone, since the chunk
+     * being read belongs to the reader, which may be reading on a thread of its own.
+     */
+    private boolean isAllDataRead() throws IOException {
+        return lastContentQueued && available() == 0;
+    }
+
+    private void runOnEventLoop(Runnable task) {
+        if (channel.eventLoop().inEventLoop()) {
+            task.run();
+        } else {
+            channel.eventLoop().execute(task);
+        }
     }
 
     @Override
     public int read() throws IOException {
-        if (isFinished()) {
+        return awaitReadable() ? current.content().readUnsignedByte() : -1;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (off < 0 || len < 0 || len > b.length - off) {
+            throw new IndexOutOfBoundsException();
+        }
+        if (len == 0) {
+            return 0;
+        }
+        if (!awaitReadable()) {
             return -1;
         }
-        if (current != null && current.content().readableBytes() > 0) {
-            return current.content().readUnsignedByte();
+        int read = 0;
+        // Only blocks for the first chunk, then takes what has already arrived
+        do {
+            int n = Math.min(len - read, current.content().readableBytes());
+            current.content().readBytes(b, off + read, n);
+            read += n;
+        } while (read < len && nextContentIfQueued());
+        releaseIfConsumed();
+        return read;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        long skipped = 0;
+        while (skipped < n && awaitReadable()) {
+            int count = (int) Math.min(n - skipped, current.content().readableBytes());
+            current.content().skipBytes(count);
+            skipped += count;
+        }
+        releaseIfConsumed();
+        return skipped;
+    }
+
+    /**
+     * @return the number of bytes that have been received but not read yet
+     */
+    @Override
+    public int available() throws IOException {
+        int available = queuedBytes.get();
+        HttpContent content = current;
+        if (content != null) {
+            available += content.content().readableBytes();
+        }
+        return available;
+    }
+
+    /**
+     * Read the rest of the body into a stream, chunk by chunk.
+     *
+     * @return the number of bytes transferred
+     */
+    public long transferTo(OutputStream out) throws IOException {
+        long transferred = 0;
+        byte[] buffer = null;
+        while (awaitReadable()) {
+            ByteBuf content = current.content();
+            transferred += content.readableBytes();
+            if (content.hasArray()) {
+                content.readBytes(out, content.readableBytes());
+                continue;
+            }
+            // Direct chunks are copied through one buffer, instead of a new array per chunk
+            if (buffer == null) {
+                buffer = new byte[TRANSFER_BUFFER_SIZE];
+            }
+            while (content.isReadable()) {
+                int n = Math.min(buffer.length, content.readableBytes());
+                content.readBytes(buffer, 0, n);
+                out.write(buffer, 0, n);
+            }
+        }
+        return transferred;
+    }
+
+    /**
+     * @return the rest of the body
+     */
+    public byte[] readAllBytes() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(Math.max(32, available()));
+        transferTo(out);
+        return out.toByteArray();
+    }
+
+    /**
+     * Wait until the chunk being read has bytes left, skipping empty chunks.
+     *
+     * @return {@code false} at the end of the body
+     */
+    private boolean awaitReadable() throws IOException {
+        while (current == null || !current.content().isReadable()) {
+            if (current instanceof LastHttpContent) {
+                return false;
+            }
+            nextContent();
+        }
+        return true;
+    }
+
+    /**
+     * Move on to the next chunk with bytes left, if it has already arrived.
+     */
+    private boolean nextContentIfQueued() throws IOException {
+        while (!(current instanceof LastHttpContent) && !queue.isEmpty()) {
+            nextContent();
+            if (current.content().isReadable()) {
+                return true;
+            }
         }
-        current = queue.poll();
-        return read();
+        return false;
     }
 
-    private void checkNotClosed() {
+    /**
+     * Release the chunk being read once it has been read to the end, rather than when the next one is needed.
+     */
+    private void releaseIfConsumed() {
+        if (current != null && !current.content().isReadable() && !(current instanceof LastHttpContent)) {
+            current.release();
+            current = null;
+        }
+    }
+
+    private void nextContent() throws IOException {
+        if (current != null) {
+            current.release();
+            current = null;
+        }
+        HttpContent next;
+        try {
+            next = queue.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for request content");
+        }
+        checkNotClosed();
+        current = next;
+        int remaining = queuedBytes.addAndGet(-next.content().readableBytes());
+        if (paused && remaining <= lowWaterMark) {
+            runOnEventLoop(resumeIfDrained);
+        }
+    }
+
+    /**
+     * Suspend reads, on the event loop. The reader may have drained the queue in the meantime without seeing the
+     * stream paused, and so without asking for reads to be resumed, in which case they are resumed right away.
+     */
+    private void pause() {
+        paused = true;
+        readSuspension.suspend(this);
+        if (queuedBytes.get() <= lowWaterMark) {
+            resume();
+        }
+    }
+
+    private void resume() {
+        paused = false;
+        readSuspension.resume(this);
+    }
+
+    private void checkNotClosed() throws IOException {
+        if (failure != null) {
+            throw failure;
+        }
         if (closed.get()) {
-            throw new IllegalStateException("Stream is closed");
+            throw new IOException("Stream is closed");
+        }
+    }
+
+    private void drain() {
+        HttpContent content;
+        while ((content = queue.poll()) != null) {
+            content.release();
         }
+        queuedBytes.set(0);
+        // Wake up a reader blocked in nextContent
+        queue.offer(LastHttpContent.EMPTY_LAST_CONTENT);
     }
 
     @Override
-    public void close() throws IOException {
+    public void close() {
         if (closed.compareAndSet(false, true)) {
-            queue.clear();
+            drain();
+            if (paused) {
+                runOnEventLoop(resumeIfDrained);
+            }
+        }
+    }
+
+    /**
+     * Close the stream and release the chunk being read. Must only be called by the reading thread once it is done,
+     * i.e. by the container after the servlet has returned.
+     */
+    void release() {
+        close();
+        if (current != null) {
+            current.release();
             current = null;
         }
     }
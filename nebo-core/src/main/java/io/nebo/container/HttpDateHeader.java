@@ -0,0 +1,53 @@
+package io.nebo.container;
+
+import io.netty.util.AsciiString;
+import io.netty.util.concurrent.EventExecutorGroup;
+import io.netty.util.concurrent.ScheduledFuture;
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.TimeZone;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The value of the {@code Date} response header, which only changes once a second. Rather than having every response
+ * format the current time, the value is formatted and encoded once a second by a task on an event loop of the running
+ * container, and shared by all responses.
+ */
+public final class HttpDateHeader {
+    private static final long UPDATE_INTERVAL_MILLIS = 1000;
+
+    private static volatile AsciiString value = format(System.currentTimeMillis());
+
+    private HttpDateHeader() {
+    }
+
+    /**
+     * @return the current time in the RFC 1123 format of HTTP dates, to the second
+     */
+    public static AsciiString get() {
+        return value;
+    }
+
+    /**
+     * Keep the value current from an event loop of {@code group}, until it is shut down.
+     */
+    static ScheduledFuture<?> schedule(EventExecutorGroup group) {
+        long now = System.currentTimeMillis();
+        value = format(now);
+        // Runs just after the second changes
+        return group.next().scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                value = format(System.currentTimeMillis());
+            }
+        }, UPDATE_INTERVAL_MILLIS - now % UPDATE_INTERVAL_MILLIS, UPDATE_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    private static AsciiString format(long millis) {
+        SimpleDateFormat format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.ENGLISH);
+        format.setTimeZone(TimeZone.getTimeZone("GMT"));
+        return new AsciiString(format.format(new Date(millis)));
+    }
+}
@@ -0,0 +1,108 @@
+package io.nebo.container;
+
+import io.netty.channel.ChannelDuplexHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelPromise;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpResponse;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.LastHttpContent;
+import io.netty.util.ReferenceCountUtil;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+
+/**
+ * Keeps the requests of a connection in order. Requests are handed to the workers of the servlet executor, which would
+ * otherwise run pipelined requests at the same time and could write their responses out of order; instead a request
+ * is only passed up the pipeline once the response to the one before it has been written in full. Messages that
+ * arrive in the meantime are held back, and reads are suspended until they have all been passed on.
+ * <p/>
+ * Sits right above the {@link io.netty.handler.codec.http.HttpServerCodec}, so every handler above it, and its
+ * per-request state, only ever sees one request at a time.
+ */
+public class HttpPipeliningHandler extends ChannelDuplexHandler {
+    private final Queue<Object> pending = new ArrayDeque<>();
+    // Whether a request has been passed up and its response hasn't been written in full yet
+    private boolean responding;
+
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+        if (!pending.isEmpty() || (responding && msg instanceof HttpRequest)) {
+            pending.add(msg);
+            ReadSuspension.of(ctx.channel()).suspend(this);
+            return;
+        }
+        if (msg instanceof HttpRequest) {
+            responding = true;
+        }
+        ctx.fireChannelRead(msg);
+    }
+
+    @Override
+    public void write(final ChannelHandlerContext ctx, Object msg, ChannelPromise promise) throws Exception {
+        boolean lastContent = msg instanceof LastHttpContent && !isContinue(msg);
+        ctx.write(msg, promise);
+        if (lastContent && responding) {
+            responding = false;
+            if (!pending.isEmpty()) {
+                // Not from within the write, the handlers above may still be finishing the response
+                ctx.executor().execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        readPending(ctx);
+                    }
+                });
+            }
+        }
+    }
+
+    private static boolean isContinue(Object msg) {
+        return msg instanceof HttpResponse
+                && ((HttpResponse) msg).status().code() == HttpResponseStatus.CONTINUE.code();
+    }
+
+    /**
+     * Pass on the messages held back, up to the next request that has to wait, and resume reads once there are none.
+     */
+    private void readPending(ChannelHandlerContext ctx) {
+        if (ctx.isRemoved() || !ctx.channel().isActive()) {
+            return;
+        }
+        boolean read = false;
+        Object msg;
+        while ((msg = pending.peek()) != null && !(responding && msg instanceof HttpRequest)) {
+            pending.poll();
+            if (msg instanceof HttpRequest) {
+                responding = true;
+            }
+            read = true;
+            ctx.fireChannelRead(msg);
+        }
+        if (read) {
+            ctx.fireChannelReadComplete();
+        }
+        if (pending.isEmpty()) {
+            ReadSuspension.of(ctx.channel()).resume(this);
+        }
+    }
+
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+        releasePending();
+        super.channelInactive(ctx);
+    }
+
+    @Override
+    public void handlerRemoved(ChannelHandlerContext ctx) throws Exception {
+        releasePending();
+        ReadSuspension.of(ctx.channel()).resume(this);
+    }
+
+    private void releasePending() {
+        Object msg;
+        while ((msg = pending.poll()) != null) {
+            ReferenceCountUtil.release(msg);
+        }
+    }
+}
@@ -0,0 +1,166 @@
+package io.nebo.container;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.compression.ZlibWrapper;
+import io.netty.handler.codec.http.DefaultFullHttpResponse;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpContent;
+import io.netty.handler.codec.http.HttpContentCompressor;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpHeaderValues;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpObject;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpResponse;
+import io.netty.handler.codec.http.HttpResponseStatus;
+
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.Locale;
+import java.util.Queue;
+
+/**
+ * {@link HttpContentCompressor} that only compresses the content types and sizes a {@link ResponseCompressionConfig}
+ * asks for. Responses written whole, as {@link FullHttpResponse}s, that may be cached have their compressed body kept
+ * in a {@link CompressedResponseCache}, and are answered from it when the same body is sent again.
+ */
+public class HttpResponseCompressor extends HttpContentCompressor {
+    // Queued for requests whose responses are never compressed
+    private static final String IDENTITY = "";
+
+    private final ResponseCompressionConfig config;
+    private final CompressedResponseCache cache;
+    // The Accept-Encoding of each request not answered yet, HttpContentEncoder keeps its own
+    private final Queue<String> acceptEncodings = new ArrayDeque<>();
+    private String acceptEncoding;
+
+    /**
+     * @param cache {@code null} to compress every response
+     */
+    public HttpResponseCompressor(ResponseCompressionConfig config, CompressedResponseCache cache) {
+        super(config.getCompressionLevel());
+        this.config = config;
+        this.cache = cache;
+    }
+
+    @Override
+    protected void decode(ChannelHandlerContext ctx, HttpRequest msg, List<Object> out) throws Exception {
+        String acceptEncoding = msg.headers().get(HttpHeaderNames.ACCEPT_ENCODING);
+        String userAgent = msg.headers().get(HttpHeaderNames.USER_AGENT);
+        HttpMethod method = msg.getMethod();
+        if (acceptEncoding == null || HttpMethod.HEAD.equals(method) || HttpMethod.CONNECT.equals(method)
+                || (userAgent != null && config.isExcludedUserAgent(userAgent))) {
+            acceptEncoding = IDENTITY;
+        }
+        acceptEncodings.add(acceptEncoding);
+        super.decode(ctx, msg, out);
+    }
+
+    @Override
+    protected void encode(ChannelHandlerContext ctx, HttpObject msg, List<Object> out) throws Exception {
+        if (!(msg instanceof HttpResponse) || ((HttpResponse) msg).status().code() == HttpResponseStatus.CONTINUE.code()) {
+            super.encode(ctx, msg, out);
+            return;
+        }
+        acceptEncoding = acceptEncodings.poll();
+        if (cache == null || acceptEncoding == null || acceptEncoding == IDENTITY || !isCacheable(msg)) {
+            super.encode(ctx, msg, out);
+            return;
+        }
+        FullHttpResponse response = (FullHttpResponse) msg;
+        ZlibWrapper wrapper = determineWrapper(acceptEncoding);
+        if (wrapper == null || !isCompressible(response)) {
+            super.encode(ctx, msg, out);
+            return;
+        }
+        String encoding = wrapper == ZlibWrapper.GZIP ? HttpHeaderValues.GZIP.toString() : HttpHeaderValues.DEFLATE.toString();
+        byte[] compressed = cache.get(encoding, response.content());
+        if (compressed != null) {
+            FullHttpResponse cached = new DefaultFullHttpResponse(response.protocolVersion(), response.status(),
+                    Unpooled.wrappedBuffer(compressed), response.headers(), response.trailingHeaders());
+            cached.headers().set(HttpHeaderNames.CONTENT_ENCODING, encoding);
+            HttpHeaders.setContentLength(cached, compressed.length);
+            try {
+                // Already encoded, so passed through as it is
+                super.encode(ctx, cached, out);
+            } finally {
+                cached.release();
+            }
+            return;
+        }
+        // The encoder reads the content, which is still alive until this returns
+        ByteBuf content = response.content().slice();
+        int first = out.size();
+        super.encode(ctx, msg, out);
+        if (out.size() > first && out.get(first) instanceof HttpResponse
+                && ((HttpResponse) out.get(first)).headers().contains(HttpHeaderNames.CONTENT_ENCODING)) {
+            cache.put(encoding, content, compressedBody(out, first));
+        }
+    }
+
+    private boolean isCacheable(HttpObject msg) {
+        if (!(msg instanceof FullHttpResponse)) {
+            return false;
+        }
+        FullHttpResponse response = (FullHttpResponse) msg;
+        if (!HttpResponseStatus.OK.equals(response.status())
+                || response.content().readableBytes() > config.getMaxCachedResponseSize()) {
+            return false;
+        }
+        String cacheControl = response.headers().get(HttpHeaderNames.CACHE_CONTROL);
+        if (cacheControl == null) {
+            return false;
+        }
+        cacheControl = cacheControl.toLowerCase(Locale.ENGLISH);
+        return (cacheControl.contains("public") || cacheControl.contains("max-age"))
+                && !cacheControl.contains("private") && !cacheControl.contains("no-store")
+                && !cacheControl.contains("no-cache");
+    }
+
+    /**
+     * Concatenate the compressed content HttpContentEncoder has just written out.
+     */
+    private static byte[] compressedBody(List<Object> out, int first) {
+        int length = 0;
+        for (int i = first; i < out.size(); i++) {
+            if (out.get(i) instanceof HttpContent) {
+                length += ((HttpContent) out.get(i)).content().readableBytes();
+            }
+        }
+        byte[] body = new byte[length];
+        int offset = 0;
+        for (int i = first; i < out.size(); i++) {
+            if (out.get(i) instanceof HttpContent) {
+                ByteBuf content = ((HttpContent) out.get(i)).content();
+                content.getBytes(content.readerIndex(), body, offset, content.readableBytes());
+                offset += content.readableBytes();
+            }
+        }
+        return body;
+    }
+
+    @Override
+    protected Result beginEncode(HttpResponse headers, String acceptEncoding) throws Exception {
+        if (this.acceptEncoding == IDENTITY || !isCompressible(headers)) {
+            return null;
+        }
+        return super.beginEncode(headers, acceptEncoding);
+    }
+
+    private boolean isCompressible(HttpResponse response) {
+        if (response.headers().contains(HttpHeaderNames.CONTENT_ENCODING)) {
+            return false;
+        }
+        String contentType = response.headers().get(HttpHeaderNames.CONTENT_TYPE);
+        if (contentType == null || !config.isCompressible(contentType)) {
+            return false;
+        }
+        long length = response instanceof FullHttpResponse
+                ? ((FullHttpResponse) response).content().readableBytes()
+                : HttpHeaders.getContentLength(response, -1);
+        return length < 0 || length >= config.getMinResponseSize();
+    }
+}
@@ -6,15 +6,24 @@ package io.nebo.container;
 import static com.google.common.base.Preconditions.checkNotNull;
 import static com.google.common.base.Preconditions.checkState;
 import io.netty.buffer.ByteBuf;
+import io.netty.buffer.CompositeByteBuf;
 import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
 import io.netty.channel.ChannelFuture;
 import io.netty.channel.ChannelFutureListener;
 import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.http.DefaultFullHttpResponse;
 import io.netty.handler.codec.http.DefaultLastHttpContent;
+import io.netty.handler.codec.http.EmptyHttpHeaders;
+import io.netty.handler.codec.http.FullHttpResponse;
 import io.netty.handler.codec.http.HttpHeaders;
 import io.netty.handler.codec.http.HttpResponse;
 
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 
 import javax.servlet.ServletOutputStream;
 import javax.servlet.WriteListener;
@@ -22,78 +31,212 @@ import javax.servlet.WriteListener;
 /**
  * A buffered {@link ServletOutputStream}, that writes Netty HTTP codec POJOs to the associated
  * {@link ChannelHandlerContext}.
- *
- *
+ * <p/>
+ * The body is buffered in pooled direct chunks of at most {@value #CHUNK_SIZE} bytes, allocated as they are needed
+ * and handed to the channel as they are when the buffer is flushed, so each byte written is copied once. A body that is still
+ * buffered when the stream is closed is written with its headers as a single {@link FullHttpResponse}, with an exact
+ * {@code Content-Length}. Otherwise the response is committed once the buffer is full, or by an explicit flush after
+ * the servlet has started async processing, and each flush from then on reaches the client right away, as streamed
+ * responses such as server-sent events need.
+ * <p/>
+ * A servlet that has started async processing can write without blocking through a {@link WriteListener}, driven by
+ * the channel's writability, see {@link ServletContentHandler#channelWritabilityChanged(ChannelHandlerContext)}.
+ * Blocking writers wait while the channel is not writable, on a lock rather than a monitor so that waiting virtual
+ * threads don't pin their carrier.
  */
 @SuppressWarnings({ "unused", "deprecation" })
 class HttpResponseOutputStream extends ServletOutputStream {
 
     private static final int               DEFAULT_BUFFER_SIZE = 1024 * 8;
+    private static final int               CHUNK_SIZE = 1024 * 8;
 
     private final ChannelHandlerContext    ctx;
     private final NettyHttpServletResponse servletResponse;
-    private byte[]                         buf;
+    private int                            bufferSize = DEFAULT_BUFFER_SIZE;
+    // The chunk being filled, and the chunks filled before it when the buffer is larger than a chunk
+    private ByteBuf                        chunk;
+    private CompositeByteBuf               filledChunks;
     private int                            count;
-    private boolean                        closed;
-    private WriteListener                  writeListener;
+    private volatile boolean               closed;
+    // Whether the servlet has started async processing, after which flushes are no longer deferred to close()
+    private volatile boolean               async;
+    private final Lock                     writabilityLock = new ReentrantLock();
+    // Signalled when the channel's writability changes or the connection closes
+    private final Condition                writabilityChange = writabilityLock.newCondition();
+    private volatile WriteListener         writeListener;
+    // Whether the write listener is owed onWritePossible, i.e. isReady() has returned false since it was last called
+    private volatile boolean               writePossiblePending;
 
     HttpResponseOutputStream(ChannelHandlerContext ctx, NettyHttpServletResponse servletResponse) {
         this.ctx = ctx;
         this.servletResponse = servletResponse;
-        this.buf = new byte[DEFAULT_BUFFER_SIZE];
     }
 
+    /**
+     * @return {@code true} while the channel is writable. Once it has returned {@code false}, the write listener is
+     * called back when the channel becomes writable again.
+     */
     @Override
     public boolean isReady() {
-        return true; // TODO implement
+        if (ctx.channel().isWritable()) {
+            return true;
+        }
+        writePossiblePending = true;
+        if (ctx.channel().isWritable()) {
+            // Became writable in between, the writability change may already have been handled
+            ctx.executor().execute(new Runnable() {
+                @Override
+                public void run() {
+                    writabilityChanged();
+                }
+            });
+        }
+        return false;
     }
 
+    /**
+     * Switch to non-blocking writes. The listener is called on the channel's event loop: {@code onWritePossible}
+     * right away, and again whenever the channel becomes writable after {@link #isReady()} has returned
+     * {@code false}, and {@code onError} if the connection is lost first.
+     */
     @Override
     public void setWriteListener(WriteListener writeListener) {
         checkNotNull(writeListener);
-        // TODO ISE when called more than once
-        // TODO ISE when associated request is not async
+        checkState(this.writeListener == null, "WriteListener already set");
+        writePossiblePending = true;
+        this.writeListener = writeListener;
+        ctx.executor().execute(new Runnable() {
+            @Override
+            public void run() {
+                writabilityChanged();
+            }
+        });
+    }
+
+    /**
+     * Called on the event loop when the channel's writability has changed.
+     */
+    void writabilityChanged() {
+        signalWriter();
+        WriteListener listener = writeListener;
+        if (listener == null || closed || !writePossiblePending || !ctx.channel().isWritable()) {
+            return;
+        }
+        writePossiblePending = false;
+        try {
+            listener.onWritePossible();
+        } catch (Throwable t) {
+            listener.onError(t);
+        }
+    }
+
+    /**
+     * Called on the event loop when the connection has been closed, which fails a write listener still writing.
+     */
+    void connectionClosed() {
+        signalWriter();
+        WriteListener listener = writeListener;
+        if (listener != null && !closed) {
+            writeListener = null;
+            listener.onError(new IOException("Connection closed"));
+        }
+    }
+
+    private void signalWriter() {
+        writabilityLock.lock();
+        try {
+            writabilityChange.signalAll();
+        } finally {
+            writabilityLock.unlock();
+        }
     }
 
     @Override
     public void write(byte[] b, int off, int len) throws IOException {
-        if (len > count) {
+        if (off < 0 || len < 0 || len > b.length - off) {
+            throw new IndexOutOfBoundsException();
+        }
+        if (len >= bufferSize) {
+            // Wouldn't fit anyway, copied once into a buffer of its own
             flushBuffer();
-            ByteBuf content = ctx.alloc().buffer(len);
+            ByteBuf content = ctx.alloc().directBuffer(len);
             content.writeBytes(b, off, len);
             writeContent(content, false);
             return;
         }
-        writeBufferIfNeeded(len);
-        System.arraycopy(b, off, buf, count, len);
-        count += len;
+        while (len > 0) {
+            ensureWritable();
+            int n = Math.min(len, chunk.writableBytes());
+            chunk.writeBytes(b, off, n);
+            count += n;
+            off += n;
+            len -= n;
+        }
     }
 
     @Override
     public void write(int b) throws IOException {
-        writeBufferIfNeeded(1);
-        buf[count++] = (byte) b;
+        ensureWritable();
+        chunk.writeByte(b);
+        count++;
     }
 
-    private void writeBufferIfNeeded(int len) throws IOException {
-        if (len > buf.length - count) {
+    /**
+     * Make room for at least one byte in the chunk being filled, flushing the buffer if it is full.
+     */
+    private void ensureWritable() throws IOException {
+        if (chunk != null && chunk.isWritable()) {
+            return;
+        }
+        if (count >= bufferSize) {
             flushBuffer();
         }
+        if (chunk != null) {
+            if (filledChunks == null) {
+                filledChunks = ctx.alloc().compositeDirectBuffer(Integer.MAX_VALUE);
+            }
+            filledChunks.addComponent(chunk);
+            filledChunks.writerIndex(filledChunks.writerIndex() + chunk.readableBytes());
+        }
+        chunk = ctx.alloc().directBuffer(Math.min(CHUNK_SIZE, bufferSize - count));
     }
 
+    /**
+     * Send the buffered content to the client, committing the response. While the servlet runs synchronously, the
+     * body of a response that hasn't been committed yet is kept for {@link #close()} instead: frameworks flush after
+     * writing every body, which would otherwise turn each response into a chunked one written in three pieces.
+     */
     @Override
     public void flush() throws IOException {
-        flushBuffer();
+        if (async || servletResponse.isCommitted()) {
+            flushBuffer();
+        }
     }
 
-    private void flushBuffer() {
+    /**
+     * Called when the servlet starts async processing, from then on flushes aren't deferred.
+     */
+    void startAsync() {
+        async = true;
+    }
+
+    /**
+     * Send the buffered content to the client, committing the response.
+     */
+    void flushBuffer() throws IOException {
         flushBuffer(false);
     }
 
-    private void flushBuffer(boolean lastContent) {
+    private void flushBuffer(boolean lastContent) throws IOException {
         if (count > 0) {
-            ByteBuf content = ctx.alloc().buffer(count);
-            content.writeBytes(buf, 0, count);
+            ByteBuf content = chunk;
+            if (filledChunks != null) {
+                filledChunks.addComponent(chunk);
+                filledChunks.writerIndex(filledChunks.writerIndex() + chunk.readableBytes());
+                content = filledChunks;
+            }
+            chunk = null;
+            filledChunks = null;
             count = 0;
             writeContent(content, lastContent);
         } else if (lastContent) {
@@ -101,13 +244,33 @@ class HttpResponseOutputStream extends ServletOutputStream {
         }
     }
 
-    private void writeContent(ByteBuf content, boolean lastContent) {
-        // TODO block if channel is not writable to avoid heap utilisation
+    private void releaseBuffer() {
+        if (chunk != null) {
+            chunk.release();
+            chunk = null;
+        }
+        if (filledChunks != null) {
+            filledChunks.release();
+            filledChunks = null;
+        }
+        count = 0;
+    }
+
+    private void writeContent(ByteBuf content, boolean lastContent) throws IOException {
+        try {
+            awaitWritable();
+        } catch (IOException e) {
+            content.release();
+            throw e;
+        }
         if (!servletResponse.isCommitted()) {
-            writeResponse(lastContent);
+            if (lastContent) {
+                writeFullResponse(content);
+                return;
+            }
+            writeResponse();
         }
         if (content.readableBytes() > 0) {
-            assert content.refCnt() == 1;
             ctx.write(content, ctx.voidPromise());
         }
         if (lastContent) {
@@ -117,21 +280,67 @@ class HttpResponseOutputStream extends ServletOutputStream {
                 future.addListener(ChannelFutureListener.CLOSE);
             }
         }
+        ctx.flush();
     }
 
-    private void writeResponse(boolean lastContent) {
+    /**
+     * Park a blocking writer until the channel is writable again, so that a slow client holds back the servlet
+     * rather than having the whole body queued in the channel's outbound buffer. Writers using a
+     * {@link WriteListener} are expected to check {@link #isReady()} instead, and writes on the event loop can't wait.
+     * <p/>
+     * The writer is woken by {@link #writabilityChanged()} and {@link #connectionClosed()}, which the
+     * {@link ServletContentHandler} calls on the response being written: there is only ever one per connection, see
+     * {@link HttpPipeliningHandler}.
+     */
+    private void awaitWritable() throws IOException {
+        Channel channel = ctx.channel();
+        if (channel.isWritable() || writeListener != null || ctx.executor().inEventLoop()) {
+            return;
+        }
+        // Only flushed bytes drain from the outbound buffer
+        ctx.flush();
+        writabilityLock.lock();
+        try {
+            // Writability is checked under the lock it is signalled with, so a change can't be missed
+            while (!channel.isWritable() && channel.isActive()) {
+                writabilityChange.await();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the channel to become writable");
+        } finally {
+            writabilityLock.unlock();
+        }
+        if (!channel.isActive()) {
+            throw new IOException("Connection closed");
+        }
+    }
+
+    private void writeResponse() {
         HttpResponse response = servletResponse.getNettyResponse();
         // TODO implement exceptions required by container://tools.ietf.org/html/rfc2616#section-4.4
         if (!HttpHeaders.isContentLengthSet(response)) {
-            if (lastContent) {
-                HttpHeaders.setContentLength(response, count);
-            } else {
-                HttpHeaders.setTransferEncodingChunked(response);
-            }
+            HttpHeaders.setTransferEncodingChunked(response);
         }
         ctx.write(response, ctx.voidPromise());
     }
 
+    /**
+     * Write the whole response at once, when the body has been buffered up to the end.
+     */
+    private void writeFullResponse(ByteBuf content) {
+        HttpResponse response = servletResponse.getNettyResponse();
+        if (!HttpHeaders.isContentLengthSet(response)) {
+            HttpHeaders.setContentLength(response, content.readableBytes());
+        }
+        FullHttpResponse fullResponse = new DefaultFullHttpResponse(response.protocolVersion(), response.status(),
+                content, response.headers(), EmptyHttpHeaders.INSTANCE);
+        ChannelFuture future = ctx.writeAndFlush(fullResponse);
+        if (!HttpHeaders.isKeepAlive(response)) {
+            future.addListener(ChannelFutureListener.CLOSE);
+        }
+    }
+
     @Override
     public void close() throws IOException {
         if (closed) {
@@ -140,24 +349,25 @@ class HttpResponseOutputStream extends ServletOutputStream {
         closed = true;
         try {
             flushBuffer(true);
-            ctx.flush();
         } finally {
-            buf = null;
+            // Only left over if the buffer couldn't be handed over
+            releaseBuffer();
         }
     }
 
     void resetBuffer() {
         assert !servletResponse.isCommitted();
-        count = 0;
+        releaseBuffer();
     }
 
     int getBufferSize() {
-        return buf.length;
+        return bufferSize;
     }
 
     void setBufferSize(int size) {
         assert !servletResponse.isCommitted();
         checkState(count == 0, "Response body content has been written");
-        buf = new byte[size];
+        releaseBuffer();
+        bufferSize = size;
     }
 }
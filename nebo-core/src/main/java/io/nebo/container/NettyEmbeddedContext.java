@@ -18,10 +18,11 @@
 package io.nebo.container;
 
 import com.google.common.collect.ImmutableMap;
+import io.nebo.hessian.HessianServiceRegistry;
+import io.nebo.thrift.ThriftProcessorRegistry;
 import io.netty.util.AsciiString;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
-import org.apache.thrift.TMultiplexedProcessor;
 
 import javax.servlet.*;
 import javax.servlet.descriptor.JspConfigDescriptor;
@@ -47,7 +48,9 @@ public class NettyEmbeddedContext implements ServletContext {
     private final Map<String, NettyFilterRegistration> filters = new HashMap<>();
     private final AsciiString serverInfo;
     private volatile boolean initialised;
-    private TMultiplexedProcessor processor;
+    private ThriftProcessorRegistry processorRegistry;
+    private HessianServiceRegistry hessianRegistry;
+    private long requestTimeoutMillis;
     private Map<String, Object>  attributes = new ConcurrentHashMap<String, Object>();
 
 
@@ -378,11 +381,30 @@ public class NettyEmbeddedContext implements ServletContext {
         return null;
     }
 
-    public void setProcessor(TMultiplexedProcessor processor) {
-        this.processor = processor;
+    public void setProcessorRegistry(ThriftProcessorRegistry processorRegistry) {
+        this.processorRegistry = processorRegistry;
     }
 
-    public TMultiplexedProcessor getProcessor() {
-        return this.processor;
+    public ThriftProcessorRegistry getProcessorRegistry() {
+        return this.processorRegistry;
+    }
+
+    public void setHessianRegistry(HessianServiceRegistry hessianRegistry) {
+        this.hessianRegistry = hessianRegistry;
+    }
+
+    public HessianServiceRegistry getHessianRegistry() {
+        return this.hessianRegistry;
+    }
+
+    /**
+     * @return the longest any request may take, {@code 0} for no limit, see {@link RequestDeadline}
+     */
+    public long getRequestTimeoutMillis() {
+        return requestTimeoutMillis;
+    }
+
+    public void setRequestTimeoutMillis(long requestTimeoutMillis) {
+        this.requestTimeoutMillis = requestTimeoutMillis;
     }
 }
@@ -19,7 +19,12 @@ package io.nebo.container;
 
 import io.nebo.hessian.HessianConstant;
 import io.nebo.hessian.HessianFilter;
+import io.nebo.hessian.HessianServiceRegistry;
+import io.nebo.protocol.ProtocolDetector;
+import io.nebo.protocol.ProtocolRouter;
+import io.nebo.protocol.ProtocolRouterFactory;
 import io.nebo.thrift.ThriftEndpoint;
+import io.nebo.thrift.ThriftServerConfig;
 import com.google.common.base.StandardSystemProperty;
 import io.netty.bootstrap.ServerBootstrap;
 import io.netty.channel.*;
@@ -28,12 +33,9 @@ import io.netty.channel.epoll.EpollEventLoopGroup;
 import io.netty.channel.epoll.EpollServerSocketChannel;
 import io.netty.channel.nio.NioEventLoopGroup;
 import io.netty.channel.socket.nio.NioServerSocketChannel;
-import io.netty.util.concurrent.DefaultEventExecutorGroup;
 import org.apache.commons.lang3.StringUtils;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
-import org.apache.thrift.TMultiplexedProcessor;
-import org.apache.thrift.TProcessor;
 import org.springframework.beans.factory.BeanFactoryUtils;
 import org.springframework.boot.context.embedded.EmbeddedServletContainer;
 import org.springframework.boot.context.embedded.EmbeddedServletContainerException;
@@ -41,6 +43,10 @@ import org.springframework.web.context.WebApplicationContext;
 import org.springframework.web.context.support.WebApplicationContextUtils;
 
 import java.net.InetSocketAddress;
+import java.util.List;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
 
 /**
  * An {@link org.springframework.boot.context.embedded.EmbeddedServletContainer} used to control an embedded Netty instance, that bridges to
@@ -56,29 +62,78 @@ import java.net.InetSocketAddress;
  * @author Danny Thomas
  */
 public class NettyEmbeddedServletContainer implements EmbeddedServletContainer {
+    // Netty's defaults
+    public static final int DEFAULT_WRITE_BUFFER_LOW_WATER_MARK = 32 * 1024;
+    public static final int DEFAULT_WRITE_BUFFER_HIGH_WATER_MARK = 64 * 1024;
     private final Log logger = LogFactory.getLog(getClass());
     private final InetSocketAddress address;
     private final NettyEmbeddedContext context;
+    private final WorkerExecutor.Mode servletExecutionMode;
+    private final int servletThreads;
+    private final int servletQueueCapacity;
+    private final int maxVirtualThreads;
+    private final RequestContentConfig contentConfig;
+    private final ProtocolDetector protocolDetector;
+    private final ThriftServerConfig thriftConfig;
+    // Created in start(), and shut down in stop()
+    private WorkerExecutor servletExecutor;
+    private WorkerExecutor thriftExecutor;
+    private int writeBufferLowWaterMark = DEFAULT_WRITE_BUFFER_LOW_WATER_MARK;
+    private int writeBufferHighWaterMark = DEFAULT_WRITE_BUFFER_HIGH_WATER_MARK;
+    private ResponseCompressionConfig compressionConfig = new ResponseCompressionConfig();
 
     private EventLoopGroup bossGroup;
     private EventLoopGroup workerGroup;
-    private DefaultEventExecutorGroup servletExecutor;
 
-    public NettyEmbeddedServletContainer(InetSocketAddress address, NettyEmbeddedContext context) {
+    /**
+     * @param servletExecutionMode how servlet requests are run, on a pool of {@code servletThreads} threads with a
+     *                             queue of {@code servletQueueCapacity} requests, or on at most
+     *                             {@code maxVirtualThreads} virtual threads
+     */
+    public NettyEmbeddedServletContainer(InetSocketAddress address, NettyEmbeddedContext context,
+                                         WorkerExecutor.Mode servletExecutionMode, int servletThreads,
+                                         int servletQueueCapacity, int maxVirtualThreads,
+                                         RequestContentConfig contentConfig, ProtocolDetector protocolDetector,
+                                         ThriftServerConfig thriftConfig) {
         this.address = address;
         this.context = context;
+        this.servletExecutionMode = servletExecutionMode;
+        this.servletThreads = servletThreads;
+        this.servletQueueCapacity = servletQueueCapacity;
+        this.maxVirtualThreads = maxVirtualThreads;
+        this.contentConfig = contentConfig;
+        this.protocolDetector = protocolDetector;
+        this.thriftConfig = thriftConfig;
     }
 
     @Override
     public void start() throws EmbeddedServletContainerException {
         ServerBootstrap b = new ServerBootstrap();
         groups(b);
-//        servletExecutor = new DefaultEventExecutorGroup(50);
-//        b.childHandler(new NettyEmbeddedServletInitializer(servletExecutor, context));
+        HttpDateHeader.schedule(workerGroup);
+        servletExecutor = new WorkerExecutor(servletExecutionMode, servletThreads, servletQueueCapacity, maxVirtualThreads);
+        logger.info("Servlet executor: " + servletExecutor);
+        context.setAttribute(WorkerExecutor.ATTRIBUTE, servletExecutor);
+        context.setAttribute(ProtocolDetector.ATTRIBUTE, protocolDetector);
+        context.setAttribute(ThriftServerConfig.ATTRIBUTE, thriftConfig);
+        if (thriftConfig.getWorkerThreads() > 0) {
+            thriftExecutor = new WorkerExecutor("nebo-thrift", WorkerExecutor.Mode.POOLED, thriftConfig.getWorkerThreads(),
+                    thriftConfig.getQueueCapacity(), 0);
+            logger.info("Thrift executor: " + thriftExecutor);
+            context.setAttribute(ThriftServerConfig.EXECUTOR_ATTRIBUTE, thriftExecutor);
+        }
+        final RequestDispatcherHandler requestDispatcherHandler = new RequestDispatcherHandler(context, servletExecutor);
+        final List<ProtocolRouter> protocolRouters = ProtocolRouterFactory.loadAllProtocolRouter(context);
+        HessianServiceRegistry hessianRegistry = HessianServiceRegistry.fromBeanFactory(
+                WebApplicationContextUtils.findWebApplicationContext(context));
+        context.setHessianRegistry(hessianRegistry);
+        final CompressedResponseCache compressedResponseCache = compressionConfig.isEnabled() && compressionConfig.getCacheSize() > 0
+                ? new CompressedResponseCache(compressionConfig.getCacheSize()) : null;
         b.childHandler(new ChannelInitializer() {
             @Override
             protected void initChannel(Channel ch) throws Exception {
-                ch.pipeline().addLast(new DispatcherInbound(address, context));
+                ch.pipeline().addLast(new DispatcherInbound(address, context, requestDispatcherHandler, contentConfig, protocolRouters,
+                        protocolDetector, compressionConfig, compressedResponseCache));
             }
         });
         // Don't yet need the complexity of lifecycle state, listeners etc, so tell the context it's initialised here
@@ -92,7 +147,7 @@ public class NettyEmbeddedServletContainer implements EmbeddedServletContainer {
         }
         logger.info(context.getServerInfo() + " started on port: " + getPort());
         context.setInitialised(true);
-        context.addFilter(HessianConstant.HESSIAN_PATH,new HessianFilter(context));
+        context.addFilter(HessianConstant.HESSIAN_PATH, new HessianFilter(hessianRegistry));
         ServletNettyHttpSessionManager.start();
     }
 
@@ -112,9 +167,34 @@ public class NettyEmbeddedServletContainer implements EmbeddedServletContainer {
         b.option(ChannelOption.TCP_NODELAY, true)
                 .option(ChannelOption.SO_REUSEADDR, true)
                 .option(ChannelOption.SO_BACKLOG, 100);
+        // Applied in order, and each has to stay consistent with the other's current value
+        if (writeBufferLowWaterMark > DEFAULT_WRITE_BUFFER_HIGH_WATER_MARK) {
+            b.childOption(ChannelOption.WRITE_BUFFER_HIGH_WATER_MARK, writeBufferHighWaterMark)
+                    .childOption(ChannelOption.WRITE_BUFFER_LOW_WATER_MARK, writeBufferLowWaterMark);
+        } else {
+            b.childOption(ChannelOption.WRITE_BUFFER_LOW_WATER_MARK, writeBufferLowWaterMark)
+                    .childOption(ChannelOption.WRITE_BUFFER_HIGH_WATER_MARK, writeBufferHighWaterMark);
+        }
         logger.info("Bootstrap configuration: " + b.toString());
     }
 
+    /**
+     * Set how many bytes may be queued for writing to a connection before it stops being writable, which parks
+     * servlets writing their response, and the level at which it becomes writable again.
+     */
+    public void setWriteBufferWaterMarks(int lowWaterMark, int highWaterMark) {
+        checkArgument(lowWaterMark >= 0 && lowWaterMark <= highWaterMark, "lowWaterMark must be between 0 and highWaterMark");
+        this.writeBufferLowWaterMark = lowWaterMark;
+        this.writeBufferHighWaterMark = highWaterMark;
+    }
+
+    /**
+     * Set how HTTP responses are compressed.
+     */
+    public void setCompressionConfig(ResponseCompressionConfig compressionConfig) {
+        this.compressionConfig = checkNotNull(compressionConfig);
+    }
+
     @Override
     public void stop() throws EmbeddedServletContainerException {
         try {
@@ -125,7 +205,12 @@ public class NettyEmbeddedServletContainer implements EmbeddedServletContainer {
                 workerGroup.shutdownGracefully().await();
             }
             if (null != servletExecutor) {
-                servletExecutor.shutdownGracefully().await();
+                servletExecutor.shutdown();
+                servletExecutor = null;
+            }
+            if (null != thriftExecutor) {
+                thriftExecutor.shutdown();
+                thriftExecutor = null;
             }
         } catch (InterruptedException e) {
             throw new EmbeddedServletContainerException("Container stop interrupted", e);
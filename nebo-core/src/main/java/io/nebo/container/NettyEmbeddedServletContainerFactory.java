@@ -17,8 +17,11 @@
 
 package io.nebo.container;
 
+import io.nebo.protocol.ProtocolDetector;
+import io.nebo.thrift.ThriftServerConfig;
 import io.netty.bootstrap.Bootstrap;
 import org.springframework.boot.context.embedded.AbstractEmbeddedServletContainerFactory;
+import org.springframework.boot.context.embedded.Compression;
 import org.springframework.boot.context.embedded.EmbeddedServletContainer;
 import org.springframework.boot.context.embedded.ServletContextInitializer;
 import org.springframework.context.ResourceLoaderAware;
@@ -38,7 +41,22 @@ import java.util.Random;
  */
 public class NettyEmbeddedServletContainerFactory extends AbstractEmbeddedServletContainerFactory implements ResourceLoaderAware {
     public static final String SERVER_INFO = "netty/servlet";
+    private static final int DEFAULT_SERVLET_THREADS = 50;
+    private static final int DEFAULT_SERVLET_QUEUE_CAPACITY = 1024;
+    private static final int DEFAULT_MAX_VIRTUAL_THREADS = 10000;
+    private static final long DEFAULT_PROTOCOL_DETECTION_TIMEOUT = 5000;
     private ResourceLoader resourceLoader;
+    private int servletThreads = DEFAULT_SERVLET_THREADS;
+    private int servletQueueCapacity = DEFAULT_SERVLET_QUEUE_CAPACITY;
+    private WorkerExecutor.Mode servletExecutionMode = WorkerExecutor.Mode.POOLED;
+    private int maxVirtualThreads = DEFAULT_MAX_VIRTUAL_THREADS;
+    private final RequestContentConfig contentConfig = new RequestContentConfig();
+    private final ResponseCompressionConfig compressionConfig = new ResponseCompressionConfig();
+    private long protocolDetectionTimeout = DEFAULT_PROTOCOL_DETECTION_TIMEOUT;
+    private long requestTimeout;
+    private final ThriftServerConfig thriftConfig = new ThriftServerConfig();
+    private int writeBufferLowWaterMark = NettyEmbeddedServletContainer.DEFAULT_WRITE_BUFFER_LOW_WATER_MARK;
+    private int writeBufferHighWaterMark = NettyEmbeddedServletContainer.DEFAULT_WRITE_BUFFER_HIGH_WATER_MARK;
 
     @Override
     public EmbeddedServletContainer getEmbeddedServletContainer(ServletContextInitializer... initializers) {
@@ -48,6 +66,7 @@ public class NettyEmbeddedServletContainerFactory extends AbstractEmbeddedServle
         String version = nettyPackage.getImplementationVersion();
         logger.info("Running with " + title + " " + version);
         NettyEmbeddedContext context = new NettyEmbeddedContext(getContextPath(), new URLClassLoader(new URL[]{}, parentClassLoader), SERVER_INFO);
+        context.setRequestTimeoutMillis(requestTimeout);
         if (isRegisterDefaultServlet()) {
             logger.warn("This container does not support a default servlet");
         }
@@ -62,7 +81,157 @@ public class NettyEmbeddedServletContainerFactory extends AbstractEmbeddedServle
         int port = getPort() > 0 ? getPort() : new Random().nextInt(65535 - 1024) + 1024;
         InetSocketAddress address = new InetSocketAddress(port);
         logger.info("Server initialized with port: " + port);
-        return new NettyEmbeddedServletContainer(address, context);
+        ProtocolDetector protocolDetector = new ProtocolDetector(protocolDetectionTimeout);
+        NettyEmbeddedServletContainer container = new NettyEmbeddedServletContainer(address, context, servletExecutionMode,
+                servletThreads, servletQueueCapacity, maxVirtualThreads, contentConfig, protocolDetector, thriftConfig);
+        container.setWriteBufferWaterMarks(writeBufferLowWaterMark, writeBufferHighWaterMark);
+        Compression compression = getCompression();
+        if (compression != null && compression.getEnabled()) {
+            compressionConfig.setEnabled(true);
+            compressionConfig.setMimeTypes(compression.getMimeTypes());
+            compressionConfig.setMinResponseSize(compression.getMinResponseSize());
+            if (compression.getExcludedUserAgents() != null) {
+                compressionConfig.setExcludedUserAgents(compression.getExcludedUserAgents());
+            }
+        }
+        container.setCompressionConfig(compressionConfig);
+        return container;
+    }
+
+    /**
+     * Set the number of threads shared by all connections for servlet dispatch.
+     */
+    public void setServletThreads(int servletThreads) {
+        this.servletThreads = servletThreads;
+    }
+
+    /**
+     * Set how many requests may wait for a servlet thread before new requests are answered with a 503.
+     */
+    public void setServletQueueCapacity(int servletQueueCapacity) {
+        this.servletQueueCapacity = servletQueueCapacity;
+    }
+
+    /**
+     * Set whether servlets run on the shared thread pool or on one virtual thread per request. Virtual threads
+     * require a Java 21 runtime, otherwise the pooled mode is used.
+     */
+    public void setServletExecutionMode(WorkerExecutor.Mode servletExecutionMode) {
+        this.servletExecutionMode = servletExecutionMode;
+    }
+
+    /**
+     * Set how many requests may run concurrently in virtual thread mode before new requests are answered with a 503.
+     */
+    public void setMaxVirtualThreads(int maxVirtualThreads) {
+        this.maxVirtualThreads = maxVirtualThreads;
+    }
+
+    /**
+     * Set the default maximum request body size. Larger requests are answered with a 413.
+     */
+    public void setMaxContentLength(long maxContentLength) {
+        contentConfig.setMaxContentLength(maxContentLength);
+    }
+
+    /**
+     * Set the maximum request body size for request URIs starting with {@code pathPrefix}.
+     */
+    public void setMaxContentLength(String pathPrefix, long maxContentLength) {
+        contentConfig.setMaxContentLength(pathPrefix, maxContentLength);
+    }
+
+    /**
+     * Set whether servlets are dispatched as soon as the request headers arrive and read the body while it is
+     * still being received, instead of after the whole body has been received.
+     */
+    public void setRequestBodyStreaming(boolean streaming) {
+        contentConfig.setStreaming(streaming);
+    }
+
+    /**
+     * Set how many request body bytes may be queued for a streaming servlet before reads from the connection are
+     * suspended, and the level at which they are resumed.
+     */
+    public void setRequestBodyWaterMarks(int lowWaterMark, int highWaterMark) {
+        contentConfig.setWaterMarks(lowWaterMark, highWaterMark);
+    }
+
+    /**
+     * Set how many response bytes may be queued for a connection before servlets writing to it wait for the client
+     * to catch up, and the level at which they resume.
+     */
+    public void setWriteBufferWaterMarks(int lowWaterMark, int highWaterMark) {
+        this.writeBufferLowWaterMark = lowWaterMark;
+        this.writeBufferHighWaterMark = highWaterMark;
+    }
+
+    /**
+     * Set the deflate level, from 0 to 9, responses are compressed with when {@link #setCompression compression} is
+     * enabled.
+     */
+    public void setCompressionLevel(int compressionLevel) {
+        compressionConfig.setCompressionLevel(compressionLevel);
+    }
+
+    /**
+     * Set how many bytes of compressed bodies of cacheable responses are kept so they aren't compressed again on
+     * every hit, or {@code 0} to compress every response.
+     */
+    public void setCompressedResponseCacheSize(long cacheSize) {
+        compressionConfig.setCacheSize(cacheSize);
+    }
+
+    /**
+     * Set how long a new connection may take to send enough bytes for its protocol to be detected before it is
+     * closed.
+     */
+    public void setProtocolDetectionTimeout(long protocolDetectionTimeout) {
+        this.protocolDetectionTimeout = protocolDetectionTimeout;
+    }
+
+    /**
+     * Set how long, in milliseconds, any HTTP, Hessian or Thrift request may take before the container gives up on
+     * it, or {@code 0} for no limit. Clients can ask for less with a timeout header, see {@link RequestDeadline}.
+     */
+    public void setRequestTimeout(long requestTimeout) {
+        this.requestTimeout = requestTimeout;
+    }
+
+    /**
+     * Set the number of threads Thrift calls run on, or {@code 0} to run them on the connection's IO thread.
+     */
+    public void setThriftWorkerThreads(int workerThreads) {
+        thriftConfig.setWorkerThreads(workerThreads);
+    }
+
+    /**
+     * Set how many Thrift calls may wait for a worker thread before new calls are rejected with an exception.
+     */
+    public void setThriftQueueCapacity(int queueCapacity) {
+        thriftConfig.setQueueCapacity(queueCapacity);
+    }
+
+    /**
+     * Set how many Thrift calls a single connection may have in flight before reads from it are suspended.
+     */
+    public void setThriftMaxPipelinedRequests(int maxPipelinedRequests) {
+        thriftConfig.setMaxPipelinedRequests(maxPipelinedRequests);
+    }
+
+    /**
+     * Set whether Thrift responses are written as soon as they are ready rather than in request order. Only enable
+     * this if every client matches responses to requests by seqid.
+     */
+    public void setThriftOutOfOrderResponses(boolean outOfOrderResponses) {
+        thriftConfig.setOutOfOrderResponses(outOfOrderResponses);
+    }
+
+    /**
+     * Set the largest Thrift message accepted, in bytes. Connections sending larger messages are closed.
+     */
+    public void setThriftMaxFrameSize(int maxFrameSize) {
+        thriftConfig.setMaxFrameSize(maxFrameSize);
     }
 
     @Override
@@ -21,7 +21,6 @@ import io.netty.channel.ChannelInitializer;
 import io.netty.channel.ChannelPipeline;
 import io.netty.channel.socket.SocketChannel;
 import io.netty.handler.codec.http.HttpServerCodec;
-import io.netty.util.concurrent.EventExecutorGroup;
 
 import static com.google.common.base.Preconditions.checkNotNull;
 
@@ -31,21 +30,21 @@ import static com.google.common.base.Preconditions.checkNotNull;
  * @author Danny Thomas
  */
 class NettyEmbeddedServletInitializer extends ChannelInitializer<SocketChannel> {
-    private final EventExecutorGroup servletExecutor;
+    private final WorkerExecutor servletExecutor;
     private final RequestDispatcherHandler requestDispatcherHandler;
     private final NettyEmbeddedContext servletContext;
 
-    public NettyEmbeddedServletInitializer(EventExecutorGroup servletExecutor, NettyEmbeddedContext servletContext) {
+    public NettyEmbeddedServletInitializer(WorkerExecutor servletExecutor, NettyEmbeddedContext servletContext) {
         this.servletContext = servletContext;
         this.servletExecutor = checkNotNull(servletExecutor);
-        requestDispatcherHandler = new RequestDispatcherHandler(servletContext);
+        requestDispatcherHandler = new RequestDispatcherHandler(servletContext, servletExecutor);
     }
 
     @Override
     protected void initChannel(SocketChannel ch) throws Exception {
         ChannelPipeline p = ch.pipeline();
         p.addLast("codec", new HttpServerCodec(4096, 8192, 8192, false));
-        p.addLast("servletInput", new ServletContentHandler(servletContext,p.channel()));
-        p.addLast(servletExecutor, "filterChain", requestDispatcherHandler);
+        p.addLast("servletInput", new ServletContentHandler(servletContext, new RequestContentConfig()));
+        p.addLast("filterChain", requestDispatcherHandler);
     }
 }
@@ -52,6 +52,7 @@ public  class NettyHttpServletRequest implements HttpServletRequest {
     private InetSocketAddress insocket;
     private String requestURI;
     private String queryString;
+    private RequestDeadline deadline;
     NettyHttpServletRequest(ChannelHandlerContext ctx, NettyEmbeddedContext servletContext, HttpRequest request,ServletInputStream inputStream,HttpServletResponse servletResponse) {
         this.ctx = ctx;
         this.servletContext = servletContext;
@@ -432,11 +433,15 @@ public  class NettyHttpServletRequest implements HttpServletRequest {
 
     @Override
     public AsyncContext startAsync() {
-        return startAsync(this, null);
+        return startAsync(this, servletResponse);
     }
 
     @Override
     public AsyncContext startAsync(ServletRequest servletRequest, ServletResponse servletResponse) {
+        if (this.servletResponse instanceof NettyHttpServletResponse) {
+            // From now on the response may be streamed, so flushes have to reach the client
+            ((NettyHttpServletResponse) this.servletResponse).getResponseOutputStream().startAsync();
+        }
         return ((NettyAsyncContext) getAsyncContext()).startAsync(servletRequest, servletResponse);
     }
 
@@ -475,6 +480,14 @@ public  class NettyHttpServletRequest implements HttpServletRequest {
         return request;
     }
 
+    public RequestDeadline getDeadline() {
+        return deadline;
+    }
+
+    void setDeadline(RequestDeadline deadline) {
+        this.deadline = deadline;
+    }
+
 
     public String getCookie(String key) {
         Cookie[] cookies = this.getCookies();
@@ -20,12 +20,13 @@ package io.nebo.container;
 import com.google.common.base.Optional;
 import com.google.common.net.MediaType;
 import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.http.HttpHeaderNames;
 import io.netty.handler.codec.http.HttpHeaders;
 import io.netty.handler.codec.http.HttpResponse;
 import io.netty.handler.codec.http.HttpResponseStatus;
 import io.netty.handler.codec.http.cookie.DefaultCookie;
 import io.netty.handler.codec.http.cookie.ServerCookieEncoder;
-import io.netty.util.concurrent.FastThreadLocal;
+import io.netty.util.AsciiString;
 
 import javax.servlet.ServletOutputStream;
 import javax.servlet.http.Cookie;
@@ -35,9 +36,9 @@ import java.io.PrintWriter;
 import java.io.UnsupportedEncodingException;
 import java.net.URLEncoder;
 import java.nio.charset.Charset;
-import java.text.DateFormat;
-import java.text.SimpleDateFormat;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import static com.google.common.base.Preconditions.checkState;
 import static io.netty.handler.codec.http.HttpHeaders.Names.LOCATION;
@@ -48,15 +49,12 @@ import static io.netty.handler.codec.http.HttpHeaders.Names.LOCATION;
  * @author Danny Thomas
  */
 public class NettyHttpServletResponse implements HttpServletResponse {
-    private static final FastThreadLocal<DateFormat> FORMAT = new FastThreadLocal<DateFormat>() {
-        @Override
-        protected DateFormat initialValue() {
-            return new SimpleDateFormat("E, dd MMM yyyy HH:mm:ss z");
-        }
-    };
-
     private static final Locale DEFAULT_LOCALE = Locale.getDefault();
     private static final String DEFAULT_CHARACTER_ENCODING = "UTF-8";
+    private static final AsciiString DEFAULT_CONTENT_TYPE = new AsciiString("text/html;charset=" + DEFAULT_CHARACTER_ENCODING);
+    // Content-Type values with the default charset, encoded once for each content type responses are sent with
+    private static final ConcurrentMap<String, AsciiString> CONTENT_TYPES = new ConcurrentHashMap<>();
+    private static final int MAX_CACHED_CONTENT_TYPES = 64;
 
     private final NettyEmbeddedContext servletContext;
     private HttpResponse response;
@@ -67,14 +65,12 @@ public class NettyHttpServletResponse implements HttpServletResponse {
     private List<Cookie> cookies;
     private String contentType;
     private String characterEncoding = DEFAULT_CHARACTER_ENCODING;
-    private static  String DEFAULT_CONTENT_TYPE = "text/html;charset=" + DEFAULT_CHARACTER_ENCODING;
     private Locale locale;
 
     NettyHttpServletResponse(ChannelHandlerContext ctx, NettyEmbeddedContext servletContext, HttpResponse response) {
         this.servletContext = servletContext;
         this.response = response;
         this.outputStream = new HttpResponseOutputStream(ctx, this);
-        this.writer = new PrintWriter(outputStream);
         cookies = new ArrayList<>();
     }
 
@@ -88,15 +84,14 @@ public class NettyHttpServletResponse implements HttpServletResponse {
         committed = true;
         HttpHeaders headers = response.headers();
         if (null != contentType) {
-            String value = null == characterEncoding ? contentType : contentType + "; charset=" + characterEncoding;
-            headers.set(HttpHeaders.Names.CONTENT_TYPE, value);
+            headers.set(HttpHeaderNames.CONTENT_TYPE, contentTypeValue(contentType, characterEncoding));
         }else {
-            headers.set(HttpHeaders.Names.CONTENT_TYPE,
+            headers.set(HttpHeaderNames.CONTENT_TYPE,
                     DEFAULT_CONTENT_TYPE);
         }
 
-        headers.set(HttpHeaders.Names.DATE, new Date());
-        headers.set(HttpHeaders.Names.SERVER, servletContext.getServerInfoAscii());
+        headers.set(HttpHeaderNames.DATE, HttpDateHeader.get());
+        headers.set(HttpHeaderNames.SERVER, servletContext.getServerInfoAscii());
 
         for(Cookie ck : cookies) {
             io.netty.handler.codec.http.cookie.Cookie  nettyCookie = new DefaultCookie(ck.getName(),ck.getValue());
@@ -111,6 +106,23 @@ public class NettyHttpServletResponse implements HttpServletResponse {
         return response;
     }
 
+    private static CharSequence contentTypeValue(String contentType, String characterEncoding) {
+        if (null == characterEncoding) {
+            return contentType;
+        }
+        if (!DEFAULT_CHARACTER_ENCODING.equals(characterEncoding)) {
+            return contentType + "; charset=" + characterEncoding;
+        }
+        AsciiString value = CONTENT_TYPES.get(contentType);
+        if (null == value) {
+            value = new AsciiString(contentType + "; charset=" + characterEncoding);
+            if (CONTENT_TYPES.size() < MAX_CACHED_CONTENT_TYPES) {
+                CONTENT_TYPES.putIfAbsent(contentType, value);
+            }
+        }
+        return value;
+    }
+
     @Override
     public void addCookie(Cookie cookie) {
         cookies.add(cookie);
@@ -256,6 +268,10 @@ public class NettyHttpServletResponse implements HttpServletResponse {
         return contentType;
     }
 
+    HttpResponseOutputStream getResponseOutputStream() {
+        return outputStream;
+    }
+
     @Override
     public ServletOutputStream getOutputStream() throws IOException {
 //        checkState(!hasWriter(), "getWriter has already been called for this response");
@@ -266,12 +282,22 @@ public class NettyHttpServletResponse implements HttpServletResponse {
     @Override
     public PrintWriter getWriter() throws IOException {
 ////        checkState(!usingOutputStream, "getOutputStream has already been called for this response");
-//        if (!hasWriter()) {
-//            writer = new PrintWriter(outputStream);
-//        }
+        // Created on first use, it buffers 24 KB of its own
+        if (!hasWriter()) {
+            writer = new PrintWriter(outputStream);
+        }
         return writer;
     }
 
+    /**
+     * Write out what the writer still holds, if the servlet has used one, and close it along with the output stream.
+     */
+    void closeWriter() {
+        if (hasWriter()) {
+            writer.close();
+        }
+    }
+
     @Override
     public void setCharacterEncoding(String charset) {
         if (hasWriter()) {
@@ -328,7 +354,7 @@ public class NettyHttpServletResponse implements HttpServletResponse {
     @Override
     public void flushBuffer() throws IOException {
         checkNotCommitted();
-        outputStream.flush();
+        outputStream.flushBuffer();
     }
 
     @Override
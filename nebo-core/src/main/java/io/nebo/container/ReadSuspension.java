@@ -0,0 +1,65 @@
+package io.nebo.container;
+
+import io.netty.channel.Channel;
+import io.netty.util.Attribute;
+import io.netty.util.AttributeKey;
+
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * The reasons reads are suspended on a channel. Several handlers hold reads back for reasons of their own, such as
+ * {@link HttpPipeliningHandler} keeping requests in order and {@link HttpContentInputStream} waiting for its reader to
+ * catch up, so rather than switching {@code autoRead} themselves, which would resume reads another of them still needs
+ * suspended, each one holds a reason of its own here. Reads are resumed once no reason is held.
+ * <p/>
+ * Only used on the channel's event loop.
+ */
+public final class ReadSuspension {
+    private static final AttributeKey<ReadSuspension> KEY = AttributeKey.valueOf(ReadSuspension.class.getName());
+
+    private final Channel channel;
+    private final Set<Object> reasons = new HashSet<>();
+
+    private ReadSuspension(Channel channel) {
+        this.channel = channel;
+    }
+
+    /**
+     * @return the read suspension of a channel, created on first use
+     */
+    public static ReadSuspension of(Channel channel) {
+        Attribute<ReadSuspension> attribute = channel.attr(KEY);
+        ReadSuspension suspension = attribute.get();
+        if (suspension == null) {
+            suspension = new ReadSuspension(channel);
+            ReadSuspension existing = attribute.setIfAbsent(suspension);
+            if (existing != null) {
+                suspension = existing;
+            }
+        }
+        return suspension;
+    }
+
+    /**
+     * Suspend reads until {@link #resume(Object)} is called with the same reason. Holding a reason twice is harmless.
+     */
+    public void suspend(Object reason) {
+        if (reasons.add(reason) && reasons.size() == 1) {
+            channel.config().setAutoRead(false);
+        }
+    }
+
+    /**
+     * Give up a reason, resuming reads if it was the last one held. Giving up a reason that isn't held is harmless.
+     */
+    public void resume(Object reason) {
+        if (reasons.remove(reason) && reasons.isEmpty()) {
+            channel.config().setAutoRead(true);
+        }
+    }
+
+    public boolean isSuspended(Object reason) {
+        return reasons.contains(reason);
+    }
+}
@@ -0,0 +1,86 @@
+package io.nebo.container;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * How request bodies are received: the maximum body size, optionally overridden per path prefix, and whether
+ * servlets are dispatched before the body has fully arrived.
+ * <p/>
+ * In streaming mode the servlet is dispatched as soon as the request headers are decoded and reads the body from
+ * {@link javax.servlet.ServletRequest#getInputStream()} while later chunks are still arriving. Reads from the channel
+ * are suspended while more than {@link #getHighWaterMark()} bytes are queued for the servlet, and resumed once it
+ * has drained the queue below {@link #getLowWaterMark()}. Form posts are always received in full before dispatch
+ * so that their parameters are available.
+ */
+public class RequestContentConfig {
+    public static final int DEFAULT_MAX_CONTENT_LENGTH = 65536;
+    public static final int DEFAULT_HIGH_WATER_MARK = 256 * 1024;
+    public static final int DEFAULT_LOW_WATER_MARK = 64 * 1024;
+
+    private long maxContentLength = DEFAULT_MAX_CONTENT_LENGTH;
+    private final Map<String, Long> pathMaxContentLengths = new LinkedHashMap<>();
+    private boolean streaming;
+    private int highWaterMark = DEFAULT_HIGH_WATER_MARK;
+    private int lowWaterMark = DEFAULT_LOW_WATER_MARK;
+
+    public long getMaxContentLength() {
+        return maxContentLength;
+    }
+
+    public void setMaxContentLength(long maxContentLength) {
+        checkArgument(maxContentLength >= 0, "maxContentLength must not be negative");
+        this.maxContentLength = maxContentLength;
+    }
+
+    /**
+     * Override the maximum body size for request URIs starting with {@code pathPrefix}. The longest matching prefix
+     * wins.
+     */
+    public void setMaxContentLength(String pathPrefix, long maxContentLength) {
+        checkNotNull(pathPrefix);
+        checkArgument(maxContentLength >= 0, "maxContentLength must not be negative");
+        pathMaxContentLengths.put(pathPrefix, maxContentLength);
+    }
+
+    /**
+     * Get the maximum body size that applies to a request URI.
+     */
+    public long getMaxContentLength(String uri) {
+        long limit = maxContentLength;
+        int matchLength = -1;
+        for (Map.Entry<String, Long> entry : pathMaxContentLengths.entrySet()) {
+            String prefix = entry.getKey();
+            if (prefix.length() > matchLength && uri.startsWith(prefix)) {
+                limit = entry.getValue();
+                matchLength = prefix.length();
+            }
+        }
+        return limit;
+    }
+
+    public boolean isStreaming() {
+        return streaming;
+    }
+
+    public void setStreaming(boolean streaming) {
+        this.streaming = streaming;
+    }
+
+    public int getHighWaterMark() {
+        return highWaterMark;
+    }
+
+    public int getLowWaterMark() {
+        return lowWaterMark;
+    }
+
+    public void setWaterMarks(int lowWaterMark, int highWaterMark) {
+        checkArgument(lowWaterMark >= 0 && lowWaterMark <= highWaterMark, "lowWaterMark must be between 0 and highWaterMark");
+        this.lowWaterMark = lowWaterMark;
+        this.highWaterMark = highWaterMark;
+    }
+}
@@ -0,0 +1,109 @@
+package io.nebo.container;
+
+/**
+ * The time by which a request has to be answered, and whether the container has given up on it.
+ * <p/>
+ * Clients send how long they are prepared to wait, in milliseconds, in the {@link #HEADER} HTTP header, which covers
+ * Hessian too, or in the {@link #THRIFT_HEADER} info header of a THeader frame. The container's request timeout
+ * applies when the client sends none or a longer one. Requests still queued for a worker thread once their deadline
+ * has passed are shed without running. Running work can poll {@link #isCancelled()} on {@link #current()}, which also
+ * turns {@code true} once the client has disconnected.
+ */
+public final class RequestDeadline {
+    public static final String HEADER = "X-Request-Timeout";
+    public static final String THRIFT_HEADER = "client_timeout";
+
+    private static final ThreadLocal<RequestDeadline> CURRENT = new ThreadLocal<>();
+
+    // System.nanoTime() based, only meaningful when bounded
+    private final long deadlineNanos;
+    private final boolean bounded;
+    private volatile boolean cancelled;
+
+    private RequestDeadline(long timeoutMillis) {
+        this.bounded = timeoutMillis >= 0;
+        this.deadlineNanos = bounded ? System.nanoTime() + timeoutMillis * 1000000L : 0;
+    }
+
+    /**
+     * Start the clock of a request that has just been received.
+     *
+     * @param clientTimeout        the timeout the client sent, or {@code null}. Malformed values are ignored.
+     * @param defaultTimeoutMillis the container's request timeout, {@code 0} for none
+     */
+    public static RequestDeadline start(String clientTimeout, long defaultTimeoutMillis) {
+        long timeoutMillis = defaultTimeoutMillis > 0 ? defaultTimeoutMillis : -1;
+        if (clientTimeout != null) {
+            try {
+                long clientTimeoutMillis = Long.parseLong(clientTimeout.trim());
+                if (clientTimeoutMillis >= 0 && (timeoutMillis < 0 || clientTimeoutMillis < timeoutMillis)) {
+                    timeoutMillis = clientTimeoutMillis;
+                }
+            } catch (NumberFormatException e) {
+                // No usable client timeout
+            }
+        }
+        return new RequestDeadline(timeoutMillis);
+    }
+
+    /**
+     * @return the deadline of the request being processed by the calling thread, or {@code null}
+     */
+    public static RequestDeadline current() {
+        return CURRENT.get();
+    }
+
+    /**
+     * Bind the deadline of the request the calling thread is about to work on, or unbind it with {@code null}.
+     */
+    public static void setCurrent(RequestDeadline deadline) {
+        if (deadline != null) {
+            CURRENT.set(deadline);
+        } else {
+            CURRENT.remove();
+        }
+    }
+
+    /**
+     * @return {@code true} if the request has a deadline at all
+     */
+    public boolean isBounded() {
+        return bounded;
+    }
+
+    public boolean isExpired() {
+        return bounded && System.nanoTime() - deadlineNanos >= 0;
+    }
+
+    /**
+     * @return the milliseconds left until the deadline, {@code 0} once it has passed, or {@link Long#MAX_VALUE} if the
+     * request has none
+     */
+    public long getRemainingMillis() {
+        if (!bounded) {
+            return Long.MAX_VALUE;
+        }
+        return Math.max(0, (deadlineNanos - System.nanoTime()) / 1000000L);
+    }
+
+    /**
+     * Give up on the request, for instance because its connection has been closed.
+     */
+    public void cancel() {
+        cancelled = true;
+    }
+
+    /**
+     * @return {@code true} once the request has been cancelled or its deadline has passed, after which its work can
+     * stop as the response won't be used
+     */
+    public boolean isCancelled() {
+        return cancelled || isExpired();
+    }
+
+    @Override
+    public String toString() {
+        return "RequestDeadline{" + (bounded ? "remaining=" + getRemainingMillis() + "ms" : "unbounded")
+                + (cancelled ? ", cancelled" : "") + '}';
+    }
+}
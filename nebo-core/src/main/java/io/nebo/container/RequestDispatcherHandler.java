@@ -23,7 +23,9 @@ import io.netty.channel.SimpleChannelInboundHandler;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
+import javax.servlet.ServletInputStream;
 import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
 
 import static com.google.common.base.Preconditions.checkNotNull;
 
@@ -37,9 +39,11 @@ import static com.google.common.base.Preconditions.checkNotNull;
 public class RequestDispatcherHandler extends SimpleChannelInboundHandler<NettyHttpServletRequest> {
     private final Log logger = LogFactory.getLog(getClass());
     private final NettyEmbeddedContext context;
+    private final WorkerExecutor servletExecutor;
 
-    public RequestDispatcherHandler(NettyEmbeddedContext context) {
+    public RequestDispatcherHandler(NettyEmbeddedContext context, WorkerExecutor servletExecutor) {
         this.context = checkNotNull(context);
+        this.servletExecutor = checkNotNull(servletExecutor);
     }
 
     @Override
@@ -48,7 +52,44 @@ public class RequestDispatcherHandler extends SimpleChannelInboundHandler<NettyH
     }
 
     @Override
-    protected void channelRead0(ChannelHandlerContext ctx, NettyHttpServletRequest request) throws Exception {
+    protected void channelRead0(ChannelHandlerContext ctx, final NettyHttpServletRequest request) throws Exception {
+        boolean accepted = servletExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    dispatch(request);
+                } catch (Exception e) {
+                    logger.error("Unexpected exception caught during request", e);
+                }
+            }
+        }, request.getDeadline(), new Runnable() {
+            @Override
+            public void run() {
+                logger.debug("Deadline of " + request.getRequestURI() + " passed before dispatch, shedding it");
+                try {
+                    respond(request, HttpServletResponse.SC_GATEWAY_TIMEOUT);
+                } catch (IOException e) {
+                    logger.error("Unexpected exception caught during request", e);
+                }
+            }
+        });
+        if (!accepted) {
+            logger.warn("Servlet executor saturated, rejecting " + request.getRequestURI() + " " + servletExecutor);
+            respond(request, HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+        }
+    }
+
+    /**
+     * Answer a request that won't reach a servlet with an empty response.
+     */
+    private static void respond(NettyHttpServletRequest request, int status) throws IOException {
+        HttpServletResponse servletResponse = (HttpServletResponse) request.getServletResponse();
+        servletResponse.setStatus(status);
+        servletResponse.getOutputStream().close();
+        releaseContent(request);
+    }
+
+    private void dispatch(NettyHttpServletRequest request) throws Exception {
         HttpServletResponse servletResponse = (HttpServletResponse) request.getServletResponse();
         try {
             NettyRequestDispatcher dispatcher = (NettyRequestDispatcher) context.getRequestDispatcher(request.getRequestURI());
@@ -57,19 +98,34 @@ public class RequestDispatcherHandler extends SimpleChannelInboundHandler<NettyH
                 return;
             }
             dispatcher.dispatch(request, servletResponse);
-            servletResponse.getWriter().flush();
-            servletResponse.getOutputStream().flush();
-            servletResponse.getWriter().close();
-            servletResponse.getOutputStream().close();
-        }catch (Exception e){
-            e.printStackTrace();
+            if (!request.isAsyncStarted()) {
+                // An async servlet completes the response itself
+                ((NettyHttpServletResponse) servletResponse).closeWriter();
+                servletResponse.getOutputStream().close();
+            }
+        } catch (Exception e) {
+            logger.error("Unexpected exception caught during request " + request.getRequestURI(), e);
+            if (!servletResponse.isCommitted()) {
+                // Whatever the servlet had buffered is dropped for the error
+                servletResponse.reset();
+                servletResponse.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+            }
         } finally {
             if (!request.isAsyncStarted()) {
                 servletResponse.getOutputStream().close();
+                releaseContent(request);
             }
         }
     }
 
+    private static void releaseContent(NettyHttpServletRequest request) throws IOException {
+        // Whatever part of the body the servlet didn't read is dropped, and reads resume if they were suspended
+        ServletInputStream inputStream = request.getInputStream();
+        if (inputStream instanceof HttpContentInputStream) {
+            ((HttpContentInputStream) inputStream).release();
+        }
+    }
+
     @Override
     public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) throws Exception {
         logger.error("Unexpected exception caught during request", cause);
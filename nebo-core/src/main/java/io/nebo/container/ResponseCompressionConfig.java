@@ -0,0 +1,130 @@
+package io.nebo.container;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * How HTTP responses are compressed: whether they are at all, which content types, from what size, and at which
+ * deflate level. Responses are compressed with gzip or deflate, whichever the client accepts, unless its user agent
+ * is excluded.
+ * <p/>
+ * Compressed bodies of responses that may be cached, according to their {@code Cache-Control} header, are kept in a
+ * cache of up to {@link #getCacheSize()} bytes, so that a body sent again is not compressed again.
+ */
+public class ResponseCompressionConfig {
+    public static final int DEFAULT_COMPRESSION_LEVEL = 6;
+    public static final int DEFAULT_MIN_RESPONSE_SIZE = 2048;
+    public static final long DEFAULT_CACHE_SIZE = 16 * 1024 * 1024;
+    public static final int DEFAULT_MAX_CACHED_RESPONSE_SIZE = 64 * 1024;
+    public static final String[] DEFAULT_MIME_TYPES = {"text/html", "text/xml", "text/plain", "text/css",
+            "text/javascript", "application/javascript", "application/json", "application/xml"};
+
+    private boolean enabled;
+    private int compressionLevel = DEFAULT_COMPRESSION_LEVEL;
+    private int minResponseSize = DEFAULT_MIN_RESPONSE_SIZE;
+    private Set<String> mimeTypes = new HashSet<>(Arrays.asList(DEFAULT_MIME_TYPES));
+    private List<Pattern> excludedUserAgents = new ArrayList<>();
+    private long cacheSize = DEFAULT_CACHE_SIZE;
+    private int maxCachedResponseSize = DEFAULT_MAX_CACHED_RESPONSE_SIZE;
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    public int getCompressionLevel() {
+        return compressionLevel;
+    }
+
+    public void setCompressionLevel(int compressionLevel) {
+        checkArgument(compressionLevel >= 0 && compressionLevel <= 9, "compressionLevel must be between 0 and 9");
+        this.compressionLevel = compressionLevel;
+    }
+
+    public int getMinResponseSize() {
+        return minResponseSize;
+    }
+
+    /**
+     * Responses known to be smaller are sent as they are. Responses of unknown length are always compressed.
+     */
+    public void setMinResponseSize(int minResponseSize) {
+        checkArgument(minResponseSize >= 0, "minResponseSize must not be negative");
+        this.minResponseSize = minResponseSize;
+    }
+
+    public void setMimeTypes(String... mimeTypes) {
+        checkNotNull(mimeTypes);
+        Set<String> types = new HashSet<>();
+        for (String mimeType : mimeTypes) {
+            types.add(mimeType.trim().toLowerCase(Locale.ENGLISH));
+        }
+        this.mimeTypes = types;
+    }
+
+    /**
+     * @param contentType the value of a {@code Content-Type} header, parameters included
+     */
+    public boolean isCompressible(String contentType) {
+        int end = contentType.indexOf(';');
+        String mimeType = (end >= 0 ? contentType.substring(0, end) : contentType).trim().toLowerCase(Locale.ENGLISH);
+        return mimeTypes.contains(mimeType);
+    }
+
+    /**
+     * @param userAgents regular expressions matched against the whole {@code User-Agent} header
+     */
+    public void setExcludedUserAgents(String... userAgents) {
+        checkNotNull(userAgents);
+        List<Pattern> patterns = new ArrayList<>();
+        for (String userAgent : userAgents) {
+            patterns.add(Pattern.compile(userAgent));
+        }
+        this.excludedUserAgents = patterns;
+    }
+
+    public boolean isExcludedUserAgent(String userAgent) {
+        for (Pattern pattern : excludedUserAgents) {
+            if (pattern.matcher(userAgent).matches()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public long getCacheSize() {
+        return cacheSize;
+    }
+
+    /**
+     * Set how many bytes the cache of compressed bodies may take, counting the bodies both before and after
+     * compression, or {@code 0} to compress every response.
+     */
+    public void setCacheSize(long cacheSize) {
+        checkArgument(cacheSize >= 0, "cacheSize must not be negative");
+        this.cacheSize = cacheSize;
+    }
+
+    public int getMaxCachedResponseSize() {
+        return maxCachedResponseSize;
+    }
+
+    /**
+     * Set the size of the largest body, before compression, that is cached.
+     */
+    public void setMaxCachedResponseSize(int maxCachedResponseSize) {
+        checkArgument(maxCachedResponseSize >= 0, "maxCachedResponseSize must not be negative");
+        this.maxCachedResponseSize = maxCachedResponseSize;
+    }
+}
@@ -17,7 +17,7 @@
 
 package io.nebo.container;
 
-import io.netty.channel.Channel;
+import io.netty.channel.ChannelFutureListener;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.SimpleChannelInboundHandler;
 import io.netty.handler.codec.http.*;
@@ -25,89 +25,187 @@ import io.netty.handler.codec.http.multipart.*;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import javax.servlet.http.HttpServletRequest;
+import java.io.IOException;
 import java.util.List;
 import java.util.Map;
 
 /**
  * {@link io.netty.channel.ChannelInboundHandler} responsible for initial request handling, and getting received
  * {@link io.netty.handler.codec.http.HttpContent} messages to the {@link HttpContentInputStream} for the request.
+ * <p/>
+ * Bodies are not aggregated: each chunk is queued on the request's input stream. The request is dispatched once the
+ * body is complete, or as soon as the headers arrive when {@link RequestContentConfig#isStreaming() streaming}. Chunk
+ * arrivals and changes in the channel's writability drive the read and write listeners of servlets doing non-blocking
+ * I/O.
  */
 public class ServletContentHandler extends SimpleChannelInboundHandler<HttpObject> {
 
     private static final Logger log = LoggerFactory.getLogger(ServletContentHandler.class);
     private final NettyEmbeddedContext servletContext;
-    private HttpContentInputStream inputStream; // FIXME this feels wonky, need a better approach
-    private HttpServletRequest servletRequest;
-
-    public ServletContentHandler(NettyEmbeddedContext servletContext, Channel channel) {
+    private final RequestContentConfig contentConfig;
+    private HttpContentInputStream inputStream;
+    private NettyHttpServletRequest servletRequest;
+    private NettyHttpServletResponse servletResponse;
+    private boolean dispatched;
+    private boolean receiving;
+    private boolean discarding;
+    private long maxContentLength;
+    private long receivedLength;
+
+    public ServletContentHandler(NettyEmbeddedContext servletContext, RequestContentConfig contentConfig) {
         this.servletContext = servletContext;
-        inputStream = new HttpContentInputStream();
+        this.contentConfig = contentConfig;
     }
 
     private HttpDataFactory factory = new DefaultHttpDataFactory(DefaultHttpDataFactory.MINSIZE);
     private HttpPostRequestDecoder decoder;
 
-    @Override
-    public void channelActive(ChannelHandlerContext ctx) throws Exception {
-//        inputStream = new HttpContentInputStream(ctx.channel());
-        log.info("channelActive >>>>>>>>>>>>>>>>>>>>> ");
-   }
-
-
     @Override
     protected void channelRead0(ChannelHandlerContext ctx, HttpObject msg) throws Exception {
         if (msg instanceof HttpRequest) {
             HttpRequest request = (HttpRequest) msg;
-            log.info("uri" + request.getUri());
+            log.debug("uri" + request.getUri());
+            inputStream = null;
+            servletRequest = null;
+            servletResponse = null;
+            dispatched = false;
+            receiving = false;
+            discarding = false;
+            receivedLength = 0;
+            maxContentLength = contentConfig.getMaxContentLength(request.getUri());
+            if (HttpHeaders.getContentLength(request, -1) > maxContentLength) {
+                rejectTooLarge(ctx);
+                return;
+            }
             HttpResponse response = new DefaultHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.OK, false);
-            NettyHttpServletResponse servletResponse = new NettyHttpServletResponse(ctx, servletContext, response);
+            HttpHeaders.setKeepAlive(response, HttpHeaders.isKeepAlive(request));
+            inputStream = new HttpContentInputStream(ctx.channel(), contentConfig.getHighWaterMark(), contentConfig.getLowWaterMark());
+            servletResponse = new NettyHttpServletResponse(ctx, servletContext, response);
             servletRequest = new NettyHttpServletRequest(ctx, servletContext, request, inputStream, servletResponse);
-            if (HttpMethod.GET.equals(request.getMethod())) {
-                HttpHeaders.setKeepAlive(response, HttpHeaders.isKeepAlive(request));
-                if (HttpHeaders.is100ContinueExpected(request)) {
-                    ctx.write(new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.CONTINUE), ctx.voidPromise());
-                }
-                ctx.fireChannelRead(servletRequest);
-            } else if (HttpMethod.POST.equals(request.getMethod())) {
+            servletRequest.setDeadline(RequestDeadline.start(request.headers().get(RequestDeadline.HEADER),
+                    servletContext.getRequestTimeoutMillis()));
+            receiving = true;
+            if (HttpHeaders.is100ContinueExpected(request)) {
+                ctx.writeAndFlush(new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.CONTINUE), ctx.voidPromise());
+            }
+            if (isFormPost(request)) {
+                // Parameters have to be decoded before the servlet runs, so form posts are never streamed
                 decoder = new HttpPostRequestDecoder(factory, request);
+            } else if (contentConfig.isStreaming()) {
+                inputStream.setFlowControl(true);
+                dispatch(ctx);
             }
         }
 
+        if (discarding || !(msg instanceof HttpContent)) {
+            return;
+        }
+
+        HttpContent chunk = (HttpContent) msg;
+        receivedLength += chunk.content().readableBytes();
+        if (receivedLength > maxContentLength) {
+            rejectTooLarge(ctx);
+            return;
+        }
+        inputStream.addContent(chunk);
+        if (decoder != null && !(msg instanceof HttpRequest)) {
+            decoder.offer(chunk);
+        }
 
-        if (decoder != null && msg instanceof HttpContent) {
-            HttpContent chunk = (HttpContent) msg;
-            log.info("HttpContent" + chunk.content().readableBytes());
-            inputStream.addContent(chunk);
-            List<InterfaceHttpData> interfaceHttpDatas = decoder.getBodyHttpDatas();
-
-            for (InterfaceHttpData data : interfaceHttpDatas) {
-                try {
-                    if (data.getHttpDataType() == InterfaceHttpData.HttpDataType.Attribute) {
-                        Attribute attribute = (Attribute) data;
-                        Map<String, String[]> params = servletRequest.getParameterMap();
-                        HttpRequestUtils.setParamMap(attribute.getName(), attribute.getValue(), params);
-                    }
-                } finally {
-                   // data.release();
-                }
+        if (msg instanceof LastHttpContent) {
+            receiving = false;
+            if (decoder != null) {
+                decodeParameters();
+                reset();
             }
+            if (!dispatched) {
+                dispatch(ctx);
+            }
+        }
+    }
+
+    private static boolean isFormPost(HttpRequest request) {
+        if (!HttpMethod.POST.equals(request.getMethod())) {
+            return false;
+        }
+        String contentType = request.headers().get(HttpHeaders.Names.CONTENT_TYPE);
+        return contentType != null && (contentType.startsWith(HttpHeaders.Values.APPLICATION_X_WWW_FORM_URLENCODED)
+                || HttpPostRequestDecoder.isMultipart(request));
+    }
 
+    private void decodeParameters() throws IOException {
+        List<InterfaceHttpData> interfaceHttpDatas = decoder.getBodyHttpDatas();
+        Map<String, String[]> params = servletRequest.getParameterMap();
+        for (InterfaceHttpData data : interfaceHttpDatas) {
+            if (data.getHttpDataType() == InterfaceHttpData.HttpDataType.Attribute) {
+                Attribute attribute = (Attribute) data;
+                HttpRequestUtils.setParamMap(attribute.getName(), attribute.getValue(), params);
+            }
         }
+    }
+
+    private void dispatch(ChannelHandlerContext ctx) {
+        dispatched = true;
+        ctx.fireChannelRead(servletRequest);
+    }
 
-        if (decoder != null && msg instanceof LastHttpContent) {
-            ctx.fireChannelRead(servletRequest);
+    private void rejectTooLarge(ChannelHandlerContext ctx) {
+        discarding = true;
+        receiving = false;
+        if (decoder != null) {
             reset();
         }
+        if (dispatched) {
+            // The servlet already owns the response, all that is left is to fail its read and drop the connection
+            inputStream.fail(new IOException("Request body exceeds " + maxContentLength + " bytes"));
+            ctx.close();
+            return;
+        }
+        if (inputStream != null) {
+            inputStream.release();
+        }
+        log.warn("Request body exceeds " + maxContentLength + " bytes, closing connection");
+        FullHttpResponse response = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.REQUEST_ENTITY_TOO_LARGE);
+        HttpHeaders.setContentLength(response, 0);
+        HttpHeaders.setKeepAlive(response, false);
+        ctx.writeAndFlush(response).addListener(ChannelFutureListener.CLOSE);
+    }
+
+    /**
+     * Resume the blocked writer or the write listener of the response being written once the channel is writable again.
+     */
+    @Override
+    public void channelWritabilityChanged(ChannelHandlerContext ctx) throws Exception {
+        if (servletResponse != null && dispatched) {
+            servletResponse.getResponseOutputStream().writabilityChanged();
+        }
+        super.channelWritabilityChanged(ctx);
     }
 
     @Override
     public void channelInactive(ChannelHandlerContext ctx) throws Exception {
-        inputStream.close();
+        if (servletRequest != null) {
+            // Nobody is left to read the response
+            servletRequest.getDeadline().cancel();
+        }
+        if (servletResponse != null && dispatched) {
+            servletResponse.getResponseOutputStream().connectionClosed();
+        }
+        if (inputStream != null) {
+            if (!dispatched) {
+                inputStream.release();
+            } else if (receiving) {
+                inputStream.fail(new IOException("Connection closed before the request body was complete"));
+            }
+        }
+        if (decoder != null) {
+            reset();
+        }
+        super.channelInactive(ctx);
     }
 
     private void reset() {
         decoder.destroy();
         decoder = null;
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,234 @@
+package io.nebo.container;
+
+import io.netty.util.concurrent.DefaultThreadFactory;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Bounded executor that requests are dispatched on, shared by every connection of the container. The servlet requests
+ * and Hessian calls run on the instance named {@code nebo-servlet}; the Thrift worker pool is a second instance named
+ * {@code nebo-thrift}.
+ * <p/>
+ * Tasks that do not fit in the queue are rejected rather than queued without limit, so the caller can answer
+ * with a 503. Requests whose {@link RequestDeadline} has passed while they were queued are shed rather than run.
+ * The saturation counters of the servlet instance are exposed through the servlet context attribute {@link #ATTRIBUTE}.
+ * <p/>
+ * In {@link Mode#VIRTUAL} mode every request runs on its own virtual thread and the number of requests in
+ * flight is bounded instead of the queue. Virtual threads need a Java 21 runtime; on older runtimes the executor
+ * falls back to {@link Mode#POOLED}.
+ */
+public class WorkerExecutor {
+    public static final String ATTRIBUTE = WorkerExecutor.class.getName();
+
+    public enum Mode {
+        /**
+         * A fixed pool of platform threads in front of a bounded queue.
+         */
+        POOLED,
+        /**
+         * One virtual thread per request.
+         */
+        VIRTUAL
+    }
+
+    private final Log logger = LogFactory.getLog(getClass());
+    private final String name;
+    private final Mode mode;
+    private final ExecutorService executor;
+    private final ThreadPoolExecutor pool;
+    private final Semaphore permits;
+    private final int maxInFlight;
+    private final AtomicLong completedCount = new AtomicLong();
+    private final AtomicLong rejectedCount = new AtomicLong();
+    private final AtomicLong shedCount = new AtomicLong();
+
+    public WorkerExecutor(int threads, int queueCapacity) {
+        this(Mode.POOLED, threads, queueCapacity, 0);
+    }
+
+    /**
+     * @param threads       pool size in {@link Mode#POOLED} mode
+     * @param queueCapacity queue capacity in {@link Mode#POOLED} mode
+     * @param maxInFlight   maximum number of concurrent requests in {@link Mode#VIRTUAL} mode
+     */
+    public WorkerExecutor(Mode mode, int threads, int queueCapacity, int maxInFlight) {
+        this("nebo-servlet", mode, threads, queueCapacity, maxInFlight);
+    }
+
+    /**
+     * @param name prefix for the names of the executor's threads
+     */
+    public WorkerExecutor(String name, Mode mode, int threads, int queueCapacity, int maxInFlight) {
+        checkNotNull(name);
+        checkNotNull(mode);
+        this.name = name;
+        ExecutorService virtualExecutor = null;
+        if (mode == Mode.VIRTUAL) {
+            checkArgument(maxInFlight > 0, "maxInFlight must be positive");
+            virtualExecutor = newVirtualThreadPerTaskExecutor();
+            if (virtualExecutor == null) {
+                logger.warn("Virtual threads are not supported by this runtime, falling back to " + Mode.POOLED);
+            }
+        }
+        if (virtualExecutor != null) {
+            this.mode = Mode.VIRTUAL;
+            this.executor = virtualExecutor;
+            this.pool = null;
+            this.permits = new Semaphore(maxInFlight);
+            this.maxInFlight = maxInFlight;
+        } else {
+            checkArgument(threads > 0, "threads must be positive");
+            checkArgument(queueCapacity > 0, "queueCapacity must be positive");
+            this.mode = Mode.POOLED;
+            this.pool = new ThreadPoolExecutor(threads, threads, 60L, TimeUnit.SECONDS,
+                    new ArrayBlockingQueue<Runnable>(queueCapacity),
+                    new DefaultThreadFactory(name),
+                    new ThreadPoolExecutor.AbortPolicy());
+            this.executor = pool;
+            this.permits = null;
+            this.maxInFlight = threads + queueCapacity;
+        }
+    }
+
+    private static ExecutorService newVirtualThreadPerTaskExecutor() {
+        try {
+            // Looked up reflectively so the container still builds and runs on runtimes without virtual threads
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) factory.invoke(null);
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    /**
+     * Submit a task for execution.
+     *
+     * @return {@code false} if the executor is saturated or shut down and the task was not accepted
+     */
+    public boolean execute(final Runnable task) {
+        if (permits != null && !permits.tryAcquire()) {
+            rejectedCount.incrementAndGet();
+            return false;
+        }
+        try {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        task.run();
+                    } finally {
+                        completedCount.incrementAndGet();
+                        if (permits != null) {
+                            permits.release();
+                        }
+                    }
+                }
+            });
+            return true;
+        } catch (RejectedExecutionException e) {
+            if (permits != null) {
+                permits.release();
+            }
+            rejectedCount.incrementAndGet();
+            return false;
+        }
+    }
+
+    /**
+     * Submit the task of a request with a deadline. The deadline is {@link RequestDeadline#current() current} while
+     * the task runs; if it has passed or the request has been cancelled by the time a thread is free, {@code onShed}
+     * runs instead.
+     *
+     * @return {@code false} if the executor is saturated or shut down and the task was not accepted
+     */
+    public boolean execute(final Runnable task, final RequestDeadline deadline, final Runnable onShed) {
+        return execute(new Runnable() {
+            @Override
+            public void run() {
+                if (deadline.isCancelled()) {
+                    shedCount.incrementAndGet();
+                    onShed.run();
+                    return;
+                }
+                RequestDeadline.setCurrent(deadline);
+                try {
+                    task.run();
+                } finally {
+                    RequestDeadline.setCurrent(null);
+                }
+            }
+        });
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public Mode getMode() {
+        return mode;
+    }
+
+    public int getPoolSize() {
+        return pool != null ? pool.getMaximumPoolSize() : 0;
+    }
+
+    public int getActiveCount() {
+        return pool != null ? pool.getActiveCount() : maxInFlight - permits.availablePermits();
+    }
+
+    public int getQueueSize() {
+        return pool != null ? pool.getQueue().size() : 0;
+    }
+
+    public int getQueueCapacity() {
+        return pool != null ? pool.getQueue().size() + pool.getQueue().remainingCapacity() : 0;
+    }
+
+    public int getMaxInFlight() {
+        return maxInFlight;
+    }
+
+    public long getCompletedCount() {
+        return completedCount.get();
+    }
+
+    public long getRejectedCount() {
+        return rejectedCount.get();
+    }
+
+    /**
+     * @return how many requests were dropped without running because their deadline passed while they were queued,
+     * or their client went away
+     */
+    public long getShedCount() {
+        return shedCount.get();
+    }
+
+    public void shutdown() throws InterruptedException {
+        executor.shutdown();
+        if (!executor.awaitTermination(30, TimeUnit.SECONDS)) {
+            logger.warn(name + " executor did not terminate in time, " + getActiveCount() + " requests still running");
+            executor.shutdownNow();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "WorkerExecutor{name=" + name + ", mode=" + mode + ", poolSize=" + getPoolSize() + ", active=" + getActiveCount()
+                + ", queued=" + getQueueSize() + "/" + getQueueCapacity() + ", completed=" + getCompletedCount()
+                + ", rejected=" + getRejectedCount() + ", shed=" + getShedCount() + '}';
+    }
+}
@@ -0,0 +1,255 @@
+package io.nebo.hessian;
+
+import com.caucho.hessian.io.AbstractHessianInput;
+import com.caucho.hessian.io.AbstractHessianOutput;
+import com.caucho.hessian.io.Hessian2Input;
+import com.caucho.hessian.io.Hessian2Output;
+import com.caucho.hessian.io.HessianFactory;
+import com.caucho.hessian.io.HessianInputFactory;
+import com.caucho.hessian.io.SerializerFactory;
+import com.caucho.hessian.server.HessianSkeleton;
+import com.caucho.services.server.ServiceContext;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Method;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A {@link HessianSkeleton} that resolves the methods of its service once, when it is registered. Each method is
+ * bound to the service as a {@link MethodHandle} taking the argument array, and calls are looked up by method name and
+ * then by argument count in an array, instead of building the mangled {@code name__count} key and invoking the method
+ * reflectively on every call, and the Hessian 2 input and output of a call are reused by later ones. Faults and the
+ * {@code _hessian_getAttribute} call behave as in {@link HessianSkeleton}.
+ */
+public class HessianEndpointSkeleton extends HessianSkeleton {
+    private static final Log logger = LogFactory.getLog(HessianEndpointSkeleton.class);
+    private static final MethodType INVOKER_TYPE = MethodType.methodType(Object.class, Object[].class);
+
+    private final Object service;
+    private final HessianInputFactory inputFactory = new HessianInputFactory();
+    private HessianFactory hessianFactory = new HessianFactory();
+    // Indexed by argument count, the last declared method wins as in HessianSkeleton
+    private final Map<String, ServiceMethod[]> methodsByArity = new HashMap<>();
+    // By plain name, the first declared method wins, and by the names overloading clients send
+    private final Map<String, ServiceMethod> methodsByName = new HashMap<>();
+
+    public HessianEndpointSkeleton(Object service, Class<?> apiClass) {
+        super(service, apiClass);
+        this.service = service;
+        MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+        for (Method method : apiClass.getMethods()) {
+            ServiceMethod serviceMethod;
+            try {
+                serviceMethod = new ServiceMethod(method, lookup.unreflect(method).bindTo(service)
+                        .asSpreader(Object[].class, method.getParameterTypes().length).asType(INVOKER_TYPE));
+            } catch (IllegalAccessException e) {
+                throw new IllegalArgumentException("Cannot access " + method, e);
+            }
+            if (!methodsByName.containsKey(method.getName())) {
+                methodsByName.put(method.getName(), serviceMethod);
+            }
+            int arity = serviceMethod.parameterTypes.length;
+            methodsByName.put(method.getName() + "__" + arity, serviceMethod);
+            methodsByName.put(mangleName(method, false), serviceMethod);
+            ServiceMethod[] overloads = methodsByArity.get(method.getName());
+            if (overloads == null || overloads.length <= arity) {
+                ServiceMethod[] grown = new ServiceMethod[arity + 1];
+                if (overloads != null) {
+                    System.arraycopy(overloads, 0, grown, 0, overloads.length);
+                }
+                overloads = grown;
+                methodsByArity.put(method.getName(), overloads);
+            }
+            overloads[arity] = serviceMethod;
+        }
+    }
+
+    @Override
+    public void setHessianFactory(HessianFactory factory) {
+        super.setHessianFactory(factory);
+        this.hessianFactory = factory;
+    }
+
+    /**
+     * Unlike {@link HessianSkeleton}, which allocates a new input and output, with its 8 KB buffer, for every call,
+     * Hessian 2 calls borrow them from the free lists of the {@link HessianFactory} and give them back afterwards.
+     */
+    @Override
+    public void invoke(InputStream is, OutputStream os, SerializerFactory serializerFactory) throws Exception {
+        if (isDebugInvoke()) {
+            super.invoke(is, os, serializerFactory);
+            return;
+        }
+        HessianFactory factory = hessianFactory;
+        HessianInputFactory.HeaderType header = inputFactory.readHeader(is);
+        if (header != HessianInputFactory.HeaderType.HESSIAN_2) {
+            AbstractHessianInput in;
+            AbstractHessianOutput out;
+            switch (header) {
+                case CALL_1_REPLY_1:
+                    in = factory.createHessianInput(is);
+                    out = factory.createHessianOutput(os);
+                    break;
+                case CALL_1_REPLY_2:
+                    in = factory.createHessianInput(is);
+                    out = factory.createHessian2Output(os);
+                    break;
+                default:
+                    throw new IllegalStateException(header + " is an unknown Hessian call");
+            }
+            if (serializerFactory != null) {
+                in.setSerializerFactory(serializerFactory);
+                out.setSerializerFactory(serializerFactory);
+            }
+            try {
+                invoke(service, in, out);
+            } finally {
+                in.close();
+                out.close();
+            }
+            return;
+        }
+        Hessian2Input in = factory.createHessian2Input(is);
+        Hessian2Output out = factory.createHessian2Output(os);
+        // Pooled instances may still hold the factory of an earlier call
+        SerializerFactory callSerializerFactory = serializerFactory != null ? serializerFactory : factory.getSerializerFactory();
+        in.setSerializerFactory(callSerializerFactory);
+        out.setSerializerFactory(callSerializerFactory);
+        boolean reusable = false;
+        try {
+            in.readCall();
+            invoke(service, in, out);
+            reusable = true;
+        } finally {
+            in.close();
+            out.close();
+            if (reusable) {
+                try {
+                    in.resetBuffer();
+                    factory.freeHessian2Input(in);
+                } catch (IllegalStateException e) {
+                    // Bytes left after the call, the input is dropped
+                }
+                factory.freeHessian2Output(out);
+            }
+        }
+    }
+
+    @Override
+    public void invoke(Object service, AbstractHessianInput in, AbstractHessianOutput out) throws Exception {
+        if (service != this.service) {
+            // The handles are bound to the registered service
+            super.invoke(service, in, out);
+            return;
+        }
+        ServiceContext context = ServiceContext.getContext();
+        in.skipOptionalCall();
+        String header;
+        while ((header = in.readHeader()) != null) {
+            Object value = in.readObject();
+            if (context != null) {
+                context.addHeader(header, value);
+            }
+        }
+        String methodName = in.readMethod();
+        int argLength = in.readMethodArgLength();
+        ServiceMethod method = getServiceMethod(methodName, argLength);
+        if (method == null) {
+            if ("_hessian_getAttribute".equals(methodName)) {
+                String attrName = in.readString();
+                in.completeCall();
+                String value = null;
+                if ("java.api.class".equals(attrName)) {
+                    value = getAPIClassName();
+                } else if ("java.home.class".equals(attrName)) {
+                    value = getHomeClassName();
+                } else if ("java.object.class".equals(attrName)) {
+                    value = getObjectClassName();
+                }
+                out.writeReply(value);
+            } else {
+                out.writeFault("NoSuchMethodException", escapeMessage("The service has no method named: " + in.getMethod()), null);
+            }
+            out.close();
+            return;
+        }
+        Class<?>[] parameterTypes = method.parameterTypes;
+        if (argLength != parameterTypes.length && argLength >= 0) {
+            out.writeFault("NoSuchMethod", escapeMessage("method " + method.method + " argument length mismatch, received length=" + argLength), null);
+            out.close();
+            return;
+        }
+        Object[] values = new Object[parameterTypes.length];
+        for (int i = 0; i < parameterTypes.length; i++) {
+            values[i] = in.readObject(parameterTypes[i]);
+        }
+        Object result;
+        try {
+            result = (Object) method.invoker.invokeExact(values);
+        } catch (Throwable e) {
+            logger.debug(this + " " + e, e);
+            out.writeFault("ServiceException", escapeMessage(e.getMessage()), e);
+            out.close();
+            return;
+        }
+        in.completeCall();
+        out.writeReply(result);
+        out.close();
+    }
+
+    private ServiceMethod getServiceMethod(String methodName, int argLength) {
+        ServiceMethod[] overloads = methodsByArity.get(methodName);
+        if (overloads != null && argLength >= 0 && argLength < overloads.length && overloads[argLength] != null) {
+            return overloads[argLength];
+        }
+        return methodsByName.get(methodName);
+    }
+
+    private static String escapeMessage(String msg) {
+        if (msg == null) {
+            return null;
+        }
+        StringBuilder sb = new StringBuilder(msg.length());
+        for (int i = 0; i < msg.length(); i++) {
+            char ch = msg.charAt(i);
+            switch (ch) {
+                case '<':
+                    sb.append("&lt;");
+                    break;
+                case '>':
+                    sb.append("&gt;");
+                    break;
+                case 0x0:
+                    sb.append("&#00;");
+                    break;
+                case '&':
+                    sb.append("&amp;");
+                    break;
+                default:
+                    sb.append(ch);
+                    break;
+            }
+        }
+        return sb.toString();
+    }
+
+    private static final class ServiceMethod {
+        private final Method method;
+        private final Class<?>[] parameterTypes;
+        // (Object[]) -> Object, bound to the service
+        private final MethodHandle invoker;
+
+        ServiceMethod(Method method, MethodHandle invoker) {
+            this.method = method;
+            this.parameterTypes = method.getParameterTypes();
+            this.invoker = invoker;
+        }
+    }
+}
@@ -1,47 +1,26 @@
 package io.nebo.hessian;
 
 import com.caucho.hessian.server.HessianSkeleton;
+import io.nebo.container.RequestDeadline;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
-import org.springframework.beans.factory.BeanFactoryUtils;
-import org.springframework.web.context.WebApplicationContext;
-import org.springframework.web.context.support.WebApplicationContextUtils;
 import javax.servlet.*;
 import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
 import java.io.IOException;
-import java.util.HashMap;
-import java.util.Map;
 
 /**
  * Created by pengbo on 2016/7/18.
+ * <p/>
+ * Serves the calls to the services of a {@link HessianServiceRegistry} that reach the servlets. Connections to the
+ * container normally answer Hessian calls with a {@link HessianHttpHandler} before they get here.
  */
 public class HessianFilter implements Filter {
     private static Log logger = LogFactory.getLog(HessianFilter.class);
-    private Map<String, HessianSkeleton> hessianSkeletonMap = new HashMap<String, HessianSkeleton>();
+    private final HessianServiceRegistry registry;
 
-    public HessianFilter(ServletContext context) {
-        WebApplicationContext webApplicationContext = WebApplicationContextUtils.findWebApplicationContext(context);
-        String[] strarr = BeanFactoryUtils.beanNamesForTypeIncludingAncestors(webApplicationContext, Object.class);
-        for (String s : strarr) {
-            Object target = webApplicationContext.getBean(s);
-            HessianEndpoint hessianEndpointAnnotation = target.getClass().getAnnotation(HessianEndpoint.class);
-            if (hessianEndpointAnnotation != null) {
-                try {
-                    Class apiClz = null;
-                    Class[] interfacesClass = target.getClass().getInterfaces();
-                    if (interfacesClass != null && interfacesClass.length > 0) {
-                        apiClz = interfacesClass[0];
-                    } else {
-                        apiClz = target.getClass();
-                    }
-                    HessianSkeleton hessianSkeleton = new HessianSkeleton(target, apiClz);
-                    hessianSkeletonMap.put(HessianConstant.HESSIAN_PATH + hessianEndpointAnnotation.servicePattern(), hessianSkeleton);
-                } catch (Exception e) {
-                    logger.error("registerProcessor error : " + e.getMessage(), e);
-                }
-            }
-
-        }
+    public HessianFilter(HessianServiceRegistry registry) {
+        this.registry = registry;
     }
 
     @Override
@@ -52,16 +31,26 @@ public class HessianFilter implements Filter {
     public void doFilter(ServletRequest request, ServletResponse response, FilterChain chain) throws IOException, ServletException {
         HttpServletRequest httpServletRequest = (HttpServletRequest) request;
         String urlPattern = httpServletRequest.getRequestURI();
-        HessianSkeleton hessianSkeleton = hessianSkeletonMap.get(urlPattern);
+        HessianSkeleton hessianSkeleton = registry.getSkeleton(urlPattern);
+        if (hessianSkeleton == null) {
+            chain.doFilter(request, response);
+            return;
+        }
+        RequestDeadline deadline = RequestDeadline.current();
+        if (deadline != null && deadline.isCancelled()) {
+            // The client has given up while the call was being received
+            ((HttpServletResponse) response).sendError(HttpServletResponse.SC_GATEWAY_TIMEOUT);
+            return;
+        }
         try {
-            if (hessianSkeleton != null) {
-                hessianSkeleton.invoke(request.getInputStream(), response.getOutputStream());
-            } else {
-                chain.doFilter(request,response);
-            }
-
+            hessianSkeleton.invoke(request.getInputStream(), response.getOutputStream());
         } catch (Exception e) {
-            e.printStackTrace();
+            // Service exceptions are written as faults, this is a call that couldn't be read or answered
+            logger.error("Hessian call failed " + urlPattern, e);
+            if (!response.isCommitted()) {
+                response.reset();
+                ((HttpServletResponse) response).sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+            }
         }
     }
 
@@ -69,9 +58,4 @@ public class HessianFilter implements Filter {
     public void destroy() {
 
     }
-
-
-    private void registerSrv() {
-
-    }
 }
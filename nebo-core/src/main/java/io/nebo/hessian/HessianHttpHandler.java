@@ -0,0 +1,233 @@
+package io.nebo.hessian;
+
+import com.caucho.hessian.server.HessianSkeleton;
+import io.nebo.container.HttpDateHeader;
+import io.nebo.container.NettyEmbeddedContext;
+import io.nebo.container.ReadSuspension;
+import io.nebo.container.RequestContentConfig;
+import io.nebo.container.RequestDeadline;
+import io.nebo.container.WorkerExecutor;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufInputStream;
+import io.netty.buffer.ByteBufOutputStream;
+import io.netty.buffer.CompositeByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.handler.codec.http.DefaultFullHttpResponse;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpContent;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpVersion;
+import io.netty.handler.codec.http.LastHttpContent;
+import io.netty.handler.codec.http.QueryStringDecoder;
+import io.netty.util.AsciiString;
+import io.netty.util.ReferenceCountUtil;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Serves Hessian calls on the HTTP side of the port without going through the servlet stack. A {@code POST} to the
+ * path of a service in the {@link HessianServiceRegistry} is recognised as soon as its headers are decoded; its body
+ * chunks are gathered without being copied, the call is read straight from them on the servlet executor, and the
+ * reply is written into a pooled buffer that becomes the content of a {@link FullHttpResponse}.
+ * <p/>
+ * Reads are suspended while a call runs, so responses keep the order of the requests on the connection. Bodies are
+ * limited by {@link RequestContentConfig#getMaxContentLength(String)}, and calls whose {@link RequestDeadline} passes
+ * before a thread picks them up are answered with {@code 504}. Every other request passes through untouched.
+ */
+public class HessianHttpHandler extends ChannelInboundHandlerAdapter {
+    public static final String CONTENT_TYPE = "x-application/hessian";
+    private static final AsciiString CONTENT_TYPE_VALUE = new AsciiString(CONTENT_TYPE);
+
+    private static final Log log = LogFactory.getLog(HessianHttpHandler.class);
+    private final NettyEmbeddedContext context;
+    private final HessianServiceRegistry registry;
+    private final WorkerExecutor executor;
+    private final RequestContentConfig contentConfig;
+    private boolean receiving;
+    private boolean discarding;
+    private HessianSkeleton skeleton;
+    private String clientTimeout;
+    private boolean requestKeepAlive;
+    private long maxContentLength;
+    // The body received so far, a composite once it spans several chunks
+    private ByteBuf content;
+    // The deadline of the call being run, if any
+    private volatile RequestDeadline deadline;
+
+    public HessianHttpHandler(NettyEmbeddedContext context, HessianServiceRegistry registry, WorkerExecutor executor,
+                              RequestContentConfig contentConfig) {
+        this.context = context;
+        this.registry = registry;
+        this.executor = executor;
+        this.contentConfig = contentConfig;
+    }
+
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+        if (msg instanceof HttpRequest) {
+            HttpRequest request = (HttpRequest) msg;
+            skeleton = HttpMethod.POST.equals(request.getMethod())
+                    ? registry.getSkeleton(new QueryStringDecoder(request.getUri()).path()) : null;
+            receiving = skeleton != null;
+            discarding = false;
+            if (receiving) {
+                clientTimeout = request.headers().get(RequestDeadline.HEADER);
+                requestKeepAlive = HttpHeaders.isKeepAlive(request);
+                maxContentLength = contentConfig.getMaxContentLength(request.getUri());
+                if (HttpHeaders.getContentLength(request, -1) > maxContentLength) {
+                    ReferenceCountUtil.release(msg);
+                    reject(ctx, HttpResponseStatus.REQUEST_ENTITY_TOO_LARGE, "Request body exceeds " + maxContentLength + " bytes");
+                    return;
+                }
+                if (HttpHeaders.is100ContinueExpected(request)) {
+                    ctx.writeAndFlush(new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.CONTINUE), ctx.voidPromise());
+                }
+            }
+        }
+        if (!receiving && !discarding) {
+            ctx.fireChannelRead(msg);
+            return;
+        }
+        try {
+            if (discarding || !(msg instanceof HttpContent)) {
+                return;
+            }
+            ByteBuf chunk = ((HttpContent) msg).content();
+            if (chunk.isReadable()) {
+                if ((content != null ? content.readableBytes() : 0) + chunk.readableBytes() > maxContentLength) {
+                    reject(ctx, HttpResponseStatus.REQUEST_ENTITY_TOO_LARGE, "Request body exceeds " + maxContentLength + " bytes");
+                    return;
+                }
+                append(ctx, chunk);
+            }
+            if (msg instanceof LastHttpContent) {
+                receiving = false;
+                dispatch(ctx);
+            }
+        } finally {
+            ReferenceCountUtil.release(msg);
+        }
+    }
+
+    private void append(ChannelHandlerContext ctx, ByteBuf chunk) {
+        if (content == null) {
+            content = chunk.retain();
+            return;
+        }
+        if (!(content instanceof CompositeByteBuf)) {
+            // Never consolidated, so the chunks are not copied
+            CompositeByteBuf composite = ctx.alloc().compositeBuffer(Integer.MAX_VALUE);
+            composite.addComponent(content);
+            composite.writerIndex(content.readableBytes());
+            content = composite;
+        }
+        CompositeByteBuf composite = (CompositeByteBuf) content;
+        composite.addComponent(chunk.retain());
+        composite.writerIndex(composite.writerIndex() + chunk.readableBytes());
+    }
+
+    private void dispatch(final ChannelHandlerContext ctx) {
+        final ByteBuf body = content != null ? content : Unpooled.EMPTY_BUFFER;
+        content = null;
+        final HessianSkeleton skeleton = this.skeleton;
+        final boolean keepAlive = requestKeepAlive;
+        final RequestDeadline deadline = RequestDeadline.start(clientTimeout, context.getRequestTimeoutMillis());
+        this.deadline = deadline;
+        ReadSuspension.of(ctx.channel()).suspend(this);
+        boolean accepted = executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                invoke(ctx, skeleton, body, keepAlive);
+            }
+        }, deadline, new Runnable() {
+            @Override
+            public void run() {
+                body.release();
+                respond(ctx, HttpResponseStatus.GATEWAY_TIMEOUT, keepAlive);
+            }
+        });
+        if (!accepted) {
+            log.warn("Servlet executor saturated, rejecting Hessian call " + executor);
+            body.release();
+            respond(ctx, HttpResponseStatus.SERVICE_UNAVAILABLE, keepAlive);
+        }
+    }
+
+    private void invoke(ChannelHandlerContext ctx, HessianSkeleton skeleton, ByteBuf body, boolean keepAlive) {
+        ByteBuf reply = ctx.alloc().buffer();
+        try {
+            skeleton.invoke(new ByteBufInputStream(body), new ByteBufOutputStream(reply));
+        } catch (Throwable e) {
+            // Service exceptions are written as faults, this is a call that couldn't be read or answered
+            log.warn("Hessian call from " + ctx.channel().remoteAddress() + " failed", e);
+            reply.release();
+            respond(ctx, HttpResponseStatus.INTERNAL_SERVER_ERROR, keepAlive);
+            return;
+        } finally {
+            body.release();
+        }
+        FullHttpResponse response = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.OK, reply);
+        response.headers().set(HttpHeaderNames.CONTENT_TYPE, CONTENT_TYPE_VALUE);
+        response.headers().set(HttpHeaderNames.DATE, HttpDateHeader.get());
+        write(ctx, response, keepAlive);
+    }
+
+    private void respond(ChannelHandlerContext ctx, HttpResponseStatus status, boolean keepAlive) {
+        write(ctx, new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, status), keepAlive);
+    }
+
+    private void write(final ChannelHandlerContext ctx, FullHttpResponse response, final boolean keepAlive) {
+        deadline = null;
+        HttpHeaders.setContentLength(response, response.content().readableBytes());
+        HttpHeaders.setKeepAlive(response, keepAlive);
+        ctx.writeAndFlush(response).addListener(new ChannelFutureListener() {
+            @Override
+            public void operationComplete(ChannelFuture future) throws Exception {
+                if (keepAlive && future.isSuccess()) {
+                    ReadSuspension.of(ctx.channel()).resume(HessianHttpHandler.this);
+                } else {
+                    ctx.close();
+                }
+            }
+        });
+    }
+
+    /**
+     * Answer the request being received with an error and close the connection.
+     */
+    private void reject(ChannelHandlerContext ctx, HttpResponseStatus status, String reason) {
+        receiving = false;
+        discarding = true;
+        if (content != null) {
+            content.release();
+            content = null;
+        }
+        log.warn(reason + " from " + ctx.channel().remoteAddress() + ", closing connection");
+        FullHttpResponse response = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, status);
+        HttpHeaders.setContentLength(response, 0);
+        HttpHeaders.setKeepAlive(response, false);
+        ctx.writeAndFlush(response).addListener(ChannelFutureListener.CLOSE);
+    }
+
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+        if (content != null) {
+            content.release();
+            content = null;
+        }
+        RequestDeadline running = deadline;
+        if (running != null) {
+            // Nobody is left to read the reply
+            running.cancel();
+        }
+        super.channelInactive(ctx);
+    }
+}
@@ -0,0 +1,70 @@
+package io.nebo.hessian;
+
+import com.caucho.hessian.server.HessianSkeleton;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.beans.factory.ListableBeanFactory;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * The Hessian services served by the container, indexed by the request path clients post their calls to, which is
+ * {@link HessianConstant#HESSIAN_PATH} followed by the {@link HessianEndpoint#servicePattern()} of the service. The
+ * registry is built once at startup, and is shared by the {@link HessianFilter} and the {@link HessianHttpHandler}.
+ */
+public class HessianServiceRegistry {
+    private static final Log logger = LogFactory.getLog(HessianServiceRegistry.class);
+
+    private final Map<String, HessianSkeleton> skeletons = new HashMap<>();
+
+    /**
+     * Build a registry of the {@link HessianEndpoint} beans in a bean factory. Only the annotated beans are
+     * instantiated, and a bean that can't be registered is skipped.
+     */
+    public static HessianServiceRegistry fromBeanFactory(ListableBeanFactory beanFactory) {
+        HessianServiceRegistry registry = new HessianServiceRegistry();
+        for (String beanName : beanFactory.getBeanNamesForAnnotation(HessianEndpoint.class)) {
+            HessianEndpoint endpoint = beanFactory.findAnnotationOnBean(beanName, HessianEndpoint.class);
+            Object service = beanFactory.getBean(beanName);
+            try {
+                registry.register(endpoint.servicePattern(), service);
+            } catch (Exception e) {
+                logger.error("registerProcessor error : " + e.getMessage(), e);
+            }
+        }
+        return registry;
+    }
+
+    /**
+     * Register a service under {@link HessianConstant#HESSIAN_PATH} followed by {@code servicePattern}. Its API is
+     * its first interface, or its class if it implements none.
+     */
+    public void register(String servicePattern, Object service) {
+        checkNotNull(servicePattern);
+        checkNotNull(service);
+        Class<?>[] interfaces = service.getClass().getInterfaces();
+        Class<?> apiClass = interfaces.length > 0 ? interfaces[0] : service.getClass();
+        skeletons.put(HessianConstant.HESSIAN_PATH + servicePattern, new HessianEndpointSkeleton(service, apiClass));
+    }
+
+    /**
+     * @param path the path of a request, without its query string
+     * @return the skeleton of the service at the path, or {@code null}
+     */
+    public HessianSkeleton getSkeleton(String path) {
+        return skeletons.get(path);
+    }
+
+    public Set<String> getPaths() {
+        return Collections.unmodifiableSet(skeletons.keySet());
+    }
+
+    public boolean isEmpty() {
+        return skeletons.isEmpty();
+    }
+}
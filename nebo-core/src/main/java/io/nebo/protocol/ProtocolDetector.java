@@ -0,0 +1,174 @@
+package io.nebo.protocol;
+
+import io.netty.buffer.ByteBuf;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Container-wide table of {@link ProtocolSignature}s used to sniff the protocol of a new connection from its first
+ * bytes, together with counters of what was detected. The counters are exposed through the servlet context attribute
+ * {@link #ATTRIBUTE}.
+ */
+public class ProtocolDetector {
+    public static final String ATTRIBUTE = ProtocolDetector.class.getName();
+
+    public static final String HTTP = "http";
+    public static final String HTTP2 = "http2";
+    public static final String TLS = "tls";
+    public static final String THRIFT = "thrift";
+
+    /**
+     * Returned by {@link #detect(ByteBuf)} when the input matches no signature.
+     */
+    public static final ProtocolSignature UNKNOWN = ProtocolSignature.ascii("unknown", "unknown", "");
+
+    private static final int ANY = 0x00;
+    private static final int BYTE = 0xFF;
+
+    private final List<ProtocolSignature> signatures = new CopyOnWriteArrayList<>();
+    private final long timeoutMillis;
+    private final Map<String, AtomicLong> detectedCounts = new ConcurrentHashMap<>();
+    private final AtomicLong unknownCount = new AtomicLong();
+    private final AtomicLong unsupportedCount = new AtomicLong();
+    private final AtomicLong timedOutCount = new AtomicLong();
+
+    public ProtocolDetector(long timeoutMillis) {
+        checkArgument(timeoutMillis > 0, "timeoutMillis must be positive");
+        this.timeoutMillis = timeoutMillis;
+        for (String method : new String[]{"GET", "POST", "PUT", "HEAD", "OPTIONS", "PATCH", "DELETE", "TRACE", "CONNECT"}) {
+            addSignature(ProtocolSignature.ascii("http", HTTP, method + ' '));
+        }
+        addSignature(ProtocolSignature.ascii("http2-preface", HTTP2, "PRI * HTTP/2.0\r\n\r\nSM\r\n\r\n"));
+        // Handshake record, SSL 3.0 to TLS 1.3 record version, any length, ClientHello
+        addSignature(ProtocolSignature.masked("tls-client-hello", TLS,
+                new int[]{BYTE, BYTE, 0xF8, ANY, ANY, BYTE},
+                new int[]{0x16, 0x03, 0x00, ANY, ANY, 0x01}));
+        // Message types a server can receive: CALL (1) and ONEWAY (4)
+        for (int type : new int[]{1, 4}) {
+            // Strict binary: VERSION_1 | type
+            addSignature(ProtocolSignature.masked("thrift-binary", THRIFT,
+                    new int[]{BYTE, BYTE, BYTE, BYTE},
+                    new int[]{0x80, 0x01, 0x00, type}));
+            // Compact: protocol id, then version 1 and the type in the upper three bits
+            addSignature(ProtocolSignature.masked("thrift-compact", THRIFT,
+                    new int[]{BYTE, BYTE},
+                    new int[]{0x82, type << 5 | 0x01}));
+            // Framed: a positive 4 byte frame length, then either of the above
+            addSignature(ProtocolSignature.masked("thrift-framed-binary", THRIFT,
+                    new int[]{0x80, ANY, ANY, ANY, BYTE, BYTE, BYTE, BYTE},
+                    new int[]{0x00, ANY, ANY, ANY, 0x80, 0x01, 0x00, type}));
+            addSignature(ProtocolSignature.masked("thrift-framed-compact", THRIFT,
+                    new int[]{0x80, ANY, ANY, ANY, BYTE, BYTE},
+                    new int[]{0x00, ANY, ANY, ANY, 0x82, type << 5 | 0x01}));
+        }
+        // THeader: a positive 4 byte frame length, then the header magic
+        addSignature(ProtocolSignature.masked("thrift-header", THRIFT,
+                new int[]{0x80, ANY, ANY, ANY, BYTE, BYTE},
+                new int[]{0x00, ANY, ANY, ANY, 0x0F, 0xFF}));
+    }
+
+    /**
+     * Register an additional signature, e.g. for a protocol handled by a custom {@link ProtocolRouter}.
+     */
+    public void addSignature(ProtocolSignature signature) {
+        signatures.add(signature);
+        if (!detectedCounts.containsKey(signature.getName())) {
+            detectedCounts.put(signature.getName(), new AtomicLong());
+        }
+    }
+
+    /**
+     * Match the readable bytes of {@code in} against the signature table, without consuming them.
+     *
+     * @return the first matching signature, {@link #UNKNOWN} if none can match, or {@code null} if more bytes are
+     * needed to decide
+     */
+    public ProtocolSignature detect(ByteBuf in) {
+        boolean needMoreData = false;
+        for (ProtocolSignature signature : signatures) {
+            switch (signature.match(in)) {
+                case MATCH:
+                    return signature;
+                case NEED_MORE_DATA:
+                    needMoreData = true;
+                    break;
+                default:
+                    break;
+            }
+        }
+        return needMoreData ? null : UNKNOWN;
+    }
+
+    public long getTimeoutMillis() {
+        return timeoutMillis;
+    }
+
+    public List<ProtocolSignature> getSignatures() {
+        return Collections.unmodifiableList(signatures);
+    }
+
+    public void detected(ProtocolSignature signature) {
+        AtomicLong count = detectedCounts.get(signature.getName());
+        if (count != null) {
+            count.incrementAndGet();
+        }
+    }
+
+    public void unknown() {
+        unknownCount.incrementAndGet();
+    }
+
+    public void unsupported() {
+        unsupportedCount.incrementAndGet();
+    }
+
+    public void timedOut() {
+        timedOutCount.incrementAndGet();
+    }
+
+    /**
+     * Get how many connections were detected per signature name.
+     */
+    public Map<String, Long> getDetectedCounts() {
+        Map<String, Long> counts = new TreeMap<>();
+        for (Map.Entry<String, AtomicLong> entry : detectedCounts.entrySet()) {
+            counts.put(entry.getKey(), entry.getValue().get());
+        }
+        return counts;
+    }
+
+    /**
+     * Get how many connections were closed because their first bytes matched no signature.
+     */
+    public long getUnknownCount() {
+        return unknownCount.get();
+    }
+
+    /**
+     * Get how many connections were closed because no router accepted the detected protocol.
+     */
+    public long getUnsupportedCount() {
+        return unsupportedCount.get();
+    }
+
+    /**
+     * Get how many connections were closed because too few bytes arrived before the detection deadline.
+     */
+    public long getTimedOutCount() {
+        return timedOutCount.get();
+    }
+
+    @Override
+    public String toString() {
+        return "ProtocolDetector{detected=" + getDetectedCounts() + ", unknown=" + getUnknownCount()
+                + ", unsupported=" + getUnsupportedCount() + ", timedOut=" + getTimedOutCount() + '}';
+    }
+}
@@ -6,6 +6,10 @@ import io.netty.channel.ChannelHandlerContext;
 
 /**
  * Created by pengbo on 2016/8/8.
+ * <p/>
+ * Routes connections that are not HTTP to a protocol specific pipeline. Implementations are registered through
+ * {@code META-INF/services} or as Spring beans, are initialised once when the container starts and are shared by
+ * all connections, so {@link #isProtocol(ByteBuf)} and {@link #setRounter} must be thread safe.
  */
 public interface ProtocolRouter {
 
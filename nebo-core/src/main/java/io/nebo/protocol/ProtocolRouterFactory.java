@@ -1,22 +1,49 @@
 package io.nebo.protocol;
 
-import io.nebo.thrift.ThriftProtocolRouter;
+import io.nebo.container.NettyEmbeddedContext;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.beans.factory.BeanFactoryUtils;
+import org.springframework.core.annotation.AnnotationAwareOrderComparator;
+import org.springframework.web.context.WebApplicationContext;
+import org.springframework.web.context.support.WebApplicationContextUtils;
 
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.ServiceLoader;
 
 /**
  * Created by pengbo on 2016/8/8.
+ * <p/>
+ * Discovers the {@link ProtocolRouter}s from {@code META-INF/services/io.nebo.protocol.ProtocolRouter} and from
+ * {@link ProtocolRouter} beans in the application context. A bean replaces a service of the same class. Routers are
+ * initialised once and sorted by {@link org.springframework.core.Ordered} or
+ * {@link org.springframework.core.annotation.Order}, so they can be shared by every connection.
  */
 public class ProtocolRouterFactory {
 
-    public static List<ProtocolRouter> protocolRouters = new ArrayList<ProtocolRouter>();
+    private static final Log logger = LogFactory.getLog(ProtocolRouterFactory.class);
 
-    static {
-        protocolRouters.add(new ThriftProtocolRouter());
-    }
-
-    public static List<ProtocolRouter> loadAllProtocolRouter(){
-        return protocolRouters;
+    public static List<ProtocolRouter> loadAllProtocolRouter(NettyEmbeddedContext context) {
+        Map<Class<?>, ProtocolRouter> routers = new LinkedHashMap<>();
+        for (ProtocolRouter router : ServiceLoader.load(ProtocolRouter.class, context.getClassLoader())) {
+            routers.put(router.getClass(), router);
+        }
+        WebApplicationContext webApplicationContext = WebApplicationContextUtils.findWebApplicationContext(context);
+        if (webApplicationContext != null) {
+            for (ProtocolRouter router : BeanFactoryUtils.beansOfTypeIncludingAncestors(webApplicationContext, ProtocolRouter.class).values()) {
+                routers.put(router.getClass(), router);
+            }
+        }
+        List<ProtocolRouter> protocolRouters = new ArrayList<>(routers.values());
+        AnnotationAwareOrderComparator.sort(protocolRouters);
+        for (ProtocolRouter router : protocolRouters) {
+            router.init(context);
+            logger.info("Registered protocol router: " + router.getClass().getName());
+        }
+        return Collections.unmodifiableList(protocolRouters);
     }
 }
@@ -0,0 +1,92 @@
+package io.nebo.protocol;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.util.CharsetUtil;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * The leading bytes a protocol is recognised by. Each byte of the signature is compared under a mask, so fields
+ * such as versions or lengths can be matched loosely.
+ */
+public final class ProtocolSignature {
+
+    public enum Match {
+        MATCH,
+        MISMATCH,
+        NEED_MORE_DATA
+    }
+
+    private final String name;
+    private final String protocol;
+    private final byte[] masks;
+    private final byte[] values;
+
+    private ProtocolSignature(String name, String protocol, byte[] masks, byte[] values) {
+        this.name = checkNotNull(name);
+        this.protocol = checkNotNull(protocol);
+        this.masks = masks;
+        this.values = values;
+    }
+
+    /**
+     * A signature made of the exact ASCII characters of {@code prefix}.
+     */
+    public static ProtocolSignature ascii(String name, String protocol, String prefix) {
+        byte[] values = prefix.getBytes(CharsetUtil.US_ASCII);
+        byte[] masks = new byte[values.length];
+        for (int i = 0; i < masks.length; i++) {
+            masks[i] = (byte) 0xFF;
+        }
+        return new ProtocolSignature(name, protocol, masks, values);
+    }
+
+    /**
+     * A signature where byte {@code i} of the input matches if {@code (input[i] & masks[i]) == values[i]}.
+     */
+    public static ProtocolSignature masked(String name, String protocol, int[] masks, int[] values) {
+        checkArgument(masks.length == values.length, "masks and values must have the same length");
+        byte[] maskBytes = new byte[masks.length];
+        byte[] valueBytes = new byte[values.length];
+        for (int i = 0; i < masks.length; i++) {
+            maskBytes[i] = (byte) masks[i];
+            valueBytes[i] = (byte) (values[i] & masks[i]);
+        }
+        return new ProtocolSignature(name, protocol, maskBytes, valueBytes);
+    }
+
+    /**
+     * Match the readable bytes of {@code in} without consuming them.
+     */
+    public Match match(ByteBuf in) {
+        int readerIndex = in.readerIndex();
+        int available = Math.min(in.readableBytes(), values.length);
+        for (int i = 0; i < available; i++) {
+            if ((in.getByte(readerIndex + i) & masks[i]) != values[i]) {
+                return Match.MISMATCH;
+            }
+        }
+        return available == values.length ? Match.MATCH : Match.NEED_MORE_DATA;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * The protocol family, e.g. {@code http} or {@code thrift}, shared by all signatures of that protocol.
+     */
+    public String getProtocol() {
+        return protocol;
+    }
+
+    public int length() {
+        return values.length;
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+}
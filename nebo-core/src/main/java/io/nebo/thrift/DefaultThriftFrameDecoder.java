@@ -15,28 +15,33 @@
  */
 package io.nebo.thrift;
 
+import io.nebo.container.RequestDeadline;
 import io.netty.buffer.ByteBuf;
 import io.netty.channel.Channel;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.handler.codec.ByteToMessageDecoder;
+import io.netty.handler.codec.CorruptedFrameException;
 import io.netty.handler.codec.TooLongFrameException;
 import org.apache.log4j.Logger;
-import org.apache.thrift.TException;
-import org.apache.thrift.protocol.TProtocol;
-import org.apache.thrift.protocol.TProtocolFactory;
-import org.apache.thrift.protocol.TProtocolUtil;
-import org.apache.thrift.protocol.TType;
-import org.apache.thrift.transport.TTransportException;
 
 import java.util.List;
 
 public class DefaultThriftFrameDecoder extends ByteToMessageDecoder {
     private final static Logger logger = Logger.getLogger(DefaultThriftFrameDecoder.class);
     public static final int MESSAGE_FRAME_SIZE = 4;
-    private final TProtocolFactory inputProtocolFactory;
-    private final int maxFrameSize = 64*1024*1024;
-    public DefaultThriftFrameDecoder(TProtocolFactory inputProtocolFactory) {
-        this.inputProtocolFactory = inputProtocolFactory;
+    public static final int DEFAULT_MAX_FRAME_SIZE = 64 * 1024 * 1024;
+    private final int maxFrameSize;
+    // Negotiated from the first message on the connection
+    private ThriftProtocolType protocolType;
+    // Progress through a partially received unframed message
+    private UnframedMessageScanner scanner;
+
+    public DefaultThriftFrameDecoder() {
+        this(DEFAULT_MAX_FRAME_SIZE);
+    }
+
+    public DefaultThriftFrameDecoder(int maxFrameSize) {
+        this.maxFrameSize = maxFrameSize;
     }
 
     @Override
@@ -47,9 +52,10 @@ public class DefaultThriftFrameDecoder extends ByteToMessageDecoder {
             return ;
         }
 
-        short firstByte = buffer.getUnsignedByte(0);
+        short firstByte = buffer.getUnsignedByte(buffer.readerIndex());
         if (firstByte >= 0x80) {
-            ByteBuf messageBuffer = tryDecodeUnframedMessage(ctx, channel, buffer, inputProtocolFactory);
+            ThriftProtocolType messageProtocolType = negotiateProtocol(firstByte);
+            ByteBuf messageBuffer = tryDecodeUnframedMessage(ctx, channel, buffer, messageProtocolType);
 
             if (messageBuffer == null) {
                 return ;
@@ -57,7 +63,7 @@ public class DefaultThriftFrameDecoder extends ByteToMessageDecoder {
 
             // A non-zero MSB for the first byte of the message implies the message starts with a
             // protocol id (and thus it is unframed).
-            out.add(new ThriftMessage(messageBuffer, ThriftTransportType.UNFRAMED));
+            out.add(new ThriftMessage(messageBuffer, ThriftTransportType.UNFRAMED, messageProtocolType));
         } else if (buffer.readableBytes() < MESSAGE_FRAME_SIZE) {
             // Expecting a framed message, but not enough bytes available to read the frame size
             return ;
@@ -68,9 +74,51 @@ public class DefaultThriftFrameDecoder extends ByteToMessageDecoder {
                 return ;
             }
 
+            if (ThriftHeader.isHeaderFrame(messageBuffer)) {
+                out.add(decodeHeaderMessage(ctx, messageBuffer));
+                return;
+            }
             // Messages with a zero MSB in the first byte are framed messages
-            out.add(new ThriftMessage(messageBuffer, ThriftTransportType.FRAMED));
+            ThriftProtocolType messageProtocolType;
+            try {
+                messageProtocolType = negotiateProtocol(messageBuffer.getUnsignedByte(messageBuffer.readerIndex()));
+            } catch (RuntimeException e) {
+                messageBuffer.release();
+                throw e;
+            }
+            out.add(new ThriftMessage(messageBuffer, ThriftTransportType.FRAMED, messageProtocolType));
+        }
+    }
+
+    private ThriftMessage decodeHeaderMessage(ChannelHandlerContext ctx, ByteBuf frame) {
+        ThriftHeader header;
+        try {
+            header = ThriftHeader.read(frame);
+            negotiateProtocol(header.getProtocolType().getProtocolId());
+        } catch (RuntimeException e) {
+            frame.release();
+            throw e;
+        }
+        // Releases the frame if it fails
+        ByteBuf payload = header.decodePayload(frame, ctx.alloc(), maxFrameSize);
+        ThriftMessage message = new ThriftMessage(payload, ThriftTransportType.HEADER, header.getProtocolType(),
+                !header.isOutOfOrderSupported());
+        message.setHeader(header);
+        message.setClientTimeout(header.getInfoHeader(RequestDeadline.THRIFT_HEADER));
+        return message;
+    }
+
+    private ThriftProtocolType negotiateProtocol(short protocolId) {
+        ThriftProtocolType type = ThriftProtocolType.forProtocolId(protocolId);
+        if (type == null) {
+            throw new CorruptedFrameException("Unsupported Thrift protocol id 0x" + Integer.toHexString(protocolId));
         }
+        if (protocolType == null) {
+            protocolType = type;
+        } else if (protocolType != type) {
+            throw new CorruptedFrameException("Thrift protocol changed from " + protocolType + " to " + type);
+        }
+        return type;
     }
 
     protected ByteBuf tryDecodeFramedMessage(ChannelHandlerContext ctx,
@@ -90,17 +138,21 @@ public class DefaultThriftFrameDecoder extends ByteToMessageDecoder {
         }
 
         // The full message is larger by the size of the frame size prefix
-        int messageLength = buffer.getInt(messageStartReaderIndex) + MESSAGE_FRAME_SIZE;
+        int frameSize = buffer.getInt(messageStartReaderIndex);
+        if (frameSize < 0) {
+            throw new CorruptedFrameException("Negative frame size " + frameSize);
+        }
+        int messageLength = frameSize + MESSAGE_FRAME_SIZE;
         int messageContentsLength = messageStartReaderIndex + messageLength - messageContentsOffset;
 
-        if (messageContentsLength > maxFrameSize) {
+        if (frameSize > maxFrameSize) {
             throw new TooLongFrameException("Maximum frame size of " + maxFrameSize +
                     " exceeded");
         }
 
-        if (messageLength == 0) {
-            // Zero-sized frame: just ignore it and return nothing
-            buffer.readerIndex(messageContentsOffset);
+        if (frameSize == 0) {
+            // Zero-sized frame: just skip its size and return nothing
+            buffer.readerIndex(messageStartReaderIndex + messageLength);
             return null;
         } else if (buffer.readableBytes() < messageLength) {
             // Full message isn't available yet, return nothing for now
@@ -118,41 +170,22 @@ public class DefaultThriftFrameDecoder extends ByteToMessageDecoder {
     protected ByteBuf tryDecodeUnframedMessage(ChannelHandlerContext ctx,
                                                      Channel channel,
                                                      ByteBuf buffer,
-                                                     TProtocolFactory inputProtocolFactory)
-            throws TException {
-        // Perform a trial decode, skipping through
-        // the fields, to see whether we have an entire message available.
-
-        int messageLength = 0;
+                                                     ThriftProtocolType protocolType) {
+        // Walk the message's structure to see whether we have an entire message available,
+        // carrying on from wherever the previous attempt ran out of bytes.
+        if (scanner == null) {
+            scanner = new UnframedMessageScanner(protocolType, maxFrameSize);
+        }
         int messageStartReaderIndex = buffer.readerIndex();
-
-        try {
-            TNiftyTransport decodeAttemptTransport =
-                    new TNiftyTransport(channel, buffer, ThriftTransportType.UNFRAMED);
-            int initialReadBytes = decodeAttemptTransport.getReadByteCount();
-            TProtocol inputProtocol =
-                    inputProtocolFactory.getProtocol(decodeAttemptTransport);
-
-            // Skip through the message
-            inputProtocol.readMessageBegin();
-            TProtocolUtil.skip(inputProtocol, TType.STRUCT);
-            inputProtocol.readMessageEnd();
-
-            messageLength = decodeAttemptTransport.getReadByteCount() - initialReadBytes;
-        } catch (TTransportException | IndexOutOfBoundsException e) {
-            // No complete message was decoded: ran out of bytes
-            return null;
-        } finally {
-            if (buffer.readerIndex() - messageStartReaderIndex > maxFrameSize) {
-                    throw new  TooLongFrameException("Maximum frame size of " + maxFrameSize + " exceeded");
-            }
-
-            buffer.readerIndex(messageStartReaderIndex);
+        int messageLength = scanner.scan(buffer);
+        if (messageLength > maxFrameSize
+                || (messageLength < 0 && Math.max(scanner.getPosition(), buffer.readableBytes()) > maxFrameSize)) {
+            throw new TooLongFrameException("Maximum frame size of " + maxFrameSize + " exceeded");
         }
-
-        if (messageLength <= 0) {
+        if (messageLength < 0) {
             return null;
         }
+        scanner.reset();
 
         // We have a full message in the read buffer, slice it off
         ByteBuf messageBuffer =
@@ -163,7 +196,8 @@ public class DefaultThriftFrameDecoder extends ByteToMessageDecoder {
 
     protected ByteBuf extractFrame(ByteBuf buffer, int index, int length) {
         // Slice should be sufficient here (and avoids the copy in LengthFieldBasedFrameDecoder)
-        // because we know no one is going to modify the contents in the read buffers.
-        return buffer.slice(index, length);
+        // because we know no one is going to modify the contents in the read buffers. The slice
+        // is retained so the cumulation outlives the decode call; ThriftInboundHandler releases it.
+        return buffer.slice(index, length).retain();
     }
 }
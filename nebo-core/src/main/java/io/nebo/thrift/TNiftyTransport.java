@@ -16,7 +16,6 @@
 package io.nebo.thrift;
 
 import io.netty.buffer.ByteBuf;
-import io.netty.buffer.Unpooled;
 import io.netty.channel.Channel;
 import org.apache.thrift.transport.TTransport;
 import org.apache.thrift.transport.TTransportException;
@@ -27,22 +26,37 @@ import org.apache.thrift.transport.TTransportException;
 public class TNiftyTransport extends TTransport
 {
     private final Channel channel;
-    private final ByteBuf in;
+    private ByteBuf in;
     private ByteBuf out;
-    private static final int DEFAULT_OUTPUT_BUFFER_SIZE = 1024;
-    private final int initialReaderIndex;
-    private final int initialBufferPosition;
+    private int initialReaderIndex;
+    private int initialBufferPosition;
     private int bufferPosition;
     private int bufferEnd;
-    private final byte[] buffer;
-    private final ThriftTransportType thriftTransportType;
+    private byte[] buffer;
+    private ThriftTransportType thriftTransportType;
+
+    /**
+     * Create a transport with no input, to be {@link #reset(ByteBuf, ThriftTransportType) reset} for every message
+     * received on the channel.
+     */
+    public TNiftyTransport(Channel channel)
+    {
+        this.channel = channel;
+    }
 
     public TNiftyTransport(Channel channel,
                            ByteBuf in, ThriftTransportType thriftTransportType)
     {
-        this.channel = channel;
+        this(channel);
+        reset(in, thriftTransportType);
+    }
+
+    /**
+     * Point the transport at the next incoming message. The output buffer has to be set separately.
+     */
+    public void reset(ByteBuf in, ThriftTransportType thriftTransportType)
+    {
         this.in = in;
-        this.out = Unpooled.buffer(DEFAULT_OUTPUT_BUFFER_SIZE);
         this.thriftTransportType = thriftTransportType;
         this.initialReaderIndex = in.readerIndex();
 
@@ -63,6 +77,16 @@ public class TNiftyTransport extends TTransport
         }
     }
 
+    /**
+     * Drop the references to the last message and its response.
+     */
+    public void clear()
+    {
+        in = null;
+        out = null;
+        buffer = null;
+    }
+
     @Override
     public boolean isOpen()
     {
@@ -169,6 +193,6 @@ public class TNiftyTransport extends TTransport
 
     public int getWrittenByteCount()
     {
-        return getOutputBuffer().writerIndex();
+        return out == null ? 0 : out.writerIndex();
     }
 }
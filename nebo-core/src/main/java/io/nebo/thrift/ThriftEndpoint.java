@@ -5,6 +5,10 @@ import java.lang.annotation.RetentionPolicy;
 
 /**
  * Created by pengbo on 2016/6/30.
+ * <p/>
+ * Marks a bean serving Thrift calls. The bean implements the generated {@code Iface} or {@code AsyncIface} of one or
+ * more services. {@code AsyncIface} methods are started on the connection's IO thread and must not block; they
+ * complete the call through the {@link org.apache.thrift.async.AsyncMethodCallback} from any thread.
  */
 @Retention(RetentionPolicy.RUNTIME)
 public @interface ThriftEndpoint {
@@ -0,0 +1,317 @@
+package io.nebo.thrift;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.handler.codec.CorruptedFrameException;
+import io.netty.handler.codec.TooLongFrameException;
+import io.netty.util.CharsetUtil;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * The header of a THeader frame, which wraps a Thrift message together with info headers, such as trace ids and
+ * deadlines, and the transforms applied to the payload. A frame is laid out as
+ * <pre>
+ *   LENGTH (4) | MAGIC 0x0FFF (2) | FLAGS (2) | SEQUENCE ID (4) | HEADER SIZE / 4 (2)
+ *   PROTOCOL ID (varint) | TRANSFORM COUNT (varint) | TRANSFORM IDS (varints)
+ *   INFO TYPE (varint) | HEADER COUNT (varint) | KEY/VALUE STRINGS (varint length, UTF-8) ... | PADDING
+ *   PAYLOAD
+ * </pre>
+ * A response repeats the flags, sequence id, protocol and transforms of its request, so a client that compresses its
+ * call with {@link #ZLIB_TRANSFORM zlib} gets a compressed response. Clients setting
+ * {@link #FLAG_SUPPORT_OUT_OF_ORDER} accept responses out of order.
+ */
+public final class ThriftHeader {
+    public static final int MAGIC = 0x0FFF;
+    public static final int FLAG_SUPPORT_OUT_OF_ORDER = 0x01;
+    public static final int ZLIB_TRANSFORM = 1;
+    static final int INFO_KEYVALUE = 1;
+    static final int INFO_PKEYVALUE = 2;
+    // Magic, flags, sequence id and header size
+    private static final int FIXED_SIZE = 10;
+    private static final int DEFLATE_CHUNK_SIZE = 8192;
+
+    private final int flags;
+    private final int sequenceId;
+    private final ThriftProtocolType protocolType;
+    private final int[] transforms;
+    private final Map<String, String> infoHeaders;
+
+    ThriftHeader(int flags, int sequenceId, ThriftProtocolType protocolType, int[] transforms,
+                 Map<String, String> infoHeaders) {
+        this.flags = flags;
+        this.sequenceId = sequenceId;
+        this.protocolType = protocolType;
+        this.transforms = transforms;
+        this.infoHeaders = infoHeaders;
+    }
+
+    /**
+     * @param frame a frame without its length
+     * @return {@code true} if the frame starts with the THeader magic
+     */
+    public static boolean isHeaderFrame(ByteBuf frame) {
+        return frame.readableBytes() >= 2 && frame.getUnsignedShort(frame.readerIndex()) == MAGIC;
+    }
+
+    /**
+     * Read the header of a frame without its length, leaving the frame's reader index at the payload.
+     *
+     * @throws CorruptedFrameException if the header is malformed, or names an unsupported protocol or transform
+     */
+    static ThriftHeader read(ByteBuf frame) {
+        if (frame.readableBytes() < FIXED_SIZE) {
+            throw new CorruptedFrameException("THeader frame too short");
+        }
+        frame.skipBytes(2);
+        int flags = frame.readUnsignedShort();
+        int sequenceId = frame.readInt();
+        int headerSize = frame.readUnsignedShort() * 4;
+        if (headerSize > frame.readableBytes()) {
+            throw new CorruptedFrameException("THeader size " + headerSize + " exceeds the frame");
+        }
+        int end = frame.readerIndex() + headerSize;
+        int protocolId = readVarint(frame, end);
+        ThriftProtocolType protocolType = ThriftProtocolType.forHeaderProtocolId(protocolId);
+        if (protocolType == null) {
+            throw new CorruptedFrameException("Unsupported THeader protocol id " + protocolId);
+        }
+        int[] transforms = new int[readVarint(frame, end)];
+        for (int i = 0; i < transforms.length; i++) {
+            transforms[i] = readVarint(frame, end);
+            if (transforms[i] != ZLIB_TRANSFORM) {
+                throw new CorruptedFrameException("Unsupported THeader transform " + transforms[i]);
+            }
+        }
+        Map<String, String> infoHeaders = Collections.emptyMap();
+        while (frame.readerIndex() < end) {
+            int infoType = readVarint(frame, end);
+            if (infoType != INFO_KEYVALUE && infoType != INFO_PKEYVALUE) {
+                // Padding, or info the server doesn't know about
+                break;
+            }
+            if (infoHeaders.isEmpty()) {
+                infoHeaders = new LinkedHashMap<>();
+            }
+            for (int count = readVarint(frame, end); count > 0; count--) {
+                String key = readString(frame, end);
+                infoHeaders.put(key, readString(frame, end));
+            }
+        }
+        frame.readerIndex(end);
+        return new ThriftHeader(flags, sequenceId, protocolType, transforms, infoHeaders);
+    }
+
+    private static int readVarint(ByteBuf in, int end) {
+        int result = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            if (in.readerIndex() >= end) {
+                throw new CorruptedFrameException("Truncated THeader");
+            }
+            byte b = in.readByte();
+            result |= (b & 0x7F) << shift;
+            if (b >= 0) {
+                return result;
+            }
+        }
+        throw new CorruptedFrameException("Malformed varint in THeader");
+    }
+
+    private static String readString(ByteBuf in, int end) {
+        int length = readVarint(in, end);
+        if (length < 0 || length > end - in.readerIndex()) {
+            throw new CorruptedFrameException("Truncated THeader");
+        }
+        String value = in.toString(in.readerIndex(), length, CharsetUtil.UTF_8);
+        in.skipBytes(length);
+        return value;
+    }
+
+    private static void writeVarint(ByteBuf out, int value) {
+        while ((value & ~0x7F) != 0) {
+            out.writeByte((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte(value);
+    }
+
+    public int getFlags() {
+        return flags;
+    }
+
+    public int getSequenceId() {
+        return sequenceId;
+    }
+
+    public ThriftProtocolType getProtocolType() {
+        return protocolType;
+    }
+
+    public boolean isOutOfOrderSupported() {
+        return (flags & FLAG_SUPPORT_OUT_OF_ORDER) != 0;
+    }
+
+    public boolean isCompressed() {
+        return transforms.length > 0;
+    }
+
+    /**
+     * @return the key/value info headers of the request, such as trace ids and deadlines
+     */
+    public Map<String, String> getInfoHeaders() {
+        return Collections.unmodifiableMap(infoHeaders);
+    }
+
+    public String getInfoHeader(String key) {
+        return infoHeaders.get(key);
+    }
+
+    /**
+     * Undo the transforms of a request payload.
+     *
+     * @return the payload itself if it isn't transformed, otherwise a new buffer, in which case the payload is released.
+     * The payload is also released if it can't be decoded.
+     * @throws TooLongFrameException if the payload inflates to more than {@code maxSize} bytes
+     */
+    ByteBuf decodePayload(ByteBuf payload, ByteBufAllocator alloc, int maxSize) {
+        if (!isCompressed()) {
+            return payload;
+        }
+        // Every supported transform is zlib, applying it several times is legal if pointless
+        ByteBuf decoded = payload;
+        try {
+            for (int i = 0; i < transforms.length; i++) {
+                ByteBuf inflated = inflate(decoded, alloc, maxSize);
+                decoded.release();
+                decoded = inflated;
+            }
+            return decoded;
+        } catch (RuntimeException e) {
+            // Whichever of the payload or an intermediate result was being inflated
+            decoded.release();
+            throw e;
+        }
+    }
+
+    private static ByteBuf inflate(ByteBuf in, ByteBufAllocator alloc, int maxSize) {
+        Inflater inflater = new Inflater();
+        ByteBuf out = alloc.heapBuffer(Math.min(maxSize, Math.max(64, in.readableBytes() * 4)));
+        try {
+            if (in.hasArray()) {
+                inflater.setInput(in.array(), in.arrayOffset() + in.readerIndex(), in.readableBytes());
+            } else {
+                byte[] bytes = new byte[in.readableBytes()];
+                in.getBytes(in.readerIndex(), bytes);
+                inflater.setInput(bytes);
+            }
+            while (!inflater.finished()) {
+                if (!out.isWritable()) {
+                    if (out.capacity() >= maxSize) {
+                        throw new TooLongFrameException("Maximum frame size of " + maxSize + " exceeded");
+                    }
+                    out.capacity(Math.min(maxSize, out.capacity() * 2));
+                }
+                int n = inflater.inflate(out.array(), out.arrayOffset() + out.writerIndex(), out.writableBytes());
+                if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new CorruptedFrameException("Truncated zlib payload");
+                }
+                out.writerIndex(out.writerIndex() + n);
+            }
+            return out;
+        } catch (DataFormatException e) {
+            out.release();
+            throw new CorruptedFrameException("Malformed zlib payload", e);
+        } catch (RuntimeException e) {
+            out.release();
+            throw e;
+        } finally {
+            inflater.end();
+        }
+    }
+
+    /**
+     * Start a response: reserve the frame length and, unless the payload is to be transformed, write the header. The
+     * payload is then written after it.
+     */
+    void beginResponse(ByteBuf out) {
+        out.writeInt(0);
+        if (!isCompressed()) {
+            writeHeader(out);
+        }
+    }
+
+    /**
+     * Finish a response started with {@link #beginResponse(ByteBuf)}.
+     *
+     * @return the framed response, {@code out} itself unless the payload is transformed, in which case {@code out} is
+     * released
+     */
+    ByteBuf endResponse(ByteBuf out, ByteBufAllocator alloc) {
+        if (!isCompressed()) {
+            out.setInt(out.readerIndex(), out.readableBytes() - DefaultThriftFrameDecoder.MESSAGE_FRAME_SIZE);
+            return out;
+        }
+        out.skipBytes(DefaultThriftFrameDecoder.MESSAGE_FRAME_SIZE);
+        ByteBuf payload = out;
+        for (int i = 0; i < transforms.length; i++) {
+            ByteBuf deflated = deflate(payload, alloc);
+            payload.release();
+            payload = deflated;
+        }
+        ByteBuf framed = alloc.buffer(DefaultThriftFrameDecoder.MESSAGE_FRAME_SIZE + FIXED_SIZE + 8 + payload.readableBytes());
+        framed.writeInt(0);
+        writeHeader(framed);
+        framed.writeBytes(payload);
+        payload.release();
+        framed.setInt(0, framed.readableBytes() - DefaultThriftFrameDecoder.MESSAGE_FRAME_SIZE);
+        return framed;
+    }
+
+    private static ByteBuf deflate(ByteBuf in, ByteBufAllocator alloc) {
+        Deflater deflater = new Deflater();
+        ByteBuf out = alloc.heapBuffer(Math.max(64, in.readableBytes() / 2));
+        try {
+            if (in.hasArray()) {
+                deflater.setInput(in.array(), in.arrayOffset() + in.readerIndex(), in.readableBytes());
+            } else {
+                byte[] bytes = new byte[in.readableBytes()];
+                in.getBytes(in.readerIndex(), bytes);
+                deflater.setInput(bytes);
+            }
+            deflater.finish();
+            while (!deflater.finished()) {
+                out.ensureWritable(DEFLATE_CHUNK_SIZE);
+                int n = deflater.deflate(out.array(), out.arrayOffset() + out.writerIndex(), out.writableBytes());
+                out.writerIndex(out.writerIndex() + n);
+            }
+            return out;
+        } catch (RuntimeException e) {
+            out.release();
+            throw e;
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private void writeHeader(ByteBuf out) {
+        out.writeShort(MAGIC);
+        out.writeShort(flags);
+        out.writeInt(sequenceId);
+        int sizeIndex = out.writerIndex();
+        out.writeShort(0);
+        int start = out.writerIndex();
+        writeVarint(out, protocolType.getHeaderProtocolId());
+        writeVarint(out, transforms.length);
+        for (int transform : transforms) {
+            writeVarint(out, transform);
+        }
+        // The header size is counted in words
+        out.writeZero((4 - (out.writerIndex() - start) % 4) % 4);
+        out.setShort(sizeIndex, (out.writerIndex() - start) / 4);
+    }
+}
@@ -0,0 +1,204 @@
+package io.nebo.thrift;
+
+import io.nebo.container.HttpDateHeader;
+import io.nebo.container.RequestContentConfig;
+import io.nebo.container.RequestDeadline;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.CompositeByteBuf;
+import io.netty.buffer.DefaultByteBufHolder;
+import io.netty.channel.ChannelDuplexHandler;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelPromise;
+import io.netty.handler.codec.http.DefaultFullHttpResponse;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpContent;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpVersion;
+import io.netty.handler.codec.http.LastHttpContent;
+import io.netty.handler.codec.http.QueryStringDecoder;
+import io.netty.util.AsciiString;
+import io.netty.util.ReferenceCountUtil;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.util.ArrayDeque;
+
+/**
+ * Serves Thrift calls sent over HTTP, such as by {@link org.apache.thrift.transport.THttpClient}, on the HTTP side of
+ * the port. A {@code POST} to {@code /thrift/{service}} never reaches the servlets: its body is passed down the
+ * pipeline to a {@link ThriftInboundHandler} as a {@link ThriftMessage} without being copied, and the response comes
+ * back as an {@code application/x-thrift} {@link FullHttpResponse} on the same, kept alive, connection. Calls whose
+ * message name has no service prefix are dispatched to the service in the path, so plain and multiplexed clients
+ * both work.
+ * <p/>
+ * Only the {@link Reply replies} the {@link ThriftInboundHandler} writes are turned into HTTP responses; the servlet
+ * responses on the same connection pass through untouched.
+ * <p/>
+ * Bodies are limited by {@link RequestContentConfig#getMaxContentLength(String)}; every other request passes through
+ * untouched.
+ */
+public class ThriftHttpHandler extends ChannelDuplexHandler {
+    public static final String PATH = "/thrift/";
+    public static final String CONTENT_TYPE = "application/x-thrift";
+    private static final AsciiString CONTENT_TYPE_VALUE = new AsciiString(CONTENT_TYPE);
+
+    private static final Log log = LogFactory.getLog(ThriftHttpHandler.class);
+    private final RequestContentConfig contentConfig;
+    // Whether to keep the connection open after each Thrift response yet to be written, in request order
+    private final ArrayDeque<Boolean> keepAlive = new ArrayDeque<>();
+    private boolean receiving;
+    private boolean discarding;
+    private String serviceName;
+    private String clientTimeout;
+    private boolean requestKeepAlive;
+    private long maxContentLength;
+    // The body received so far, a composite once it spans several chunks
+    private ByteBuf content;
+
+    public ThriftHttpHandler(RequestContentConfig contentConfig) {
+        this.contentConfig = contentConfig;
+    }
+
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+        if (msg instanceof HttpRequest) {
+            HttpRequest request = (HttpRequest) msg;
+            receiving = HttpMethod.POST.equals(request.getMethod()) && request.getUri().startsWith(PATH);
+            discarding = false;
+            if (receiving) {
+                String path = new QueryStringDecoder(request.getUri()).path();
+                serviceName = path.length() > PATH.length() ? path.substring(PATH.length()) : null;
+                clientTimeout = request.headers().get(RequestDeadline.HEADER);
+                requestKeepAlive = HttpHeaders.isKeepAlive(request);
+                maxContentLength = contentConfig.getMaxContentLength(request.getUri());
+                if (HttpHeaders.getContentLength(request, -1) > maxContentLength) {
+                    ReferenceCountUtil.release(msg);
+                    reject(ctx, HttpResponseStatus.REQUEST_ENTITY_TOO_LARGE, "Request body exceeds " + maxContentLength + " bytes");
+                    return;
+                }
+                if (HttpHeaders.is100ContinueExpected(request)) {
+                    ctx.writeAndFlush(new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.CONTINUE), ctx.voidPromise());
+                }
+            }
+        }
+        if (!receiving && !discarding) {
+            ctx.fireChannelRead(msg);
+            return;
+        }
+        try {
+            if (discarding || !(msg instanceof HttpContent)) {
+                return;
+            }
+            ByteBuf chunk = ((HttpContent) msg).content();
+            if (chunk.isReadable()) {
+                if ((content != null ? content.readableBytes() : 0) + chunk.readableBytes() > maxContentLength) {
+                    reject(ctx, HttpResponseStatus.REQUEST_ENTITY_TOO_LARGE, "Request body exceeds " + maxContentLength + " bytes");
+                    return;
+                }
+                append(ctx, chunk);
+            }
+            if (msg instanceof LastHttpContent) {
+                receiving = false;
+                dispatch(ctx);
+            }
+        } finally {
+            ReferenceCountUtil.release(msg);
+        }
+    }
+
+    private void append(ChannelHandlerContext ctx, ByteBuf chunk) {
+        if (content == null) {
+            content = chunk.retain();
+            return;
+        }
+        if (!(content instanceof CompositeByteBuf)) {
+            // Never consolidated, so the chunks are not copied
+            CompositeByteBuf composite = ctx.alloc().compositeBuffer(Integer.MAX_VALUE);
+            composite.addComponent(content);
+            composite.writerIndex(content.readableBytes());
+            content = composite;
+        }
+        CompositeByteBuf composite = (CompositeByteBuf) content;
+        composite.addComponent(chunk.retain());
+        composite.writerIndex(composite.writerIndex() + chunk.readableBytes());
+    }
+
+    private void dispatch(ChannelHandlerContext ctx) {
+        ByteBuf body = content;
+        content = null;
+        if (body == null) {
+            reject(ctx, HttpResponseStatus.BAD_REQUEST, "Empty Thrift request");
+            return;
+        }
+        ThriftProtocolType protocolType = ThriftProtocolType.forProtocolId(body.getUnsignedByte(body.readerIndex()));
+        if (protocolType == null) {
+            body.release();
+            reject(ctx, HttpResponseStatus.UNSUPPORTED_MEDIA_TYPE, "Unsupported Thrift protocol");
+            return;
+        }
+        keepAlive.add(requestKeepAlive);
+        ThriftMessage message = new ThriftMessage(body, ThriftTransportType.HTTP, protocolType);
+        message.setServiceName(serviceName);
+        message.setClientTimeout(clientTimeout);
+        ctx.fireChannelRead(message);
+    }
+
+    /**
+     * Answer the request being received with an error and close the connection.
+     */
+    private void reject(ChannelHandlerContext ctx, HttpResponseStatus status, String reason) {
+        receiving = false;
+        discarding = true;
+        if (content != null) {
+            content.release();
+            content = null;
+        }
+        log.warn(reason + " from " + ctx.channel().remoteAddress() + ", closing connection");
+        FullHttpResponse response = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, status);
+        HttpHeaders.setContentLength(response, 0);
+        HttpHeaders.setKeepAlive(response, false);
+        ctx.writeAndFlush(response).addListener(ChannelFutureListener.CLOSE);
+    }
+
+    @Override
+    public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) throws Exception {
+        if (!(msg instanceof Reply)) {
+            ctx.write(msg, promise);
+            return;
+        }
+        ByteBuf body = ((Reply) msg).content();
+        boolean close = !keepAlive.poll();
+        FullHttpResponse response = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.OK, body);
+        response.headers().set(HttpHeaderNames.CONTENT_TYPE, CONTENT_TYPE_VALUE);
+        response.headers().set(HttpHeaderNames.DATE, HttpDateHeader.get());
+        HttpHeaders.setContentLength(response, body.readableBytes());
+        HttpHeaders.setKeepAlive(response, !close);
+        ctx.write(response, promise);
+        if (close) {
+            promise.addListener(ChannelFutureListener.CLOSE);
+        }
+    }
+
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+        if (content != null) {
+            content.release();
+            content = null;
+        }
+        super.channelInactive(ctx);
+    }
+
+    /**
+     * The serialized response to a Thrift call received over HTTP, to be sent back in the body of the HTTP response.
+     */
+    static final class Reply extends DefaultByteBufHolder {
+        Reply(ByteBuf content) {
+            super(content);
+        }
+    }
+}
@@ -1,48 +1,387 @@
 package io.nebo.thrift;
 
 import io.nebo.container.NettyEmbeddedContext;
+import io.nebo.container.ReadSuspension;
+import io.nebo.container.RequestDeadline;
+import io.nebo.container.WorkerExecutor;
 import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.util.ReferenceCountUtil;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
-import org.apache.thrift.TMultiplexedProcessor;
-import org.apache.thrift.protocol.TBinaryProtocol;
+import org.apache.thrift.TApplicationException;
+import org.apache.thrift.protocol.TMessage;
+import org.apache.thrift.protocol.TMessageType;
 import org.apache.thrift.protocol.TProtocol;
+import org.apache.thrift.protocol.TProtocolFactory;
+import org.apache.thrift.protocol.TProtocolUtil;
+import org.apache.thrift.protocol.TType;
 
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Runs the Thrift calls received on a channel, several at a time. Each call is dispatched to its method in the
+ * {@link ThriftProcessorRegistry}. Methods of a generated {@code AsyncIface} are started on the IO thread and write
+ * their response from their callback, so they hold no thread while they wait; other methods run on the Thrift worker
+ * pool.
+ * <p/>
+ * Responses to calls that require ordered responses are held in a reorder buffer until every earlier such call has
+ * been answered; other responses are written as soon as they are ready. Reads are suspended while the configured
+ * number of calls is in flight; calls still decoded from bytes read before that wait in a queue until an earlier call
+ * has finished, so no more than that number ever run at once. Calls the pool rejects, and calls whose {@link RequestDeadline} passes while they wait
+ * for a worker, are answered with a {@link TApplicationException}. The deadlines of the calls in flight are cancelled
+ * when the connection closes.
+ */
 public class ThriftInboundHandler extends ChannelInboundHandlerAdapter {
 
     private static Log log = LogFactory.getLog(ThriftInboundHandler.class);
-    private final NettyEmbeddedContext context;
-    private TMultiplexedProcessor processor;
+    // Takes the place of a oneway call's response in the reorder buffer
+    private static final Object NO_RESPONSE = Unpooled.EMPTY_BUFFER;
+    private final ThriftProcessorRegistry registry;
+    // Null when calls are processed on the IO thread
+    private final WorkerExecutor executor;
+    private final int maxPipelinedRequests;
+    private final boolean outOfOrderResponses;
+    private final long requestTimeoutMillis;
+    // The state below is only touched on the event loop, the handler is never shared between channels
+    private final ArrayDeque<ThriftCall> idleCalls = new ArrayDeque<>();
+    private final List<ThriftCall> calls = new ArrayList<>();
+    // Responses are buffers, or replies to be sent back over HTTP
+    private final Map<Long, Object> pendingResponses = new HashMap<>();
+    // Calls received while the maximum number is in flight
+    private final ArrayDeque<ThriftMessage> waitingRequests = new ArrayDeque<>();
+    private long nextRequestSequence;
+    private long nextResponseSequence;
+    private int inFlight;
+
     public ThriftInboundHandler(NettyEmbeddedContext context) {
-        this.context = context;
-        this.processor = context.getProcessor();
+        this(context, null, new ThriftServerConfig());
+    }
+
+    public ThriftInboundHandler(NettyEmbeddedContext context, WorkerExecutor executor, ThriftServerConfig config) {
+        this(context.getProcessorRegistry(), context.getRequestTimeoutMillis(), executor, config);
+    }
+
+    ThriftInboundHandler(ThriftProcessorRegistry registry, long requestTimeoutMillis, WorkerExecutor executor,
+                         ThriftServerConfig config) {
+        this.registry = registry;
+        this.executor = executor;
+        this.maxPipelinedRequests = config.getMaxPipelinedRequests();
+        this.outOfOrderResponses = config.isOutOfOrderResponses();
+        this.requestTimeoutMillis = requestTimeoutMillis;
     }
 
     @Override
-    public void channelRead(ChannelHandlerContext ctx, Object obj)
+    public void channelRead(final ChannelHandlerContext ctx, Object obj)
             throws Exception {
         ThriftMessage msg = (ThriftMessage) obj;
-        ByteBuf inBuf = msg.getBuffer();
-        TNiftyTransport decodeAttemptTransport =
-                new TNiftyTransport(ctx.channel(),inBuf,msg.getTransportType());
-        decodeAttemptTransport.setOutputBuffer(ctx.alloc().buffer());
-        TProtocol inProtocol = new TBinaryProtocol(decodeAttemptTransport);
-        TProtocol outProtocol = new TBinaryProtocol(decodeAttemptTransport);
-        boolean flag = processor.process(inProtocol, outProtocol);
-        ctx.writeAndFlush(decodeAttemptTransport.getOutputBuffer());
+        if (inFlight >= maxPipelinedRequests || !waitingRequests.isEmpty()) {
+            waitingRequests.add(msg);
+            return;
+        }
+        dispatch(ctx, msg);
+    }
+
+    private void dispatch(ChannelHandlerContext ctx, final ThriftMessage msg) {
+        final ThriftCall call = idleCalls.isEmpty() ? newCall(ctx) : idleCalls.pop();
+        // Unordered responses are written as soon as they are ready and don't take a place in the sequence. HTTP
+        // responses are only matched to their requests by their order.
+        boolean ordered = msg.isOrderedResponsesRequired()
+                && (!outOfOrderResponses || msg.getTransportType() == ThriftTransportType.HTTP);
+        call.sequence = ordered ? nextRequestSequence++ : -1;
+        if (++inFlight >= maxPipelinedRequests) {
+            ReadSuspension.of(ctx.channel()).suspend(this);
+        }
+        if (!call.prepare(msg)) {
+            return;
+        }
+        if (executor == null || !call.isBlocking()) {
+            call.run(msg);
+            return;
+        }
+        boolean accepted = executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                call.run(msg);
+            }
+        }, call.deadline, new Runnable() {
+            @Override
+            public void run() {
+                call.reject(msg, "Deadline exceeded, call shed");
+            }
+        });
+        if (!accepted) {
+            call.reject(msg, "Server overloaded, call rejected");
+        }
+    }
+
+    private ThriftCall newCall(ChannelHandlerContext ctx) {
+        ThriftCall call = new ThriftCall(ctx);
+        calls.add(call);
+        return call;
+    }
+
+    private static void runOnEventLoop(ChannelHandlerContext ctx, Object response, Runnable task) {
+        if (ctx.executor().inEventLoop()) {
+            task.run();
+            return;
+        }
+        try {
+            ctx.executor().execute(task);
+        } catch (RejectedExecutionException e) {
+            // The event loop is shutting down, the response can't be written anyway
+            ReferenceCountUtil.release(response);
+        }
+    }
+
+    /**
+     * Write a finished call's response, or buffer it until the responses to earlier calls have been written.
+     */
+    private void complete(ChannelHandlerContext ctx, long sequence, ThriftCall call, Object response) {
+        idleCalls.push(call);
+        inFlight--;
+        if (!ctx.channel().isActive()) {
+            ReferenceCountUtil.release(response);
+            return;
+        }
+        if (sequence < 0) {
+            if (response != null) {
+                ctx.writeAndFlush(response);
+            }
+        } else {
+            // Oneway calls still take their place in the sequence, with an empty response
+            pendingResponses.put(sequence, response != null ? response : NO_RESPONSE);
+            boolean written = false;
+            Object next;
+            while ((next = pendingResponses.remove(nextResponseSequence)) != null) {
+                nextResponseSequence++;
+                if (next != NO_RESPONSE) {
+                    ctx.write(next);
+                    written = true;
+                }
+            }
+            if (written) {
+                ctx.flush();
+            }
+        }
+        while (inFlight < maxPipelinedRequests && !waitingRequests.isEmpty()) {
+            dispatch(ctx, waitingRequests.poll());
+        }
+        if (inFlight < maxPipelinedRequests) {
+            ReadSuspension.of(ctx.channel()).resume(this);
+        }
+    }
+
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+        for (ThriftCall call : calls) {
+            // Harmless for calls that have already completed
+            if (call.deadline != null) {
+                call.deadline.cancel();
+            }
+        }
+        for (Object response : pendingResponses.values()) {
+            ReferenceCountUtil.release(response);
+        }
+        pendingResponses.clear();
+        ThriftMessage msg;
+        while ((msg = waitingRequests.poll()) != null) {
+            msg.getBuffer().release();
+        }
+        super.channelInactive(ctx);
     }
 
     @Override
     public void channelReadComplete(ChannelHandlerContext ctx) throws Exception {
-        log.info("channelReadComplete ....");
+        log.debug("channelReadComplete ....");
     }
 
     @Override
     public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
-        log.error(cause.getMessage());
+        log.error("Thrift call failed, closing the connection " + ctx.channel(), cause);
         ctx.close();
     }
 
-}
\ No newline at end of file
+    /**
+     * The transport and protocols of one call in flight, reused by later calls on the same channel.
+     */
+    private final class ThriftCall implements ThriftMethod.ResponseCallback {
+        private final ChannelHandlerContext ctx;
+        private final TNiftyTransport transport;
+        private ThriftProtocolType protocolType;
+        private TProtocol inProtocol;
+        private TProtocol outProtocol;
+        private long sequence;
+        private boolean framed;
+        private boolean http;
+        // Null unless the request came in a THeader frame
+        private ThriftHeader header;
+        private ByteBuf outBuf;
+        private int payloadStart;
+        private TMessage message;
+        private ThriftMethod method;
+        private RequestDeadline deadline;
+
+        ThriftCall(ChannelHandlerContext ctx) {
+            this.ctx = ctx;
+            this.transport = new TNiftyTransport(ctx.channel());
+        }
+
+        /**
+         * Read the message header of a request and look up its method.
+         *
+         * @return {@code false} if the header can't be read, the request has been released and the channel is closed
+         */
+        boolean prepare(ThriftMessage msg) {
+            deadline = RequestDeadline.start(msg.getClientTimeout(), requestTimeoutMillis);
+            try {
+                begin(msg);
+                message = inProtocol.readMessageBegin();
+                method = registry.getMethod(msg.getServiceName(), message.name);
+                return true;
+            } catch (Exception e) {
+                msg.getBuffer().release();
+                onError(e);
+                return false;
+            }
+        }
+
+        /**
+         * @return {@code true} if the method may block, and has to run on the worker pool
+         */
+        boolean isBlocking() {
+            return method != null && !method.isAsync();
+        }
+
+        /**
+         * Dispatch a prepared request to its method. The request buffer is released once the arguments have been
+         * read, and the response is handed back to the event loop once the method has finished.
+         */
+        void run(ThriftMessage msg) {
+            RequestDeadline.setCurrent(deadline);
+            try {
+                try {
+                    if (method == null) {
+                        TProtocolUtil.skip(inProtocol, TType.STRUCT);
+                        inProtocol.readMessageEnd();
+                        writeException(message, TApplicationException.UNKNOWN_METHOD,
+                                "Invalid method name: '" + message.name + "'");
+                    } else if (method.isAsync()) {
+                        ((ThriftMethod.Async) method).start(message, inProtocol, outProtocol, this);
+                        return;
+                    } else {
+                        ((ThriftMethod.Sync) method).process(message, inProtocol, outProtocol);
+                    }
+                } finally {
+                    msg.getBuffer().release();
+                }
+                onComplete();
+            } catch (Exception e) {
+                onError(e);
+            } finally {
+                RequestDeadline.setCurrent(null);
+            }
+        }
+
+        /**
+         * Answer a prepared request that won't run with an exception, or nothing if it is oneway.
+         */
+        void reject(ThriftMessage msg, String reason) {
+            try {
+                try {
+                    writeException(message, TApplicationException.INTERNAL_ERROR, reason);
+                } finally {
+                    msg.getBuffer().release();
+                }
+                onComplete();
+            } catch (Exception e) {
+                onError(e);
+            }
+        }
+
+        private void writeException(TMessage message, int type, String text) throws Exception {
+            if (message.type == TMessageType.ONEWAY) {
+                return;
+            }
+            outProtocol.writeMessageBegin(new TMessage(message.name, TMessageType.EXCEPTION, message.seqid));
+            new TApplicationException(type, text).write(outProtocol);
+            outProtocol.writeMessageEnd();
+        }
+
+        private void begin(ThriftMessage msg) {
+            transport.reset(msg.getBuffer(), msg.getTransportType());
+            framed = msg.getTransportType() == ThriftTransportType.FRAMED;
+            http = msg.getTransportType() == ThriftTransportType.HTTP;
+            header = msg.getHeader();
+            outBuf = ctx.alloc().buffer();
+            if (header != null) {
+                header.beginResponse(outBuf);
+            } else if (framed) {
+                // Reserve the frame size, filled in once the response has been written
+                outBuf.writeInt(0);
+            }
+            payloadStart = outBuf.writerIndex();
+            transport.setOutputBuffer(outBuf);
+            if (protocolType != msg.getProtocolType()) {
+                protocolType = msg.getProtocolType();
+                TProtocolFactory protocolFactory = protocolType.getProtocolFactory();
+                inProtocol = protocolFactory.getProtocol(transport);
+                outProtocol = protocolFactory.getProtocol(transport);
+            } else {
+                inProtocol.reset();
+                outProtocol.reset();
+            }
+        }
+
+        @Override
+        public void onComplete() {
+            ByteBuf response = outBuf;
+            outBuf = null;
+            message = null;
+            method = null;
+            transport.clear();
+            if (response.writerIndex() == payloadStart && !http) {
+                // Oneway calls have no response, except for the empty one every HTTP request needs
+                response.release();
+                response = null;
+            } else if (header != null) {
+                response = header.endResponse(response, ctx.alloc());
+            } else if (framed) {
+                response.setInt(0, response.readableBytes() - DefaultThriftFrameDecoder.MESSAGE_FRAME_SIZE);
+            }
+            header = null;
+            final Object finished = http ? new ThriftHttpHandler.Reply(response) : response;
+            runOnEventLoop(ctx, finished, new Runnable() {
+                @Override
+                public void run() {
+                    complete(ctx, sequence, ThriftCall.this, finished);
+                }
+            });
+        }
+
+        @Override
+        public void onError(final Exception cause) {
+            if (outBuf != null) {
+                outBuf.release();
+                outBuf = null;
+            }
+            message = null;
+            method = null;
+            header = null;
+            transport.clear();
+            runOnEventLoop(ctx, null, new Runnable() {
+                @Override
+                public void run() {
+                    exceptionCaught(ctx, cause);
+                }
+            });
+        }
+    }
+}
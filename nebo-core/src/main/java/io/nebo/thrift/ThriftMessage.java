@@ -16,20 +16,40 @@
 package io.nebo.thrift;
 
 import io.netty.buffer.ByteBuf;
-import io.netty.buffer.Unpooled;
 
+/**
+ * A single Thrift request as cut from the connection's input. The buffer is a retained slice of the decoder's
+ * cumulation rather than a copy; whoever consumes the message owns that reference and must release it once the
+ * request has been processed.
+ */
 public class ThriftMessage
 {
     private final ByteBuf buffer;
     private final ThriftTransportType transportType;
+    private final ThriftProtocolType protocolType;
+    private final boolean orderedResponsesRequired;
     private long processStartTimeMillis;
+    private String serviceName;
+    private ThriftHeader header;
+    private String clientTimeout;
 
     public ThriftMessage(ByteBuf buffer, ThriftTransportType transportType)
     {
-        ByteBuf parent = Unpooled.buffer();
-        parent.writeBytes(buffer);
-        this.buffer = parent;
+        this(buffer, transportType, ThriftProtocolType.BINARY);
+    }
+
+    public ThriftMessage(ByteBuf buffer, ThriftTransportType transportType, ThriftProtocolType protocolType)
+    {
+        this(buffer, transportType, protocolType, true);
+    }
+
+    public ThriftMessage(ByteBuf buffer, ThriftTransportType transportType, ThriftProtocolType protocolType,
+                         boolean orderedResponsesRequired)
+    {
+        this.buffer = buffer;
         this.transportType = transportType;
+        this.protocolType = protocolType;
+        this.orderedResponsesRequired = orderedResponsesRequired;
     }
 
     public ByteBuf getBuffer()
@@ -42,6 +62,11 @@ public class ThriftMessage
         return transportType;
     }
 
+    public ThriftProtocolType getProtocolType()
+    {
+        return protocolType;
+    }
+
 
     public Factory getMessageFactory()
     {
@@ -50,7 +75,8 @@ public class ThriftMessage
             @Override
             public ThriftMessage create(ByteBuf messageBuffer)
             {
-                return new ThriftMessage(messageBuffer, getTransportType());
+                return new ThriftMessage(messageBuffer, getTransportType(), getProtocolType(),
+                        isOrderedResponsesRequired());
             }
         };
     }
@@ -66,7 +92,7 @@ public class ThriftMessage
      */
     public boolean isOrderedResponsesRequired()
     {
-        return true;
+        return orderedResponsesRequired;
     }
 
     public long getProcessStartTimeMillis() { return processStartTimeMillis; }
@@ -76,6 +102,46 @@ public class ThriftMessage
         this.processStartTimeMillis = processStartTimeMillis;
     }
 
+    /**
+     * @return the service calls without a service prefix in their message name are dispatched to, or {@code null}
+     */
+    public String getServiceName()
+    {
+        return serviceName;
+    }
+
+    public void setServiceName(String serviceName)
+    {
+        this.serviceName = serviceName;
+    }
+
+    /**
+     * @return the header of a message received in a THeader frame, or {@code null}
+     */
+    public ThriftHeader getHeader()
+    {
+        return header;
+    }
+
+    public void setHeader(ThriftHeader header)
+    {
+        this.header = header;
+    }
+
+    /**
+     * @return the timeout the client sent with the message, or {@code null}, see
+     * {@link io.nebo.container.RequestDeadline}
+     */
+    public String getClientTimeout()
+    {
+        return clientTimeout;
+    }
+
+    public void setClientTimeout(String clientTimeout)
+    {
+        this.clientTimeout = clientTimeout;
+    }
+
     public static interface Factory
     {
         public ThriftMessage create(ByteBuf messageBuffer);
@@ -0,0 +1,212 @@
+package io.nebo.thrift;
+
+import org.apache.thrift.AsyncProcessFunction;
+import org.apache.thrift.ProcessFunction;
+import org.apache.thrift.TApplicationException;
+import org.apache.thrift.TBase;
+import org.apache.thrift.TException;
+import org.apache.thrift.TFieldIdEnum;
+import org.apache.thrift.async.AsyncMethodCallback;
+import org.apache.thrift.meta_data.FieldMetaData;
+import org.apache.thrift.meta_data.StructMetaData;
+import org.apache.thrift.protocol.TMessage;
+import org.apache.thrift.protocol.TMessageType;
+import org.apache.thrift.protocol.TProtocol;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A single method of a registered Thrift service, bound to the handler implementing it. Incoming calls are dispatched
+ * straight to the method by their full message name, see {@link ThriftProcessorRegistry}.
+ */
+public abstract class ThriftMethod {
+    private final String serviceName;
+    private final String methodName;
+
+    ThriftMethod(String serviceName, String methodName) {
+        this.serviceName = serviceName;
+        this.methodName = methodName;
+    }
+
+    public String getServiceName() {
+        return serviceName;
+    }
+
+    public String getMethodName() {
+        return methodName;
+    }
+
+    /**
+     * @return {@code true} if the handler implements the generated {@code AsyncIface}
+     */
+    public abstract boolean isAsync();
+
+    @Override
+    public String toString() {
+        return serviceName + ":" + methodName + (isAsync() ? " (async)" : "");
+    }
+
+    /**
+     * A method of a generated {@code Iface}, which returns its result.
+     */
+    static final class Sync extends ThriftMethod {
+        private final ProcessFunction<Object, ?> function;
+        private final Object iface;
+
+        // The function comes from the processor of an interface the handler implements
+        @SuppressWarnings("unchecked")
+        Sync(String serviceName, ProcessFunction<?, ?> function, Object iface) {
+            super(serviceName, function.getMethodName());
+            this.function = (ProcessFunction<Object, ?>) function;
+            this.iface = iface;
+        }
+
+        @Override
+        public boolean isAsync() {
+            return false;
+        }
+
+        /**
+         * Read the arguments of a call whose message header has been read, invoke the handler and write the response.
+         */
+        void process(TMessage message, TProtocol in, TProtocol out) throws TException {
+            function.process(message.seqid, in, out, iface);
+        }
+    }
+
+    /**
+     * A method of a generated {@code AsyncIface}, which hands its result to a callback.
+     */
+    static final class Async extends ThriftMethod {
+        private final AsyncProcessFunction<Object, TBase<?, ?>, Object> function;
+        private final Object iface;
+        // Null for oneway methods, which have no result struct
+        private final Class<? extends TBase<?, ?>> resultClass;
+        private final TFieldIdEnum successField;
+        private final Map<Class<?>, TFieldIdEnum> exceptionFields;
+
+        // The function comes from the processor of an interface the handler implements, and generated functions
+        // always take a struct of arguments
+        @SuppressWarnings("unchecked")
+        Async(String serviceName, AsyncProcessFunction<?, ?, ?> function, Object iface,
+              Class<? extends TBase<?, ?>> resultClass) {
+            super(serviceName, function.getMethodName());
+            this.function = (AsyncProcessFunction<Object, TBase<?, ?>, Object>) function;
+            this.iface = iface;
+            this.resultClass = resultClass;
+            TFieldIdEnum success = null;
+            Map<Class<?>, TFieldIdEnum> exceptions = new LinkedHashMap<>();
+            if (resultClass != null) {
+                for (Map.Entry<? extends TFieldIdEnum, FieldMetaData> entry
+                        : FieldMetaData.getStructMetaDataMap(resultClass).entrySet()) {
+                    if (entry.getKey().getThriftFieldId() == 0) {
+                        success = entry.getKey();
+                    } else if (entry.getValue().valueMetaData instanceof StructMetaData) {
+                        exceptions.put(((StructMetaData) entry.getValue().valueMetaData).structClass, entry.getKey());
+                    }
+                }
+            }
+            this.successField = success;
+            this.exceptionFields = exceptions;
+        }
+
+        @Override
+        public boolean isAsync() {
+            return true;
+        }
+
+        /**
+         * Read the arguments of a call whose message header has been read and start the handler. The callback is
+         * notified once the handler has finished and its response, if any, has been written. Handlers completing more
+         * than once are ignored after the first time.
+         */
+        void start(final TMessage message, TProtocol in, final TProtocol out, final ResponseCallback callback)
+                throws TException {
+            TBase<?, ?> args = function.getEmptyArgsInstance();
+            args.read(in);
+            in.readMessageEnd();
+            function.start(iface, args, new AsyncMethodCallback<Object>() {
+                private final AtomicBoolean completed = new AtomicBoolean();
+
+                @Override
+                public void onComplete(Object response) {
+                    if (!completed.compareAndSet(false, true)) {
+                        return;
+                    }
+                    try {
+                        if (message.type == TMessageType.ONEWAY) {
+                            callback.onComplete();
+                            return;
+                        }
+                        TBase<?, TFieldIdEnum> result = newResult();
+                        if (successField != null) {
+                            result.setFieldValue(successField, response);
+                        }
+                        write(out, new TMessage(getMethodName(), TMessageType.REPLY, message.seqid), result);
+                        callback.onComplete();
+                    } catch (Exception e) {
+                        callback.onError(e);
+                    }
+                }
+
+                @Override
+                public void onError(Exception e) {
+                    if (!completed.compareAndSet(false, true)) {
+                        return;
+                    }
+                    try {
+                        if (message.type == TMessageType.ONEWAY) {
+                            callback.onComplete();
+                            return;
+                        }
+                        for (Map.Entry<Class<?>, TFieldIdEnum> entry : exceptionFields.entrySet()) {
+                            if (entry.getKey().isInstance(e)) {
+                                TBase<?, TFieldIdEnum> result = newResult();
+                                result.setFieldValue(entry.getValue(), e);
+                                write(out, new TMessage(getMethodName(), TMessageType.REPLY, message.seqid), result);
+                                callback.onComplete();
+                                return;
+                            }
+                        }
+                        TApplicationException x = e instanceof TApplicationException ? (TApplicationException) e
+                                : new TApplicationException(TApplicationException.INTERNAL_ERROR, e.getMessage());
+                        out.writeMessageBegin(new TMessage(getMethodName(), TMessageType.EXCEPTION, message.seqid));
+                        x.write(out);
+                        out.writeMessageEnd();
+                        out.getTransport().flush();
+                        callback.onComplete();
+                    } catch (Exception writeError) {
+                        callback.onError(writeError);
+                    }
+                }
+            });
+        }
+
+        // The fields set on the result are taken from the result class's own metadata
+        @SuppressWarnings("unchecked")
+        private TBase<?, TFieldIdEnum> newResult() throws ReflectiveOperationException {
+            return (TBase<?, TFieldIdEnum>) resultClass.getDeclaredConstructor().newInstance();
+        }
+
+        private static void write(TProtocol out, TMessage message, TBase<?, ?> result) throws TException {
+            out.writeMessageBegin(message);
+            result.write(out);
+            out.writeMessageEnd();
+            out.getTransport().flush();
+        }
+    }
+
+    /**
+     * Notified when the response to an asynchronous call has been written to the output protocol.
+     */
+    interface ResponseCallback {
+        void onComplete();
+
+        /**
+         * The response could not be written.
+         */
+        void onError(Exception e);
+    }
+}
@@ -0,0 +1,172 @@
+package io.nebo.thrift;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.thrift.AsyncProcessFunction;
+import org.apache.thrift.ProcessFunction;
+import org.apache.thrift.TBase;
+import org.apache.thrift.TBaseAsyncProcessor;
+import org.apache.thrift.TBaseProcessor;
+import org.apache.thrift.protocol.TMultiplexedProtocol;
+import org.springframework.beans.factory.ListableBeanFactory;
+import org.springframework.util.ClassUtils;
+
+import java.beans.Introspector;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * The Thrift methods served by the container, indexed by the message name clients send.
+ * <p/>
+ * Handlers are beans annotated with {@link ThriftEndpoint} implementing one or more generated {@code Iface} or
+ * {@code AsyncIface} interfaces. The registry is built once at startup from the generated processors' process maps,
+ * so a call is dispatched with a single lookup of its {@code service:method} name instead of the name being split
+ * and resolved to a processor on every call. When only one service is registered its methods can also be called
+ * without the service prefix, by clients that don't use {@link TMultiplexedProtocol}.
+ */
+public class ThriftProcessorRegistry {
+    private static final Log logger = LogFactory.getLog(ThriftProcessorRegistry.class);
+    private static final String IFACE = "Iface";
+    private static final String ASYNC_IFACE = "AsyncIface";
+
+    private final Map<String, ThriftMethod> methods = new HashMap<>();
+    // Methods by bare name, only while a single service is registered
+    private final Map<String, ThriftMethod> unqualifiedMethods = new HashMap<>();
+    private final List<String> serviceNames = new ArrayList<>();
+
+    /**
+     * Build a registry of the {@link ThriftEndpoint} beans in a bean factory. Only the annotated beans are
+     * instantiated.
+     */
+    public static ThriftProcessorRegistry fromBeanFactory(ListableBeanFactory beanFactory) {
+        ThriftProcessorRegistry registry = new ThriftProcessorRegistry();
+        for (String beanName : beanFactory.getBeanNamesForAnnotation(ThriftEndpoint.class)) {
+            ThriftEndpoint endpoint = beanFactory.findAnnotationOnBean(beanName, ThriftEndpoint.class);
+            Object handler = beanFactory.getBean(beanName);
+            registry.register(StringUtils.isNotBlank(endpoint.serviceName()) ? endpoint.serviceName() : beanName, handler);
+        }
+        return registry;
+    }
+
+    /**
+     * Register every generated service interface a handler implements. A handler implementing a single service is
+     * registered under {@code serviceName}; one implementing several registers each under its service class name
+     * with the first letter lowercased, such as {@code helloWorld} for {@code HelloWorld.Iface}.
+     *
+     * @throws IllegalArgumentException if the handler implements no generated service interface
+     */
+    public void register(String serviceName, Object handler) {
+        checkNotNull(serviceName);
+        checkNotNull(handler);
+        List<Class<?>> serviceInterfaces = new ArrayList<>();
+        for (Class<?> candidate : ClassUtils.getAllInterfaces(handler)) {
+            if (candidate.getEnclosingClass() != null
+                    && (IFACE.equals(candidate.getSimpleName()) || ASYNC_IFACE.equals(candidate.getSimpleName()))) {
+                serviceInterfaces.add(candidate);
+            }
+        }
+        checkArgument(!serviceInterfaces.isEmpty(), "%s implements no generated Thrift service interface",
+                handler.getClass().getName());
+        for (Class<?> serviceInterface : serviceInterfaces) {
+            Class<?> service = serviceInterface.getEnclosingClass();
+            String name = serviceInterfaces.size() == 1 ? serviceName : Introspector.decapitalize(service.getSimpleName());
+            try {
+                if (IFACE.equals(serviceInterface.getSimpleName())) {
+                    registerProcessor(name, service, serviceInterface, handler);
+                } else {
+                    registerAsyncProcessor(name, service, serviceInterface, handler);
+                }
+            } catch (ReflectiveOperationException e) {
+                throw new IllegalArgumentException("Cannot create the processor of " + service.getName(), e);
+            }
+        }
+        unqualifiedMethods.clear();
+        if (serviceNames.size() == 1) {
+            for (ThriftMethod method : methods.values()) {
+                unqualifiedMethods.put(method.getMethodName(), method);
+            }
+        }
+    }
+
+    private void registerProcessor(String serviceName, Class<?> service, Class<?> serviceInterface, Object handler)
+            throws ReflectiveOperationException {
+        Class<?> processorClass = Class.forName(service.getName() + "$Processor", true, service.getClassLoader());
+        TBaseProcessor<?> processor = (TBaseProcessor<?>) processorClass.getConstructor(serviceInterface).newInstance(handler);
+        for (ProcessFunction<?, ?> function : processor.getProcessMapView().values()) {
+            addMethod(new ThriftMethod.Sync(serviceName, function, handler));
+        }
+        addService(serviceName, processorClass);
+    }
+
+    private void registerAsyncProcessor(String serviceName, Class<?> service, Class<?> serviceInterface, Object handler)
+            throws ReflectiveOperationException {
+        Class<?> processorClass = Class.forName(service.getName() + "$AsyncProcessor", true, service.getClassLoader());
+        TBaseAsyncProcessor<?> processor = (TBaseAsyncProcessor<?>) processorClass.getConstructor(serviceInterface).newInstance(handler);
+        for (AsyncProcessFunction<?, ?, ?> function : processor.getProcessMapView().values()) {
+            addMethod(new ThriftMethod.Async(serviceName, function, handler, findResultClass(service, function.getMethodName())));
+        }
+        addService(serviceName, processorClass);
+    }
+
+    /**
+     * @return the generated result struct of a method, or {@code null} if it is oneway and has none
+     */
+    // Class can't express the struct's own type parameters, generated structs are TBase<Struct, Struct._Fields>
+    @SuppressWarnings("unchecked")
+    private static Class<? extends TBase<?, ?>> findResultClass(Class<?> service, String methodName) {
+        try {
+            return (Class<? extends TBase<?, ?>>) Class.forName(service.getName() + "$" + methodName + "_result", true,
+                    service.getClassLoader()).asSubclass(TBase.class);
+        } catch (ClassNotFoundException e) {
+            return null;
+        }
+    }
+
+    private void addMethod(ThriftMethod method) {
+        String messageName = method.getServiceName() + TMultiplexedProtocol.SEPARATOR + method.getMethodName();
+        checkArgument(!methods.containsKey(messageName), "Thrift method %s is registered twice", messageName);
+        methods.put(messageName, method);
+    }
+
+    private void addService(String serviceName, Class<?> processorClass) {
+        serviceNames.add(serviceName);
+        logger.info("registerProcessorName : " + serviceName + " registerProcessorClass: " + processorClass.getName());
+    }
+
+    /**
+     * Get the method a call is for.
+     *
+     * @param messageName the name in the call's message header
+     * @return the method, or {@code null} if there is no such method
+     */
+    public ThriftMethod getMethod(String messageName) {
+        ThriftMethod method = methods.get(messageName);
+        return method != null ? method : unqualifiedMethods.get(messageName);
+    }
+
+    /**
+     * Get the method a call is for, given the service it was sent to. Message names already carrying a service prefix
+     * are looked up as they are.
+     *
+     * @param serviceName the service, or {@code null} if unknown
+     * @param messageName the name in the call's message header
+     * @return the method, or {@code null} if there is no such method
+     */
+    public ThriftMethod getMethod(String serviceName, String messageName) {
+        if (serviceName == null || messageName.contains(TMultiplexedProtocol.SEPARATOR)) {
+            return getMethod(messageName);
+        }
+        return methods.get(serviceName + TMultiplexedProtocol.SEPARATOR + messageName);
+    }
+
+    public List<String> getServiceNames() {
+        return Collections.unmodifiableList(serviceNames);
+    }
+}
@@ -1,20 +1,13 @@
 package io.nebo.thrift;
 
 import io.nebo.container.NettyEmbeddedContext;
+import io.nebo.container.WorkerExecutor;
 import io.nebo.protocol.ProtocolRouter;
-import io.nebo.thrift.DefaultThriftFrameDecoder;
-import io.nebo.thrift.ThriftEndpoint;
-import io.nebo.thrift.ThriftInboundHandler;
 import io.netty.buffer.ByteBuf;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.ChannelPipeline;
-import org.apache.commons.lang3.StringUtils;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
-import org.apache.thrift.TMultiplexedProcessor;
-import org.apache.thrift.TProcessor;
-import org.apache.thrift.protocol.TBinaryProtocol;
-import org.springframework.beans.factory.BeanFactoryUtils;
 import org.springframework.web.context.WebApplicationContext;
 import org.springframework.web.context.support.WebApplicationContextUtils;
 
@@ -24,45 +17,56 @@ import org.springframework.web.context.support.WebApplicationContextUtils;
 public class ThriftProtocolRouter implements ProtocolRouter {
 
     private final Log logger = LogFactory.getLog(getClass());
+    private ThriftServerConfig config;
+    private WorkerExecutor executor;
 
     @Override
     public boolean isProtocol(ByteBuf buffer) {
-        short firstByte = buffer.getUnsignedByte(0);
-        return firstByte >= 0x80;
+        int readerIndex = buffer.readerIndex();
+        short firstByte = buffer.getUnsignedByte(readerIndex);
+        if (firstByte >= 0x80) {
+            // Unframed: the message starts with the protocol id
+            return ThriftProtocolType.forProtocolId(firstByte) != null;
+        }
+        // Framed: a positive frame length, then the protocol id or the THeader magic
+        if (buffer.readableBytes() <= DefaultThriftFrameDecoder.MESSAGE_FRAME_SIZE) {
+            return false;
+        }
+        int frameStart = readerIndex + DefaultThriftFrameDecoder.MESSAGE_FRAME_SIZE;
+        return ThriftProtocolType.forProtocolId(buffer.getUnsignedByte(frameStart)) != null
+                || (buffer.readableBytes() >= DefaultThriftFrameDecoder.MESSAGE_FRAME_SIZE + 2
+                        && buffer.getUnsignedShort(frameStart) == ThriftHeader.MAGIC);
     }
 
     @Override
     public void setRounter(ChannelHandlerContext ctx,NettyEmbeddedContext context) {
         ChannelPipeline p = ctx.pipeline();
-        p.addLast(new DefaultThriftFrameDecoder(new TBinaryProtocol.Factory(true, true)));
-        p.addLast(new ThriftInboundHandler(context));
+        p.addLast(new DefaultThriftFrameDecoder(config.getMaxFrameSize()));
+        p.addLast(new ThriftInboundHandler(context, executor, config));
+    }
+
+    /**
+     * @return {@code true} if there are Thrift services to call over HTTP, see {@link ThriftHttpHandler}
+     */
+    public boolean isHttpEnabled(NettyEmbeddedContext context) {
+        return !context.getProcessorRegistry().getServiceNames().isEmpty();
+    }
+
+    /**
+     * Create the handler running the Thrift calls that a {@link ThriftHttpHandler} takes from an HTTP connection.
+     */
+    public ThriftInboundHandler newHttpInboundHandler(NettyEmbeddedContext context) {
+        return new ThriftInboundHandler(context, executor, config);
     }
 
     @Override
     public void init(NettyEmbeddedContext context) {
-        TMultiplexedProcessor tProcessor = new TMultiplexedProcessor();
-        context.setProcessor(tProcessor);
-        WebApplicationContext webApplicationContext = WebApplicationContextUtils.findWebApplicationContext(context);
-        String[] strarr = BeanFactoryUtils.beanNamesForTypeIncludingAncestors(webApplicationContext, Object.class);
-        for (String s :strarr){
-            Object target = webApplicationContext.getBean(s);
-            ThriftEndpoint thriftEndpointAnnotation = target.getClass().getAnnotation(ThriftEndpoint.class);
-            if(thriftEndpointAnnotation!=null){
-                try {
-                    Class targetInterface = target.getClass().getInterfaces()[0];
-                    Class processorClass = Class.forName(targetInterface.getName().split("\\$")[0] + "$Processor");
-                    TProcessor p = (TProcessor) processorClass.getDeclaredConstructors()[0].newInstance(target);
-                    if(StringUtils.isNotBlank(thriftEndpointAnnotation.serviceName())){
-                        s = thriftEndpointAnnotation.serviceName();
-                    }
-                    System.out.println(thriftEndpointAnnotation.serviceName());
-                    logger.info("registerProcessorName : " + s + " registerProcessorClass: " + p.getClass());
-                    tProcessor.registerProcessor(s,p);
-                } catch (Exception e) {
-                    logger.error("registerProcessor error : " + e.getMessage() , e);
-                }
-            }
-
+        config = (ThriftServerConfig) context.getAttribute(ThriftServerConfig.ATTRIBUTE);
+        if (config == null) {
+            config = new ThriftServerConfig();
         }
+        executor = (WorkerExecutor) context.getAttribute(ThriftServerConfig.EXECUTOR_ATTRIBUTE);
+        WebApplicationContext webApplicationContext = WebApplicationContextUtils.findWebApplicationContext(context);
+        context.setProcessorRegistry(ThriftProcessorRegistry.fromBeanFactory(webApplicationContext));
     }
 }
@@ -0,0 +1,60 @@
+package io.nebo.thrift;
+
+import org.apache.thrift.protocol.TBinaryProtocol;
+import org.apache.thrift.protocol.TCompactProtocol;
+import org.apache.thrift.protocol.TProtocolFactory;
+
+/**
+ * Thrift protocols accepted on the shared port, keyed by the protocol id every message starts with, or by the id
+ * a {@link ThriftHeader THeader} frame names its payload's protocol with.
+ */
+public enum ThriftProtocolType {
+    BINARY(0x80, 0, new TBinaryProtocol.Factory(true, true)),
+    COMPACT(0x82, 2, new TCompactProtocol.Factory());
+
+    private final short protocolId;
+    private final int headerProtocolId;
+    private final TProtocolFactory protocolFactory;
+
+    ThriftProtocolType(int protocolId, int headerProtocolId, TProtocolFactory protocolFactory) {
+        this.protocolId = (short) protocolId;
+        this.headerProtocolId = headerProtocolId;
+        this.protocolFactory = protocolFactory;
+    }
+
+    public short getProtocolId() {
+        return protocolId;
+    }
+
+    public int getHeaderProtocolId() {
+        return headerProtocolId;
+    }
+
+    public TProtocolFactory getProtocolFactory() {
+        return protocolFactory;
+    }
+
+    /**
+     * @return the protocol starting with {@code protocolId}, or {@code null} if it isn't supported
+     */
+    public static ThriftProtocolType forProtocolId(short protocolId) {
+        for (ThriftProtocolType type : values()) {
+            if (type.protocolId == protocolId) {
+                return type;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return the protocol a THeader frame names {@code headerProtocolId}, or {@code null} if it isn't supported
+     */
+    public static ThriftProtocolType forHeaderProtocolId(int headerProtocolId) {
+        for (ThriftProtocolType type : values()) {
+            if (type.headerProtocolId == headerProtocolId) {
+                return type;
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,83 @@
+package io.nebo.thrift;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * How Thrift calls are received and executed: the largest message accepted, the size of the worker pool calls run
+ * on, how many calls a single connection may have in flight, and whether responses may be written in completion
+ * order.
+ * <p/>
+ * Standard Thrift clients match responses to requests by position, so by default responses are held back until
+ * every earlier request on the connection has been answered. Clients that match responses by seqid can enable
+ * {@link #setOutOfOrderResponses(boolean) out-of-order responses} to have each response written as soon as it is
+ * ready. Reads from a connection are suspended while {@link #getMaxPipelinedRequests()} calls are in flight, and calls
+ * already read by then wait for one of them to finish.
+ */
+public class ThriftServerConfig {
+    public static final String ATTRIBUTE = ThriftServerConfig.class.getName();
+    /**
+     * Servlet context attribute holding the {@link io.nebo.container.WorkerExecutor} Thrift calls run on, absent
+     * when calls are processed on the IO thread.
+     */
+    public static final String EXECUTOR_ATTRIBUTE = ATTRIBUTE + ".executor";
+    public static final int DEFAULT_WORKER_THREADS = 50;
+    public static final int DEFAULT_QUEUE_CAPACITY = 1024;
+    public static final int DEFAULT_MAX_PIPELINED_REQUESTS = 16;
+    public static final int DEFAULT_MAX_FRAME_SIZE = DefaultThriftFrameDecoder.DEFAULT_MAX_FRAME_SIZE;
+
+    private int workerThreads = DEFAULT_WORKER_THREADS;
+    private int queueCapacity = DEFAULT_QUEUE_CAPACITY;
+    private int maxPipelinedRequests = DEFAULT_MAX_PIPELINED_REQUESTS;
+    private boolean outOfOrderResponses;
+    private int maxFrameSize = DEFAULT_MAX_FRAME_SIZE;
+
+    public int getWorkerThreads() {
+        return workerThreads;
+    }
+
+    /**
+     * Set the number of worker threads, or {@code 0} to process calls on the connection's IO thread.
+     */
+    public void setWorkerThreads(int workerThreads) {
+        checkArgument(workerThreads >= 0, "workerThreads must not be negative");
+        this.workerThreads = workerThreads;
+    }
+
+    public int getQueueCapacity() {
+        return queueCapacity;
+    }
+
+    public void setQueueCapacity(int queueCapacity) {
+        checkArgument(queueCapacity > 0, "queueCapacity must be positive");
+        this.queueCapacity = queueCapacity;
+    }
+
+    public int getMaxPipelinedRequests() {
+        return maxPipelinedRequests;
+    }
+
+    public void setMaxPipelinedRequests(int maxPipelinedRequests) {
+        checkArgument(maxPipelinedRequests > 0, "maxPipelinedRequests must be positive");
+        this.maxPipelinedRequests = maxPipelinedRequests;
+    }
+
+    public boolean isOutOfOrderResponses() {
+        return outOfOrderResponses;
+    }
+
+    public void setOutOfOrderResponses(boolean outOfOrderResponses) {
+        this.outOfOrderResponses = outOfOrderResponses;
+    }
+
+    public int getMaxFrameSize() {
+        return maxFrameSize;
+    }
+
+    /**
+     * Set the largest framed or unframed message accepted, in bytes. Connections sending larger messages are closed.
+     */
+    public void setMaxFrameSize(int maxFrameSize) {
+        checkArgument(maxFrameSize > 0, "maxFrameSize must be positive");
+        this.maxFrameSize = maxFrameSize;
+    }
+}
@@ -0,0 +1,444 @@
+package io.nebo.thrift;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.handler.codec.CorruptedFrameException;
+import io.netty.handler.codec.TooLongFrameException;
+import org.apache.thrift.protocol.TType;
+
+import java.util.Arrays;
+
+/**
+ * Finds the end of an unframed Thrift message by walking its structure without decoding it.
+ * <p/>
+ * The walk is resumable: when the buffer runs out, the scanner keeps its offset into the message and the struct, list
+ * and map nesting it is in, and the next call carries on from there. Each byte of a message is looked at once however
+ * many reads it arrives in, rather than the whole message being skipped again from the start on every read. Offsets
+ * are relative to the buffer's reader index, which must stay at the start of the message until it has been found.
+ * <p/>
+ * Lists, sets and maps announcing more elements than could fit in the maximum message length are rejected as soon as
+ * their size has been read, rather than once that many bytes have been received.
+ */
+class UnframedMessageScanner {
+    private static final int VERSION_MASK = 0xffff0000;
+    private static final int VERSION_1 = 0x80010000;
+
+    // Compact protocol type ids
+    private static final byte COMPACT_BOOLEAN_TRUE = 1;
+    private static final byte COMPACT_BOOLEAN_FALSE = 2;
+    private static final byte COMPACT_BYTE = 3;
+    private static final byte COMPACT_I16 = 4;
+    private static final byte COMPACT_I32 = 5;
+    private static final byte COMPACT_I64 = 6;
+    private static final byte COMPACT_DOUBLE = 7;
+    private static final byte COMPACT_BINARY = 8;
+    private static final byte COMPACT_LIST = 9;
+    private static final byte COMPACT_SET = 10;
+    private static final byte COMPACT_MAP = 11;
+    private static final byte COMPACT_STRUCT = 12;
+
+    private static final int STRUCT = 0;
+    private static final int LIST = 1;
+    private static final int MAP = 2;
+
+    private final boolean compact;
+    private final int maxLength;
+    private boolean headerScanned;
+    private int position;
+    // The containers the scan is currently inside, innermost last
+    private int depth;
+    private int[] kinds = new int[8];
+    private int[] remaining = new int[8];
+    private byte[] elementTypes = new byte[8];
+    private byte[] valueTypes = new byte[8];
+
+    UnframedMessageScanner(ThriftProtocolType protocolType, int maxLength) {
+        this.compact = protocolType == ThriftProtocolType.COMPACT;
+        this.maxLength = maxLength;
+    }
+
+    /**
+     * Continue scanning the message starting at the buffer's reader index.
+     *
+     * @return the length of the message, or {@code -1} if more bytes are needed
+     */
+    int scan(ByteBuf buffer) {
+        int base = buffer.readerIndex();
+        int available = buffer.readableBytes();
+        if (!headerScanned) {
+            int end = compact ? scanCompactHeader(buffer, base, available) : scanBinaryHeader(buffer, base, available);
+            if (end < 0) {
+                return -1;
+            }
+            position = end;
+            headerScanned = true;
+            push(STRUCT, 0, (byte) 0, (byte) 0);
+        }
+        while (depth > 0) {
+            if (position > available) {
+                // Still skipping over the contents of a string
+                return -1;
+            }
+            int end = compact ? stepCompact(buffer, base, available) : stepBinary(buffer, base, available);
+            if (end < 0) {
+                return -1;
+            }
+            position = end;
+        }
+        return position <= available ? position : -1;
+    }
+
+    /**
+     * Get how far into the message the scan has got, which may be past the bytes received so far.
+     */
+    int getPosition() {
+        return position;
+    }
+
+    /**
+     * Prepare for the next message.
+     */
+    void reset() {
+        headerScanned = false;
+        position = 0;
+        depth = 0;
+    }
+
+    private void push(int kind, int count, byte elementType, byte valueType) {
+        if (depth == kinds.length) {
+            int capacity = depth * 2;
+            kinds = Arrays.copyOf(kinds, capacity);
+            remaining = Arrays.copyOf(remaining, capacity);
+            elementTypes = Arrays.copyOf(elementTypes, capacity);
+            valueTypes = Arrays.copyOf(valueTypes, capacity);
+        }
+        kinds[depth] = kind;
+        remaining[depth] = count;
+        elementTypes[depth] = elementType;
+        valueTypes[depth] = valueType;
+        depth++;
+    }
+
+    private static int checkSize(int size) {
+        if (size < 0) {
+            throw new CorruptedFrameException("Negative Thrift size " + size);
+        }
+        return size;
+    }
+
+    /**
+     * Check that the elements of a container starting at {@code p} can fit in the maximum message length.
+     */
+    private void checkContainer(int p, int count, int minElementLength) {
+        if (p + (long) count * minElementLength > maxLength) {
+            throw new TooLongFrameException("Thrift container of " + count + " elements exceeds the maximum frame size of "
+                    + maxLength);
+        }
+    }
+
+    /**
+     * @return the offset following {@code size} bytes at {@code p} and a further {@code trailer} bytes, saturated so
+     * that announced sizes which can't be right still fail the frame size check
+     */
+    private static int skip(int p, long size, int trailer) {
+        checkSize((int) Math.min(size, Integer.MAX_VALUE));
+        return (int) Math.min(Integer.MAX_VALUE, p + size + trailer);
+    }
+
+    // Binary protocol
+
+    private int scanBinaryHeader(ByteBuf buffer, int base, int available) {
+        if (available < 8) {
+            return -1;
+        }
+        int version = buffer.getInt(base);
+        if ((version & VERSION_MASK) != VERSION_1) {
+            throw new CorruptedFrameException("Bad Thrift binary version 0x" + Integer.toHexString(version));
+        }
+        // Name and seqid, skipped once they have arrived
+        return skip(8, buffer.getInt(base + 4), 4);
+    }
+
+    private int stepBinary(ByteBuf buffer, int base, int available) {
+        int p = position;
+        int top = depth - 1;
+        byte type;
+        switch (kinds[top]) {
+            case STRUCT:
+                if (p + 1 > available) {
+                    return -1;
+                }
+                type = buffer.getByte(base + p);
+                if (type == TType.STOP) {
+                    depth--;
+                    return p + 1;
+                }
+                // Field type and id
+                p += 3;
+                break;
+            case LIST:
+                if (remaining[top] == 0) {
+                    depth--;
+                    return p;
+                }
+                type = elementTypes[top];
+                break;
+            default:
+                if (remaining[top] == 0) {
+                    depth--;
+                    return p;
+                }
+                type = remaining[top] % 2 == 0 ? elementTypes[top] : valueTypes[top];
+                break;
+        }
+        int end = binaryValue(buffer, base, available, p, type);
+        if (end >= 0 && kinds[top] != STRUCT) {
+            remaining[top]--;
+        }
+        return end;
+    }
+
+    private int binaryValue(ByteBuf buffer, int base, int available, int p, byte type) {
+        switch (type) {
+            case TType.BOOL:
+            case TType.BYTE:
+                return p + 1 <= available ? p + 1 : -1;
+            case TType.I16:
+                return p + 2 <= available ? p + 2 : -1;
+            case TType.I32:
+                return p + 4 <= available ? p + 4 : -1;
+            case TType.I64:
+            case TType.DOUBLE:
+                return p + 8 <= available ? p + 8 : -1;
+            case TType.STRING:
+                if (p + 4 > available) {
+                    return -1;
+                }
+                // The contents may not have arrived yet, they are skipped once they have
+                return skip(p + 4, buffer.getInt(base + p), 0);
+            case TType.STRUCT:
+                if (p > available) {
+                    return -1;
+                }
+                push(STRUCT, 0, (byte) 0, (byte) 0);
+                return p;
+            case TType.MAP:
+                if (p + 6 > available) {
+                    return -1;
+                }
+                int mapSize = checkSize(buffer.getInt(base + p + 2));
+                byte keyType = buffer.getByte(base + p);
+                byte valueType = buffer.getByte(base + p + 1);
+                checkContainer(p + 6, mapSize, minBinaryLength(keyType) + minBinaryLength(valueType));
+                push(MAP, mapSize * 2, keyType, valueType);
+                return p + 6;
+            case TType.SET:
+            case TType.LIST:
+                if (p + 5 > available) {
+                    return -1;
+                }
+                int listSize = checkSize(buffer.getInt(base + p + 1));
+                byte elementType = buffer.getByte(base + p);
+                checkContainer(p + 5, listSize, minBinaryLength(elementType));
+                push(LIST, listSize, elementType, (byte) 0);
+                return p + 5;
+            default:
+                throw new CorruptedFrameException("Unknown Thrift type " + type);
+        }
+    }
+
+    private static int minBinaryLength(byte type) {
+        switch (type) {
+            case TType.I16:
+                return 2;
+            case TType.I32:
+            case TType.STRING:
+                return 4;
+            case TType.I64:
+            case TType.DOUBLE:
+                return 8;
+            case TType.MAP:
+                return 6;
+            case TType.SET:
+            case TType.LIST:
+                return 5;
+            default:
+                return 1;
+        }
+    }
+
+    // Compact protocol
+
+    private int scanCompactHeader(ByteBuf buffer, int base, int available) {
+        // Protocol id, version and type, then the seqid and the name
+        int p = skipVarint(buffer, base, available, 2);
+        if (p < 0) {
+            return -1;
+        }
+        long nameLength = readVarint(buffer, base, available, p);
+        if (nameLength < 0) {
+            return -1;
+        }
+        // The name is skipped once it has arrived
+        return skip(skipVarint(buffer, base, available, p), nameLength, 0);
+    }
+
+    private int stepCompact(ByteBuf buffer, int base, int available) {
+        int p = position;
+        int top = depth - 1;
+        byte type;
+        switch (kinds[top]) {
+            case STRUCT:
+                if (p + 1 > available) {
+                    return -1;
+                }
+                byte header = buffer.getByte(base + p);
+                if (header == TType.STOP) {
+                    depth--;
+                    return p + 1;
+                }
+                p++;
+                type = (byte) (header & 0x0f);
+                if ((header & 0xf0) == 0) {
+                    // No field id delta, the id follows as a varint
+                    p = skipVarint(buffer, base, available, p);
+                    if (p < 0) {
+                        return -1;
+                    }
+                }
+                if (type == COMPACT_BOOLEAN_TRUE || type == COMPACT_BOOLEAN_FALSE) {
+                    // The value is carried by the field header
+                    return p;
+                }
+                return compactValue(buffer, base, available, p, type);
+            case LIST:
+                if (remaining[top] == 0) {
+                    depth--;
+                    return p;
+                }
+                type = elementTypes[top];
+                break;
+            default:
+                if (remaining[top] == 0) {
+                    depth--;
+                    return p;
+                }
+                type = remaining[top] % 2 == 0 ? elementTypes[top] : valueTypes[top];
+                break;
+        }
+        int end = compactValue(buffer, base, available, p, type);
+        if (end >= 0) {
+            remaining[top]--;
+        }
+        return end;
+    }
+
+    private int compactValue(ByteBuf buffer, int base, int available, int p, byte type) {
+        switch (type) {
+            case COMPACT_BOOLEAN_TRUE:
+            case COMPACT_BOOLEAN_FALSE:
+            case COMPACT_BYTE:
+                return p + 1 <= available ? p + 1 : -1;
+            case COMPACT_I16:
+            case COMPACT_I32:
+            case COMPACT_I64:
+                return skipVarint(buffer, base, available, p);
+            case COMPACT_DOUBLE:
+                return p + 8 <= available ? p + 8 : -1;
+            case COMPACT_BINARY: {
+                long length = readVarint(buffer, base, available, p);
+                if (length < 0) {
+                    return -1;
+                }
+                // The contents may not have arrived yet, they are skipped once they have
+                return skip(skipVarint(buffer, base, available, p), length, 0);
+            }
+            case COMPACT_STRUCT:
+                if (p > available) {
+                    return -1;
+                }
+                push(STRUCT, 0, (byte) 0, (byte) 0);
+                return p;
+            case COMPACT_MAP: {
+                long size = readVarint(buffer, base, available, p);
+                if (size < 0) {
+                    return -1;
+                }
+                int end = skipVarint(buffer, base, available, p);
+                if (size == 0) {
+                    push(MAP, 0, (byte) 0, (byte) 0);
+                    return end;
+                }
+                if (end + 1 > available) {
+                    return -1;
+                }
+                byte types = buffer.getByte(base + end);
+                byte keyType = (byte) ((types >> 4) & 0x0f);
+                byte valueType = (byte) (types & 0x0f);
+                int mapSize = checkSize((int) Math.min(size, Integer.MAX_VALUE));
+                checkContainer(end + 1, mapSize, minCompactLength(keyType) + minCompactLength(valueType));
+                push(MAP, mapSize * 2, keyType, valueType);
+                return end + 1;
+            }
+            case COMPACT_SET:
+            case COMPACT_LIST: {
+                if (p + 1 > available) {
+                    return -1;
+                }
+                byte sizeAndType = buffer.getByte(base + p);
+                int size = (sizeAndType >> 4) & 0x0f;
+                int end = p + 1;
+                if (size == 15) {
+                    long longSize = readVarint(buffer, base, available, end);
+                    if (longSize < 0) {
+                        return -1;
+                    }
+                    size = checkSize((int) Math.min(longSize, Integer.MAX_VALUE));
+                    end = skipVarint(buffer, base, available, end);
+                }
+                byte elementType = (byte) (sizeAndType & 0x0f);
+                checkContainer(end, size, minCompactLength(elementType));
+                push(LIST, size, elementType, (byte) 0);
+                return end;
+            }
+            default:
+                throw new CorruptedFrameException("Unknown Thrift compact type " + type);
+        }
+    }
+
+    private static int minCompactLength(byte type) {
+        return type == COMPACT_DOUBLE ? 8 : 1;
+    }
+
+    /**
+     * @return the offset following the varint at {@code p}, or {@code -1} if it isn't complete
+     */
+    private static int skipVarint(ByteBuf buffer, int base, int available, int p) {
+        for (int i = 0; i < 10; i++, p++) {
+            if (p >= available) {
+                return -1;
+            }
+            if ((buffer.getByte(base + p) & 0x80) == 0) {
+                return p + 1;
+            }
+        }
+        throw new CorruptedFrameException("Thrift varint is too long");
+    }
+
+    /**
+     * @return the unsigned value of the varint at {@code p}, or {@code -1} if it isn't complete
+     */
+    private static long readVarint(ByteBuf buffer, int base, int available, int p) {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7, p++) {
+            if (p >= available) {
+                return -1;
+            }
+            byte b = buffer.getByte(base + p);
+            value |= (long) (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new CorruptedFrameException("Thrift varint is too long");
+    }
+}
@@ -0,0 +1,119 @@
+package io.nebo.container;
+
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.http.DefaultHttpContent;
+import io.netty.handler.codec.http.DefaultLastHttpContent;
+import io.netty.handler.codec.http.HttpContent;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.servlet.ReadListener;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+/**
+ * Non-blocking reads from a {@link HttpContentInputStream} through a {@link ReadListener}.
+ */
+public class HttpContentInputStreamTest {
+    private final List<String> events = new ArrayList<>();
+    private EmbeddedChannel channel;
+    private HttpContentInputStream in;
+
+    @Before
+    public void setUp() {
+        channel = new EmbeddedChannel(new ChannelInboundHandlerAdapter());
+        in = new HttpContentInputStream(channel, Integer.MAX_VALUE, 0);
+    }
+
+    @Test
+    public void listenerReadingOnEventLoopIsToldOfTheEndOnce() throws Exception {
+        in.setReadListener(new RecordingListener() {
+            @Override
+            public void onDataAvailable() throws IOException {
+                super.onDataAvailable();
+                while (in.isReady()) {
+                    in.read(new byte[16]);
+                }
+            }
+        });
+        in.addContent(chunk(10));
+        in.addContent(new DefaultLastHttpContent(Unpooled.wrappedBuffer(new byte[10])));
+        channel.runPendingTasks();
+        assertEquals(2, count("onDataAvailable"));
+        assertEquals(1, count("onAllDataRead"));
+        in.release();
+    }
+
+    @Test
+    public void leavesChunksToReaderOnItsOwnThread() throws Exception {
+        // The listener only hears of data, the reading is done by the test as if on a thread of its own
+        in.setReadListener(new RecordingListener());
+        in.addContent(chunk(10));
+        assertEquals(10, in.read(new byte[10]));
+
+        HttpContent empty = chunk(0);
+        in.addContent(empty);
+        in.addContent(new DefaultLastHttpContent());
+        // Still queued for the reader, next to the reference held here
+        assertEquals(2, empty.refCnt());
+        assertEquals(1, count("onAllDataRead"));
+
+        assertEquals(-1, in.read());
+        assertEquals(1, empty.refCnt());
+        in.release();
+    }
+
+    @Test
+    public void tellsListenerOfTheEndOnceReaderHasCaughtUp() throws Exception {
+        in.setReadListener(new RecordingListener());
+        in.addContent(chunk(10));
+        in.addContent(new DefaultLastHttpContent());
+        assertEquals(0, count("onAllDataRead"));
+
+        assertEquals(10, in.read(new byte[16]));
+        assertFalse(in.isReady());
+        channel.runPendingTasks();
+        assertEquals(1, count("onAllDataRead"));
+        assertFalse(in.isReady());
+        channel.runPendingTasks();
+        assertEquals(1, count("onAllDataRead"));
+        in.release();
+    }
+
+    private static HttpContent chunk(int size) {
+        return new DefaultHttpContent(Unpooled.buffer(size).writeZero(size));
+    }
+
+    private int count(String event) {
+        int count = 0;
+        for (String e : events) {
+            if (e.equals(event)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private class RecordingListener implements ReadListener {
+        @Override
+        public void onDataAvailable() throws IOException {
+            events.add("onDataAvailable");
+        }
+
+        @Override
+        public void onAllDataRead() throws IOException {
+            events.add("onAllDataRead");
+        }
+
+        @Override
+        public void onError(Throwable t) {
+            events.add("onError");
+        }
+    }
+}
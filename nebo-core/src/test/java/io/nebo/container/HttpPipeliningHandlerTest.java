@@ -0,0 +1,170 @@
+package io.nebo.container;
+
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.http.DefaultFullHttpRequest;
+import io.netty.handler.codec.http.DefaultFullHttpResponse;
+import io.netty.handler.codec.http.DefaultHttpContent;
+import io.netty.handler.codec.http.DefaultHttpRequest;
+import io.netty.handler.codec.http.DefaultHttpResponse;
+import io.netty.handler.codec.http.DefaultLastHttpContent;
+import io.netty.handler.codec.http.FullHttpRequest;
+import io.netty.handler.codec.http.HttpContent;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpVersion;
+import io.netty.handler.codec.http.LastHttpContent;
+import io.netty.util.ReferenceCountUtil;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Ordering of pipelined requests by {@link HttpPipeliningHandler}, and its suspension of reads next to the other
+ * handlers that suspend them.
+ */
+public class HttpPipeliningHandlerTest {
+    private final List<NettyHttpServletRequest> dispatched = new ArrayList<>();
+    private NettyEmbeddedContext context;
+
+    @Before
+    public void setUp() {
+        context = new NettyEmbeddedContext("", getClass().getClassLoader(), "test");
+    }
+
+    @Test
+    public void holdsNextRequestUntilResponseIsWritten() {
+        EmbeddedChannel channel = new EmbeddedChannel(new HttpPipeliningHandler());
+        channel.writeInbound(get("/first"), get("/second"));
+        assertUri("/first", channel.readInbound());
+        assertNull(channel.readInbound());
+        assertFalse(channel.config().isAutoRead());
+
+        channel.writeOutbound(new DefaultHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.OK));
+        channel.runPendingTasks();
+        assertNull(channel.readInbound());
+
+        channel.writeOutbound(LastHttpContent.EMPTY_LAST_CONTENT);
+        channel.runPendingTasks();
+        assertUri("/second", channel.readInbound());
+        assertTrue(channel.config().isAutoRead());
+        channel.finish();
+    }
+
+    @Test
+    public void continueDoesNotReleaseNextRequest() {
+        EmbeddedChannel channel = new EmbeddedChannel(new HttpPipeliningHandler());
+        HttpRequest first = new DefaultHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.PUT, "/first");
+        HttpHeaders.set100ContinueExpected(first, true);
+        channel.writeInbound(first, LastHttpContent.EMPTY_LAST_CONTENT, get("/second"));
+        assertUri("/first", channel.readInbound());
+        assertSame(LastHttpContent.EMPTY_LAST_CONTENT, channel.readInbound());
+
+        channel.writeOutbound(new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.CONTINUE));
+        channel.runPendingTasks();
+        assertNull(channel.readInbound());
+        assertFalse(channel.config().isAutoRead());
+
+        respond(channel);
+        assertUri("/second", channel.readInbound());
+        channel.finish();
+    }
+
+    @Test
+    public void releasesPendingMessagesWhenClosed() {
+        EmbeddedChannel channel = new EmbeddedChannel(new HttpPipeliningHandler());
+        FullHttpRequest second = new DefaultFullHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.POST, "/second",
+                Unpooled.wrappedBuffer(new byte[16]));
+        HttpContent chunk = new DefaultHttpContent(Unpooled.wrappedBuffer(new byte[16]));
+        channel.writeInbound(get("/first"), second, chunk);
+        assertUri("/first", channel.readInbound());
+        channel.close();
+        assertEquals(0, second.refCnt());
+        assertEquals(0, chunk.refCnt());
+    }
+
+    @Test
+    public void keepsStreamedUploadSuspendedBehindRequestInFlight() throws Exception {
+        RequestContentConfig contentConfig = new RequestContentConfig();
+        contentConfig.setStreaming(true);
+        contentConfig.setWaterMarks(100, 500);
+        EmbeddedChannel channel = newChannel(contentConfig);
+        channel.writeInbound(get("/first"));
+        HttpRequest upload = new DefaultHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.PUT, "/upload");
+        HttpHeaders.setContentLength(upload, 1200);
+        channel.writeInbound(upload, new DefaultHttpContent(Unpooled.wrappedBuffer(new byte[400])),
+                new DefaultHttpContent(Unpooled.wrappedBuffer(new byte[400])));
+        assertEquals(1, dispatched.size());
+        assertFalse(channel.config().isAutoRead());
+
+        respond(channel);
+        // The upload goes past the stream's high water mark as it is passed on
+        assertEquals(2, dispatched.size());
+        assertFalse(channel.config().isAutoRead());
+
+        HttpContentInputStream in = (HttpContentInputStream) dispatched.get(1).getInputStream();
+        assertEquals(800, in.read(new byte[800]));
+        assertTrue(channel.config().isAutoRead());
+        channel.writeInbound(new DefaultLastHttpContent(Unpooled.wrappedBuffer(new byte[400])));
+        assertEquals(400, in.read(new byte[400]));
+        assertEquals(-1, in.read());
+        in.release();
+        channel.finish();
+    }
+
+    private EmbeddedChannel newChannel(RequestContentConfig contentConfig) {
+        return new EmbeddedChannel(new HttpPipeliningHandler(), new ServletContentHandler(context, contentConfig),
+                new SimpleChannelInboundHandler<NettyHttpServletRequest>() {
+                    @Override
+                    protected void channelRead0(ChannelHandlerContext ctx, NettyHttpServletRequest request) {
+                        dispatched.add(request);
+                    }
+                }) {
+            // Servlet requests expect the addresses of a socket
+            @Override
+            protected SocketAddress localAddress0() {
+                return new InetSocketAddress(8080);
+            }
+
+            @Override
+            protected SocketAddress remoteAddress0() {
+                return new InetSocketAddress(0);
+            }
+        };
+    }
+
+    private static void assertUri(String uri, Object request) {
+        assertEquals(uri, ((HttpRequest) request).uri());
+        ReferenceCountUtil.release(request);
+    }
+
+    private static HttpRequest get(String uri) {
+        return new DefaultFullHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.GET, uri);
+    }
+
+    /**
+     * Answer the request in flight, and let the pipeliner pass on what it has held back.
+     */
+    private static void respond(EmbeddedChannel channel) {
+        channel.writeOutbound(new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.OK));
+        channel.runPendingTasks();
+        Object msg;
+        while ((msg = channel.readOutbound()) != null) {
+            ReferenceCountUtil.release(msg);
+        }
+    }
+}
@@ -0,0 +1,262 @@
+package io.nebo.container;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.http.DefaultFullHttpRequest;
+import io.netty.handler.codec.http.DefaultFullHttpResponse;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpContent;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpResponse;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpVersion;
+import io.netty.util.CharsetUtil;
+import io.netty.util.ReferenceCountUtil;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Compression of responses by {@link HttpResponseCompressor}, and the bodies it keeps in a
+ * {@link CompressedResponseCache}.
+ */
+public class HttpResponseCompressorTest {
+    private static final String CACHEABLE = "public, max-age=60";
+
+    private ResponseCompressionConfig config;
+    private CompressedResponseCache cache;
+    private EmbeddedChannel channel;
+
+    @Before
+    public void setUp() {
+        config = new ResponseCompressionConfig();
+        config.setEnabled(true);
+        cache = new CompressedResponseCache(1024 * 1024);
+        channel = new EmbeddedChannel(new HttpResponseCompressor(config, cache));
+    }
+
+    @Test
+    public void answersRepeatedBodyFromCache() throws IOException {
+        byte[] body = body("cached", 4096);
+        request("gzip");
+        Reply first = respond(response(body, CACHEABLE));
+        assertEquals("gzip", first.encoding);
+        assertArrayEquals(body, gunzip(first.body));
+        assertEquals(1, cache.size());
+
+        request("gzip");
+        Reply second = respond(response(body, CACHEABLE));
+        assertEquals("gzip", second.encoding);
+        assertEquals(String.valueOf(second.body.length), second.contentLength);
+        assertArrayEquals(first.body, second.body);
+        assertEquals(1, cache.size());
+    }
+
+    @Test
+    public void writesCachedBodyAsItIs() {
+        byte[] body = body("hit", 4096);
+        byte[] cached = "not really gzip".getBytes(CharsetUtil.US_ASCII);
+        cache.put("gzip", Unpooled.wrappedBuffer(body), cached);
+        request("gzip");
+        Reply reply = respond(response(body, CACHEABLE));
+        assertEquals("gzip", reply.encoding);
+        assertArrayEquals(cached, reply.body);
+    }
+
+    @Test
+    public void compressesChangedBodyAgain() throws IOException {
+        request("gzip");
+        respond(response(body("first", 4096), CACHEABLE));
+        byte[] changed = body("other", 4096);
+        request("gzip");
+        Reply reply = respond(response(changed, CACHEABLE));
+        assertArrayEquals(changed, gunzip(reply.body));
+        assertEquals(2, cache.size());
+    }
+
+    @Test
+    public void keepsEncodingsApart() throws IOException {
+        byte[] body = body("both", 4096);
+        request("gzip");
+        respond(response(body, CACHEABLE));
+        request("deflate");
+        Reply reply = respond(response(body, CACHEABLE));
+        assertEquals("deflate", reply.encoding);
+        assertArrayEquals(body, inflate(reply.body));
+        assertEquals(2, cache.size());
+    }
+
+    @Test
+    public void compressesButDoesNotCacheResponsesThatMayNotBeCached() throws IOException {
+        for (String cacheControl : new String[]{null, "private, max-age=60", "public, no-store", "no-cache",
+                "max-age=60, Private"}) {
+            byte[] body = body(String.valueOf(cacheControl), 4096);
+            request("gzip");
+            Reply reply = respond(response(body, cacheControl));
+            assertEquals("gzip", reply.encoding);
+            assertArrayEquals(body, gunzip(reply.body));
+        }
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void doesNotCacheBodiesOverMaxCachedSize() throws IOException {
+        byte[] large = body("large", config.getMaxCachedResponseSize() + 1);
+        request("gzip");
+        assertArrayEquals(large, gunzip(respond(response(large, CACHEABLE)).body));
+        assertEquals(0, cache.size());
+
+        byte[] limit = body("limit", config.getMaxCachedResponseSize());
+        request("gzip");
+        assertArrayEquals(limit, gunzip(respond(response(limit, CACHEABLE)).body));
+        assertEquals(1, cache.size());
+    }
+
+    @Test
+    public void pairsPipelinedRequestsWithTheirResponses() throws IOException {
+        byte[] body = body("pipelined", 4096);
+        request("gzip");
+        request("deflate");
+        request(null);
+        Reply first = respond(response(body, CACHEABLE));
+        Reply second = respond(response(body, CACHEABLE));
+        Reply third = respond(response(body, CACHEABLE));
+        assertEquals("gzip", first.encoding);
+        assertArrayEquals(body, gunzip(first.body));
+        assertEquals("deflate", second.encoding);
+        assertArrayEquals(body, inflate(second.body));
+        assertNull(third.encoding);
+        assertArrayEquals(body, third.body);
+    }
+
+    @Test
+    public void continueDoesNotTakeTheEncodingOfTheResponse() throws IOException {
+        byte[] body = body("continue", 4096);
+        request("deflate");
+        request("gzip");
+        channel.writeOutbound(new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.CONTINUE));
+        ReferenceCountUtil.release(channel.readOutbound());
+        assertEquals("deflate", respond(response(body, CACHEABLE)).encoding);
+        assertEquals("gzip", respond(response(body, CACHEABLE)).encoding);
+    }
+
+    @Test
+    public void leavesHeadAndExcludedUserAgentsUncompressed() throws IOException {
+        config.setExcludedUserAgents(".*MSIE 6.*");
+        byte[] body = body("identity", 4096);
+        HttpRequest head = new DefaultFullHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.HEAD, "/");
+        head.headers().set(HttpHeaderNames.ACCEPT_ENCODING, "gzip");
+        send(head);
+        HttpRequest excluded = new DefaultFullHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.GET, "/");
+        excluded.headers().set(HttpHeaderNames.ACCEPT_ENCODING, "gzip");
+        excluded.headers().set(HttpHeaderNames.USER_AGENT, "Mozilla/4.0 (compatible; MSIE 6.0)");
+        send(excluded);
+        request("gzip");
+        assertNull(respond(response(body, CACHEABLE)).encoding);
+        assertNull(respond(response(body, CACHEABLE)).encoding);
+        Reply reply = respond(response(body, CACHEABLE));
+        assertEquals("gzip", reply.encoding);
+        assertArrayEquals(body, gunzip(reply.body));
+        assertFalse(channel.finish());
+    }
+
+    private void request(String acceptEncoding) {
+        HttpRequest request = new DefaultFullHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.GET, "/");
+        if (acceptEncoding != null) {
+            request.headers().set(HttpHeaderNames.ACCEPT_ENCODING, acceptEncoding);
+        }
+        send(request);
+    }
+
+    private void send(HttpRequest request) {
+        channel.writeInbound(request);
+        ReferenceCountUtil.release(channel.readInbound());
+    }
+
+    private static FullHttpResponse response(byte[] body, String cacheControl) {
+        FullHttpResponse response = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.OK,
+                Unpooled.wrappedBuffer(body));
+        response.headers().set(HttpHeaderNames.CONTENT_TYPE, "text/plain");
+        HttpHeaders.setContentLength(response, body.length);
+        if (cacheControl != null) {
+            response.headers().set(HttpHeaderNames.CACHE_CONTROL, cacheControl);
+        }
+        return response;
+    }
+
+    /**
+     * Write a response and collect what the compressor makes of it.
+     */
+    private Reply respond(FullHttpResponse response) {
+        channel.writeOutbound(response);
+        Reply reply = new Reply();
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        Object msg;
+        while ((msg = channel.readOutbound()) != null) {
+            if (msg instanceof HttpResponse) {
+                HttpHeaders headers = ((HttpResponse) msg).headers();
+                reply.encoding = headers.get(HttpHeaderNames.CONTENT_ENCODING) == null
+                        ? null : headers.get(HttpHeaderNames.CONTENT_ENCODING).toString();
+                reply.contentLength = headers.get(HttpHeaderNames.CONTENT_LENGTH) == null
+                        ? null : headers.get(HttpHeaderNames.CONTENT_LENGTH).toString();
+            }
+            if (msg instanceof HttpContent) {
+                ByteBuf content = ((HttpContent) msg).content();
+                byte[] bytes = new byte[content.readableBytes()];
+                content.getBytes(content.readerIndex(), bytes);
+                body.write(bytes, 0, bytes.length);
+            }
+            ReferenceCountUtil.release(msg);
+        }
+        reply.body = body.toByteArray();
+        return reply;
+    }
+
+    private static byte[] body(String text, int length) {
+        byte[] body = new byte[length];
+        byte[] pattern = (text + " compresses well ").getBytes(CharsetUtil.US_ASCII);
+        for (int i = 0; i < length; i++) {
+            body[i] = pattern[i % pattern.length];
+        }
+        return body;
+    }
+
+    private static byte[] gunzip(byte[] compressed) throws IOException {
+        return readAll(new GZIPInputStream(new ByteArrayInputStream(compressed)));
+    }
+
+    private static byte[] inflate(byte[] compressed) throws IOException {
+        return readAll(new InflaterInputStream(new ByteArrayInputStream(compressed)));
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int n;
+        while ((n = in.read(buffer)) > 0) {
+            out.write(buffer, 0, n);
+        }
+        return out.toByteArray();
+    }
+
+    private static final class Reply {
+        private String encoding;
+        private String contentLength;
+        private byte[] body;
+    }
+}
@@ -0,0 +1,107 @@
+package io.nebo.container;
+
+import io.netty.buffer.AbstractByteBufAllocator;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.http.DefaultHttpResponse;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpVersion;
+import io.netty.util.ReferenceCountUtil;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+
+/**
+ * Cost of writing 1 KB, 64 KB and 1 MB response bodies through a {@link HttpResponseOutputStream}, in pieces as a
+ * servlet would: the time per response, the heap allocated per response, and the capacity of the pooled buffers the
+ * body is copied into on its way to the channel.
+ * <p/>
+ * Run with {@code java -cp <test classpath> io.nebo.container.HttpResponseOutputStreamBenchmark [write size] [iterations]}.
+ */
+public class HttpResponseOutputStreamBenchmark {
+    private static final int[] BODY_SIZES = {1024, 64 * 1024, 1024 * 1024};
+
+    public static void main(String[] args) throws IOException {
+        int writeSize = args.length > 0 ? Integer.parseInt(args[0]) : 1024;
+        int iterations = args.length > 1 ? Integer.parseInt(args[1]) : 20000;
+        CountingAllocator allocator = new CountingAllocator();
+        EmbeddedChannel channel = new EmbeddedChannel(new ChannelInboundHandlerAdapter());
+        channel.config().setAllocator(allocator);
+        ChannelHandlerContext ctx = channel.pipeline().firstContext();
+        NettyEmbeddedContext context = new NettyEmbeddedContext("", HttpResponseOutputStreamBenchmark.class.getClassLoader(), "nebo");
+        byte[] piece = new byte[writeSize];
+        for (int round = 0; round < 2; round++) {
+            // The first round warms up the JIT
+            for (int bodySize : BODY_SIZES) {
+                int n = (int) Math.max(1, (long) iterations * 1024 / bodySize);
+                benchmark(ctx, context, allocator, piece, bodySize, n, round > 0);
+            }
+        }
+        channel.finish();
+    }
+
+    private static void benchmark(ChannelHandlerContext ctx, NettyEmbeddedContext context, CountingAllocator allocator,
+                                  byte[] piece, int bodySize, int iterations, boolean report) throws IOException {
+        EmbeddedChannel channel = (EmbeddedChannel) ctx.channel();
+        long allocatedBefore = allocator.allocated;
+        long heapBefore = threadAllocatedBytes();
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            NettyHttpServletResponse response = new NettyHttpServletResponse(ctx, context,
+                    new DefaultHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.OK, false));
+            OutputStream out = response.getOutputStream();
+            for (int written = 0; written < bodySize; written += piece.length) {
+                out.write(piece, 0, Math.min(piece.length, bodySize - written));
+            }
+            out.close();
+            Object msg;
+            while ((msg = channel.readOutbound()) != null) {
+                ReferenceCountUtil.release(msg);
+            }
+        }
+        long nanos = System.nanoTime() - start;
+        long heap = threadAllocatedBytes() - heapBefore;
+        long allocated = allocator.allocated - allocatedBefore;
+        if (report) {
+            System.out.printf("%,9d bytes  %,12.0f ns/response  %,10d heap bytes/response  %,10d pooled bytes/response%n",
+                    bodySize, (double) nanos / iterations, heap / iterations, allocated / iterations);
+        }
+    }
+
+    private static long threadAllocatedBytes() {
+        return ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean())
+                .getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    /**
+     * Takes its buffers from the pooled allocator, counting their capacity.
+     */
+    private static final class CountingAllocator extends AbstractByteBufAllocator {
+        private long allocated;
+
+        CountingAllocator() {
+            super(true);
+        }
+
+        @Override
+        protected ByteBuf newHeapBuffer(int initialCapacity, int maxCapacity) {
+            allocated += initialCapacity;
+            return PooledByteBufAllocator.DEFAULT.heapBuffer(initialCapacity, maxCapacity);
+        }
+
+        @Override
+        protected ByteBuf newDirectBuffer(int initialCapacity, int maxCapacity) {
+            allocated += initialCapacity;
+            return PooledByteBufAllocator.DEFAULT.directBuffer(initialCapacity, maxCapacity);
+        }
+
+        @Override
+        public boolean isDirectBufferPooled() {
+            return true;
+        }
+    }
+}
@@ -0,0 +1,96 @@
+package io.nebo.container;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.http.DefaultHttpResponse;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpResponse;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpVersion;
+import io.netty.handler.codec.http.LastHttpContent;
+import io.netty.util.CharsetUtil;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.servlet.ServletOutputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * How the body written to a {@link HttpResponseOutputStream} reaches the channel.
+ */
+public class HttpResponseOutputStreamTest {
+    private EmbeddedChannel channel;
+    private NettyHttpServletResponse response;
+
+    @Before
+    public void setUp() {
+        channel = new EmbeddedChannel(new ChannelInboundHandlerAdapter());
+        NettyEmbeddedContext context = new NettyEmbeddedContext("", getClass().getClassLoader(), "test");
+        response = new NettyHttpServletResponse(channel.pipeline().firstContext(), context,
+                new DefaultHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.OK, false));
+    }
+
+    @Test
+    public void writesFlushedBodyAsFullResponseOnClose() throws Exception {
+        ServletOutputStream out = response.getOutputStream();
+        out.write("hello".getBytes(CharsetUtil.UTF_8));
+        // As frameworks do after writing a body
+        out.flush();
+        assertFalse(response.isCommitted());
+        assertNull(channel.readOutbound());
+
+        out.close();
+        FullHttpResponse fullResponse = (FullHttpResponse) channel.readOutbound();
+        assertEquals("5", fullResponse.headers().get(HttpHeaderNames.CONTENT_LENGTH).toString());
+        assertEquals("hello", fullResponse.content().toString(CharsetUtil.UTF_8));
+        fullResponse.release();
+        assertNull(channel.readOutbound());
+        assertFalse(channel.finish());
+    }
+
+    @Test
+    public void sendsFlushedBodyOnceAsyncHasStarted() throws Exception {
+        HttpResponseOutputStream out = response.getResponseOutputStream();
+        out.startAsync();
+        out.write("data: 1\n\n".getBytes(CharsetUtil.UTF_8));
+        out.flush();
+        assertTrue(response.isCommitted());
+        HttpResponse headers = (HttpResponse) channel.readOutbound();
+        assertFalse(headers instanceof FullHttpResponse);
+        assertTrue(HttpHeaders.isTransferEncodingChunked(headers));
+        ByteBuf content = (ByteBuf) channel.readOutbound();
+        assertEquals("data: 1\n\n", content.toString(CharsetUtil.UTF_8));
+        content.release();
+
+        out.close();
+        assertTrue(channel.readOutbound() instanceof LastHttpContent);
+        assertNull(channel.readOutbound());
+        assertFalse(channel.finish());
+    }
+
+    @Test
+    public void sendsFlushedBodyOnceCommitted() throws Exception {
+        ServletOutputStream out = response.getOutputStream();
+        // Past the buffer, which commits the response
+        out.write(new byte[response.getBufferSize()]);
+        assertTrue(response.isCommitted());
+        assertTrue(channel.readOutbound() instanceof HttpResponse);
+        ((ByteBuf) channel.readOutbound()).release();
+
+        out.write(1);
+        out.flush();
+        ByteBuf content = (ByteBuf) channel.readOutbound();
+        assertEquals(1, content.readableBytes());
+        content.release();
+        out.close();
+        assertTrue(channel.readOutbound() instanceof LastHttpContent);
+        assertFalse(channel.finish());
+    }
+}
@@ -0,0 +1,146 @@
+package io.nebo.hessian;
+
+import com.caucho.hessian.io.AbstractHessianOutput;
+import com.caucho.hessian.io.Hessian2Input;
+import com.caucho.hessian.io.Hessian2Output;
+import com.caucho.hessian.io.HessianOutput;
+import com.caucho.hessian.server.HessianSkeleton;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * {@link HessianEndpointSkeleton} answers calls with the very bytes {@link HessianSkeleton} answers them with.
+ */
+public class HessianEndpointSkeletonTest {
+    // Thrown as it is by every failing call, so that both skeletons serialize the same stack trace
+    private static final IllegalStateException FAILURE = new IllegalStateException("<out> & about");
+
+    private final HessianSkeleton reference = new HessianSkeleton(new CalculatorImpl(), Calculator.class);
+    private final HessianEndpointSkeleton endpoint = new HessianEndpointSkeleton(new CalculatorImpl(), Calculator.class);
+
+    @Test
+    public void answersHessian2Calls() throws Throwable {
+        byte[] call = hessian2Call("add", 1, 2);
+        assertSameReply(call);
+        ByteArrayInputStream reply = new ByteArrayInputStream(reply(endpoint, call));
+        // Past the version
+        reply.skip(3);
+        assertEquals(3, new Hessian2Input(reply).readReply(int.class));
+        assertSameReply(hessian2Call("echo", "t\u00e9st"));
+        assertSameReply(hessian2Call("echo", (Object) null));
+    }
+
+    @Test
+    public void answersHessian1Calls() throws Exception {
+        assertSameReply(hessian1Call("add__2", 1, 2));
+        assertSameReply(hessian1Call("echo", "t\u00e9st"));
+    }
+
+    @Test
+    public void resolvesOverloadsByArgumentCount() throws Exception {
+        assertSameReply(hessian2Call("add", 1, 2, 3));
+        assertSameReply(hessian2Call("add__3", 1, 2, 3));
+        // Hessian 1 calls don't tell the number of arguments, clients send the overloads' mangled names
+        assertSameReply(hessian1Call("add__3", 1, 2, 3));
+        // No overload takes a single argument, the name alone picks one
+        assertSameReply(hessian2Call("add", 1));
+    }
+
+    @Test
+    public void writesServiceExceptionsAsFaults() throws Exception {
+        assertSameReply(hessian2Call("fail"));
+        assertSameReply(hessian1Call("fail"));
+    }
+
+    @Test
+    public void writesFaultForUnknownMethod() throws Exception {
+        assertSameReply(hessian2Call("subtract", 1, 2));
+        assertSameReply(hessian1Call("subtract", 1, 2));
+    }
+
+    @Test
+    public void answersAttributeCalls() throws Exception {
+        for (String attribute : new String[]{"java.api.class", "java.home.class", "java.object.class", "other"}) {
+            assertSameReply(hessian2Call("_hessian_getAttribute", attribute));
+            assertSameReply(hessian1Call("_hessian_getAttribute", attribute));
+        }
+    }
+
+    @Test
+    public void reusesInputsAfterCallLeavingBytesUnread() throws Exception {
+        byte[] call = hessian2Call("echo", "first");
+        byte[] trailing = Arrays.copyOf(call, call.length + 16);
+        Arrays.fill(trailing, call.length, trailing.length, (byte) 'Z');
+        assertSameReply(trailing);
+        for (int i = 0; i < 3; i++) {
+            assertSameReply(hessian2Call("echo", "next " + i));
+            assertSameReply(hessian2Call("add", i, i));
+        }
+    }
+
+    private void assertSameReply(byte[] call) throws Exception {
+        assertArrayEquals(reply(reference, call), reply(endpoint, call));
+    }
+
+    private static byte[] reply(HessianSkeleton skeleton, byte[] call) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        skeleton.invoke(new ByteArrayInputStream(call), out);
+        return out.toByteArray();
+    }
+
+    private static byte[] hessian2Call(String method, Object... args) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        return call(new Hessian2Output(bytes), bytes, method, args);
+    }
+
+    private static byte[] hessian1Call(String method, Object... args) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        return call(new HessianOutput(bytes), bytes, method, args);
+    }
+
+    private static byte[] call(AbstractHessianOutput out, ByteArrayOutputStream bytes, String method, Object[] args)
+            throws IOException {
+        out.call(method, args);
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    public interface Calculator {
+        int add(int a, int b);
+
+        int add(int a, int b, int c);
+
+        String echo(String value);
+
+        void fail();
+    }
+
+    private static class CalculatorImpl implements Calculator {
+        @Override
+        public int add(int a, int b) {
+            return a + b;
+        }
+
+        @Override
+        public int add(int a, int b, int c) {
+            return a + b + c;
+        }
+
+        @Override
+        public String echo(String value) {
+            return value;
+        }
+
+        @Override
+        public void fail() {
+            throw FAILURE;
+        }
+    }
+}
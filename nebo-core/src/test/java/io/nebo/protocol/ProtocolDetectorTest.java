@@ -0,0 +1,89 @@
+package io.nebo.protocol;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.util.CharsetUtil;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+/**
+ * Detection of the protocol of a connection from its first bytes by {@link ProtocolDetector}.
+ */
+public class ProtocolDetectorTest {
+
+    private final ProtocolDetector detector = new ProtocolDetector(1000);
+
+    @Test
+    public void detectsHttpMethods() {
+        assertEquals(ProtocolDetector.HTTP, detect("GET /hello HTTP/1.1\r\n").getProtocol());
+        assertEquals(ProtocolDetector.HTTP, detect("POST /hessian HTTP/1.1\r\n").getProtocol());
+        assertEquals(ProtocolDetector.HTTP, detect("OPTIONS * HTTP/1.1\r\n").getProtocol());
+    }
+
+    @Test
+    public void waitsForMoreBytes() {
+        assertNull(detect("G"));
+        assertNull(detect("PR"));
+        assertNull(detect(0x00, 0x00));
+        assertNull(detect(0x80, 0x01));
+    }
+
+    @Test
+    public void detectsHttp2Preface() {
+        assertNull(detect("PRI * HTTP/2.0\r\n"));
+        assertEquals("http2-preface", detect("PRI * HTTP/2.0\r\n\r\nSM\r\n\r\n").getName());
+    }
+
+    @Test
+    public void detectsTlsClientHello() {
+        assertEquals("tls-client-hello", detect(0x16, 0x03, 0x01, 0x02, 0x00, 0x01).getName());
+    }
+
+    @Test
+    public void detectsThrift() {
+        assertEquals("thrift-binary", detect(0x80, 0x01, 0x00, 0x01).getName());
+        assertEquals("thrift-binary", detect(0x80, 0x01, 0x00, 0x04).getName());
+        assertEquals("thrift-compact", detect(0x82, 0x21).getName());
+        assertEquals("thrift-framed-binary", detect(0x00, 0x00, 0x01, 0x00, 0x80, 0x01, 0x00, 0x01).getName());
+        assertEquals("thrift-framed-compact", detect(0x00, 0x00, 0x00, 0x20, 0x82, 0x21).getName());
+        assertEquals("thrift-header", detect(0x00, 0x00, 0x00, 0x20, 0x0F, 0xFF).getName());
+    }
+
+    @Test
+    public void rejectsUnknownBytes() {
+        assertSame(ProtocolDetector.UNKNOWN, detect("SSH-2.0-OpenSSH\r\n"));
+        assertSame(ProtocolDetector.UNKNOWN, detect(0x80, 0x01, 0x00, 0x02));
+        assertSame(ProtocolDetector.UNKNOWN, detect(0x00, 0x00, 0x00, 0x20, 0x10));
+    }
+
+    @Test
+    public void doesNotConsumeInput() {
+        ByteBuf buffer = Unpooled.copiedBuffer("GET / HTTP/1.1\r\n", CharsetUtil.US_ASCII);
+        detector.detect(buffer);
+        assertEquals(0, buffer.readerIndex());
+        buffer.release();
+    }
+
+    private ProtocolSignature detect(String ascii) {
+        return detect(Unpooled.copiedBuffer(ascii, CharsetUtil.US_ASCII));
+    }
+
+    private ProtocolSignature detect(int... bytes) {
+        ByteBuf buffer = Unpooled.buffer(bytes.length);
+        for (int b : bytes) {
+            buffer.writeByte(b);
+        }
+        return detect(buffer);
+    }
+
+    private ProtocolSignature detect(ByteBuf buffer) {
+        try {
+            return detector.detect(buffer);
+        } finally {
+            buffer.release();
+        }
+    }
+}
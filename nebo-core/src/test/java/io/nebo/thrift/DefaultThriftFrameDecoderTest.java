@@ -0,0 +1,132 @@
+package io.nebo.thrift;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.CorruptedFrameException;
+import io.netty.handler.codec.DecoderException;
+import io.netty.handler.codec.TooLongFrameException;
+import org.junit.Test;
+
+import java.util.zip.Deflater;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+/**
+ * Framing of Thrift messages by {@link DefaultThriftFrameDecoder}.
+ */
+public class DefaultThriftFrameDecoderTest {
+    // The start of a binary protocol call, as far as the decoder looks into a framed message
+    private static final int[] BINARY_CALL = {0x80, 0x01, 0x00, 0x01};
+
+    @Test
+    public void decodesFramedMessage() {
+        EmbeddedChannel channel = new EmbeddedChannel(new DefaultThriftFrameDecoder());
+        channel.writeInbound(frame(BINARY_CALL));
+        ThriftMessage message = (ThriftMessage) channel.readInbound();
+        assertSame(ThriftTransportType.FRAMED, message.getTransportType());
+        assertSame(ThriftProtocolType.BINARY, message.getProtocolType());
+        assertEquals(BINARY_CALL.length, message.getBuffer().readableBytes());
+        message.getBuffer().release();
+        assertFalse(channel.finish());
+    }
+
+    @Test
+    public void skipsZeroSizedFrames() {
+        EmbeddedChannel channel = new EmbeddedChannel(new DefaultThriftFrameDecoder());
+        ByteBuf input = Unpooled.buffer();
+        input.writeInt(0);
+        input.writeInt(0);
+        input.writeBytes(frame(BINARY_CALL));
+        channel.writeInbound(input);
+        ThriftMessage message = (ThriftMessage) channel.readInbound();
+        assertEquals(BINARY_CALL.length, message.getBuffer().readableBytes());
+        message.getBuffer().release();
+        assertNull(channel.readInbound());
+        assertFalse(channel.finish());
+    }
+
+    @Test
+    public void waitsForTheWholeFrame() {
+        EmbeddedChannel channel = new EmbeddedChannel(new DefaultThriftFrameDecoder());
+        ByteBuf frame = frame(BINARY_CALL);
+        channel.writeInbound(frame.readSlice(6).retain());
+        assertNull(channel.readInbound());
+        channel.writeInbound(frame);
+        ThriftMessage message = (ThriftMessage) channel.readInbound();
+        assertEquals(BINARY_CALL.length, message.getBuffer().readableBytes());
+        message.getBuffer().release();
+        assertFalse(channel.finish());
+    }
+
+    @Test
+    public void rejectsFramesOverMaxFrameSize() {
+        EmbeddedChannel channel = new EmbeddedChannel(new DefaultThriftFrameDecoder(16));
+        ByteBuf input = Unpooled.buffer();
+        input.writeInt(17);
+        try {
+            channel.writeInbound(input);
+            fail();
+        } catch (TooLongFrameException e) {
+            // expected, the connection is closed with the frame left unread
+        }
+    }
+
+    @Test
+    public void releasesFrameOfUnsupportedProtocol() {
+        EmbeddedChannel channel = new EmbeddedChannel(new DefaultThriftFrameDecoder());
+        ByteBuf input = frame(0x10, 0x00, 0x00, 0x00);
+        input.retain();
+        try {
+            channel.writeInbound(input);
+            fail();
+        } catch (DecoderException e) {
+            // expected
+        }
+        // Only the reference taken above is left, the decoder's slice has been released
+        assertEquals(1, input.refCnt());
+        input.release();
+        channel.finish();
+    }
+
+    @Test
+    public void releasesHeaderFrameOnceWhenPayloadCannotBeDecoded() {
+        EmbeddedChannel channel = new EmbeddedChannel(new DefaultThriftFrameDecoder());
+        // A THeader frame with two zlib transforms, of which the payload has only been through one
+        Deflater deflater = new Deflater();
+        deflater.setInput(new byte[]{(byte) 0x80, 0x01, 0x00, 0x01});
+        deflater.finish();
+        byte[] payload = new byte[64];
+        int payloadLength = deflater.deflate(payload);
+        deflater.end();
+        ByteBuf input = Unpooled.buffer();
+        input.writeInt(14 + payloadLength);
+        // Magic, flags, sequence id, header size in words, then binary protocol and the transforms
+        input.writeShort(ThriftHeader.MAGIC).writeShort(0).writeInt(1).writeShort(1);
+        input.writeByte(0).writeByte(2).writeByte(ThriftHeader.ZLIB_TRANSFORM).writeByte(ThriftHeader.ZLIB_TRANSFORM);
+        input.writeBytes(payload, 0, payloadLength);
+        input.retain();
+        try {
+            channel.writeInbound(input);
+            fail();
+        } catch (CorruptedFrameException e) {
+            // expected
+        }
+        assertEquals(1, input.refCnt());
+        input.release();
+        channel.finish();
+    }
+
+    private static ByteBuf frame(int... bytes) {
+        ByteBuf frame = Unpooled.buffer();
+        frame.writeInt(bytes.length);
+        for (int b : bytes) {
+            frame.writeByte(b);
+        }
+        return frame;
+    }
+}
@@ -0,0 +1,295 @@
+package io.nebo.thrift;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.Unpooled;
+import io.netty.buffer.UnpooledByteBufAllocator;
+import io.netty.handler.codec.CorruptedFrameException;
+import io.netty.handler.codec.TooLongFrameException;
+import io.netty.util.CharsetUtil;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.Deflater;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Reading and writing {@link ThriftHeader THeader} frames, and undoing their transforms.
+ */
+public class ThriftHeaderTest {
+    // Unpooled, so released buffers are not recycled under the reference count checks
+    private static final ByteBufAllocator ALLOC = UnpooledByteBufAllocator.DEFAULT;
+    private static final byte[] PAYLOAD = "a Thrift message, repeated a Thrift message".getBytes(CharsetUtil.UTF_8);
+
+    @Test
+    public void readsInfoHeaders() {
+        Map<String, String> info = new LinkedHashMap<>();
+        info.put("client_timeout", "250");
+        info.put("trace_id", "t\u00e9st");
+        ByteBuf frame = request(ThriftHeader.FLAG_SUPPORT_OUT_OF_ORDER, 7, 2, new int[0], info, PAYLOAD);
+        ThriftHeader header = ThriftHeader.read(frame);
+        assertEquals(7, header.getSequenceId());
+        assertSame(ThriftProtocolType.COMPACT, header.getProtocolType());
+        assertTrue(header.isOutOfOrderSupported());
+        assertFalse(header.isCompressed());
+        assertEquals(info, header.getInfoHeaders());
+        assertEquals("250", header.getInfoHeader("client_timeout"));
+        assertPayload(PAYLOAD, frame);
+        frame.release();
+    }
+
+    @Test
+    public void skipsPaddingAndUnknownInfo() {
+        ByteBuf frame = request(0, 1, 0, new int[0], Collections.singletonMap("key", "value"), PAYLOAD, 3, 0);
+        ThriftHeader header = ThriftHeader.read(frame);
+        assertEquals(Collections.singletonMap("key", "value"), header.getInfoHeaders());
+        assertFalse(header.isOutOfOrderSupported());
+        assertPayload(PAYLOAD, frame);
+        frame.release();
+    }
+
+    @Test
+    public void inflatesZlibPayload() {
+        ByteBuf frame = request(0, 1, 0, new int[]{ThriftHeader.ZLIB_TRANSFORM}, null, deflate(PAYLOAD));
+        ThriftHeader header = ThriftHeader.read(frame);
+        assertTrue(header.isCompressed());
+        ByteBuf payload = header.decodePayload(frame, ALLOC, 1024);
+        assertEquals(0, frame.refCnt());
+        assertPayload(PAYLOAD, payload);
+        payload.release();
+    }
+
+    @Test
+    public void inflatesRepeatedZlibTransforms() {
+        ByteBuf frame = request(0, 1, 0, new int[]{ThriftHeader.ZLIB_TRANSFORM, ThriftHeader.ZLIB_TRANSFORM}, null,
+                deflate(deflate(PAYLOAD)));
+        ByteBuf payload = ThriftHeader.read(frame).decodePayload(frame, ALLOC, 1024);
+        assertEquals(0, frame.refCnt());
+        assertPayload(PAYLOAD, payload);
+        payload.release();
+    }
+
+    @Test
+    public void leavesPlainPayloadAsItIs() {
+        ByteBuf frame = request(0, 1, 0, new int[0], null, PAYLOAD);
+        assertSame(frame, ThriftHeader.read(frame).decodePayload(frame, ALLOC, 1024));
+        frame.release();
+    }
+
+    @Test
+    public void rejectsPayloadInflatingPastMaxSize() {
+        byte[] large = new byte[4096];
+        ByteBuf frame = request(0, 1, 0, new int[]{ThriftHeader.ZLIB_TRANSFORM}, null, deflate(large));
+        ThriftHeader header = ThriftHeader.read(frame);
+        // Well under the maximum while compressed
+        assertTrue(frame.readableBytes() < 1024);
+        try {
+            header.decodePayload(frame, ALLOC, 1024);
+            fail();
+        } catch (TooLongFrameException e) {
+            // expected
+        }
+        assertEquals(0, frame.refCnt());
+        ByteBuf exact = request(0, 1, 0, new int[]{ThriftHeader.ZLIB_TRANSFORM}, null, deflate(large));
+        ByteBuf payload = ThriftHeader.read(exact).decodePayload(exact, ALLOC, large.length);
+        assertEquals(large.length, payload.readableBytes());
+        payload.release();
+    }
+
+    @Test
+    public void releasesPayloadOnceWhenLaterTransformFails() {
+        // The first inflate succeeds, the second finds no zlib stream
+        ByteBuf frame = request(0, 1, 0, new int[]{ThriftHeader.ZLIB_TRANSFORM, ThriftHeader.ZLIB_TRANSFORM}, null,
+                deflate(PAYLOAD));
+        ThriftHeader header = ThriftHeader.read(frame);
+        try {
+            header.decodePayload(frame, ALLOC, 1024);
+            fail();
+        } catch (CorruptedFrameException e) {
+            // expected
+        }
+        assertEquals(0, frame.refCnt());
+    }
+
+    @Test
+    public void rejectsTruncatedZlibPayload() {
+        byte[] deflated = deflate(PAYLOAD);
+        ByteBuf frame = request(0, 1, 0, new int[]{ThriftHeader.ZLIB_TRANSFORM}, null,
+                Arrays.copyOf(deflated, deflated.length / 2));
+        ThriftHeader header = ThriftHeader.read(frame);
+        try {
+            header.decodePayload(frame, ALLOC, 1024);
+            fail();
+        } catch (CorruptedFrameException e) {
+            // expected
+        }
+        assertEquals(0, frame.refCnt());
+    }
+
+    @Test
+    public void rejectsUnknownTransform() {
+        assertCorrupt(request(0, 1, 0, new int[]{2}, null, PAYLOAD));
+    }
+
+    @Test
+    public void rejectsUnknownProtocol() {
+        assertCorrupt(request(0, 1, 1, new int[0], null, PAYLOAD));
+    }
+
+    @Test
+    public void rejectsFrameShorterThanFixedHeader() {
+        assertCorrupt(Unpooled.buffer().writeShort(ThriftHeader.MAGIC).writeShort(0).writeInt(1));
+    }
+
+    @Test
+    public void rejectsHeaderSizeBeyondFrame() {
+        ByteBuf frame = request(0, 1, 0, new int[0], null, new byte[0]);
+        frame.setShort(8, frame.getUnsignedShort(8) + 1);
+        assertCorrupt(frame);
+    }
+
+    @Test
+    public void rejectsInfoHeaderRunningPastHeaderEnd() {
+        ByteBuf frame = Unpooled.buffer();
+        frame.writeShort(ThriftHeader.MAGIC).writeShort(0).writeInt(1);
+        // One word: protocol, no transforms, one key/value header whose key claims 100 bytes
+        frame.writeShort(1);
+        frame.writeByte(0).writeByte(0).writeByte(ThriftHeader.INFO_KEYVALUE).writeByte(1);
+        frame.writeByte(100);
+        assertCorrupt(frame);
+    }
+
+    @Test
+    public void rejectsVarintRunningPastHeaderEnd() {
+        ByteBuf frame = Unpooled.buffer();
+        frame.writeShort(ThriftHeader.MAGIC).writeShort(0).writeInt(1);
+        frame.writeShort(1);
+        frame.writeByte(0x80).writeByte(0x80).writeByte(0x80).writeByte(0x80);
+        frame.writeByte(0);
+        assertCorrupt(frame);
+    }
+
+    @Test
+    public void writesResponseWithRequestHeader() {
+        ByteBuf request = request(ThriftHeader.FLAG_SUPPORT_OUT_OF_ORDER, 9, 2, new int[0],
+                Collections.singletonMap("key", "value"), PAYLOAD);
+        ThriftHeader header = ThriftHeader.read(request);
+        request.release();
+        ByteBuf out = ALLOC.buffer();
+        header.beginResponse(out);
+        out.writeBytes(PAYLOAD);
+        ByteBuf response = header.endResponse(out, ALLOC);
+        assertSame(out, response);
+        assertEquals(response.readableBytes() - 4, response.readInt());
+        ThriftHeader responseHeader = ThriftHeader.read(response);
+        assertEquals(9, responseHeader.getSequenceId());
+        assertSame(ThriftProtocolType.COMPACT, responseHeader.getProtocolType());
+        assertTrue(responseHeader.isOutOfOrderSupported());
+        assertFalse(responseHeader.isCompressed());
+        assertPayload(PAYLOAD, response);
+        response.release();
+    }
+
+    @Test
+    public void compressesResponseToCompressedRequest() {
+        ByteBuf request = request(0, 3, 0, new int[]{ThriftHeader.ZLIB_TRANSFORM}, null, deflate(PAYLOAD));
+        ThriftHeader header = ThriftHeader.read(request);
+        request.release();
+        ByteBuf out = ALLOC.buffer();
+        header.beginResponse(out);
+        out.writeBytes(PAYLOAD);
+        ByteBuf response = header.endResponse(out, ALLOC);
+        assertEquals(0, out.refCnt());
+        assertEquals(response.readableBytes() - 4, response.readInt());
+        ThriftHeader responseHeader = ThriftHeader.read(response);
+        assertEquals(3, responseHeader.getSequenceId());
+        assertTrue(responseHeader.isCompressed());
+        ByteBuf payload = responseHeader.decodePayload(response, ALLOC, 1024);
+        assertPayload(PAYLOAD, payload);
+        payload.release();
+    }
+
+    /**
+     * A THeader request frame without its length.
+     *
+     * @param info  key/value info headers, or {@code null} for none
+     * @param extra bytes appended to the header before its padding, such as unknown info types
+     */
+    private static ByteBuf request(int flags, int sequenceId, int protocolId, int[] transforms, Map<String, String> info,
+                                   byte[] payload, int... extra) {
+        ByteBuf header = Unpooled.buffer();
+        writeVarint(header, protocolId);
+        writeVarint(header, transforms.length);
+        for (int transform : transforms) {
+            writeVarint(header, transform);
+        }
+        if (info != null) {
+            writeVarint(header, ThriftHeader.INFO_KEYVALUE);
+            writeVarint(header, info.size());
+            for (Map.Entry<String, String> entry : info.entrySet()) {
+                writeString(header, entry.getKey());
+                writeString(header, entry.getValue());
+            }
+        }
+        for (int b : extra) {
+            header.writeByte(b);
+        }
+        header.writeZero((4 - header.readableBytes() % 4) % 4);
+        ByteBuf frame = Unpooled.buffer();
+        frame.writeShort(ThriftHeader.MAGIC).writeShort(flags).writeInt(sequenceId);
+        frame.writeShort(header.readableBytes() / 4);
+        frame.writeBytes(header);
+        frame.writeBytes(payload);
+        return frame;
+    }
+
+    private static void writeVarint(ByteBuf out, int value) {
+        while ((value & ~0x7F) != 0) {
+            out.writeByte((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte(value);
+    }
+
+    private static void writeString(ByteBuf out, String value) {
+        byte[] bytes = value.getBytes(CharsetUtil.UTF_8);
+        writeVarint(out, bytes.length);
+        out.writeBytes(bytes);
+    }
+
+    private static byte[] deflate(byte[] data) {
+        Deflater deflater = new Deflater();
+        deflater.setInput(data);
+        deflater.finish();
+        byte[] buffer = new byte[data.length + 64];
+        int length = deflater.deflate(buffer);
+        deflater.end();
+        return Arrays.copyOf(buffer, length);
+    }
+
+    private static void assertPayload(byte[] expected, ByteBuf payload) {
+        byte[] actual = new byte[payload.readableBytes()];
+        payload.getBytes(payload.readerIndex(), actual);
+        assertArrayEquals(expected, actual);
+    }
+
+    private static void assertCorrupt(ByteBuf frame) {
+        try {
+            ThriftHeader.read(frame);
+            fail();
+        } catch (CorruptedFrameException e) {
+            // expected
+        } finally {
+            frame.release();
+        }
+    }
+}
@@ -0,0 +1,67 @@
+package io.nebo.thrift;
+
+import io.nebo.container.RequestContentConfig;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.http.DefaultFullHttpRequest;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpVersion;
+import io.netty.handler.codec.http.LastHttpContent;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+
+/**
+ * Thrift calls over HTTP with {@link ThriftHttpHandler}, next to the servlet responses on the same connection.
+ */
+public class ThriftHttpHandlerTest {
+    private static final byte[] BINARY_CALL = {(byte) 0x80, 0x01, 0x00, 0x01};
+
+    @Test
+    public void passesCallToThriftAndReplyBackAsHttpResponse() {
+        EmbeddedChannel channel = new EmbeddedChannel(new ThriftHttpHandler(new RequestContentConfig()));
+        channel.writeInbound(new DefaultFullHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.POST, "/thrift/echo",
+                Unpooled.wrappedBuffer(BINARY_CALL)));
+        ThriftMessage message = (ThriftMessage) channel.readInbound();
+        assertSame(ThriftTransportType.HTTP, message.getTransportType());
+        assertEquals("echo", message.getServiceName());
+        message.getBuffer().release();
+
+        ByteBuf body = Unpooled.wrappedBuffer(new byte[]{1, 2, 3});
+        channel.writeOutbound(new ThriftHttpHandler.Reply(body));
+        FullHttpResponse response = (FullHttpResponse) channel.readOutbound();
+        assertEquals(HttpResponseStatus.OK, response.status());
+        assertEquals(ThriftHttpHandler.CONTENT_TYPE, response.headers().get(HttpHeaderNames.CONTENT_TYPE).toString());
+        assertEquals("3", response.headers().get(HttpHeaderNames.CONTENT_LENGTH).toString());
+        assertSame(body, response.content());
+        response.release();
+        assertFalse(channel.finish());
+    }
+
+    @Test
+    public void passesServletResponseThroughWhileThriftCallIsInFlight() {
+        EmbeddedChannel channel = new EmbeddedChannel(new ThriftHttpHandler(new RequestContentConfig()));
+        channel.writeInbound(new DefaultFullHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.POST, "/thrift/echo",
+                Unpooled.wrappedBuffer(BINARY_CALL)));
+        ((ThriftMessage) channel.readInbound()).getBuffer().release();
+
+        // The chunks of a servlet's response body are plain buffers, which must not be taken for the Thrift reply
+        ByteBuf chunk = Unpooled.wrappedBuffer(new byte[]{4, 5});
+        channel.writeOutbound(chunk, LastHttpContent.EMPTY_LAST_CONTENT);
+        assertSame(chunk, channel.readOutbound());
+        assertSame(LastHttpContent.EMPTY_LAST_CONTENT, channel.readOutbound());
+        chunk.release();
+
+        channel.writeOutbound(new ThriftHttpHandler.Reply(Unpooled.buffer()));
+        FullHttpResponse response = (FullHttpResponse) channel.readOutbound();
+        assertEquals(ThriftHttpHandler.CONTENT_TYPE, response.headers().get(HttpHeaderNames.CONTENT_TYPE).toString());
+        response.release();
+        assertFalse(channel.finish());
+    }
+}
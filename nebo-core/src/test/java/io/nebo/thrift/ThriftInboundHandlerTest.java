@@ -0,0 +1,306 @@
+package io.nebo.thrift;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.util.CharsetUtil;
+import org.apache.thrift.AsyncProcessFunction;
+import org.apache.thrift.TBase;
+import org.apache.thrift.TBaseAsyncProcessor;
+import org.apache.thrift.TException;
+import org.apache.thrift.TFieldIdEnum;
+import org.apache.thrift.async.AsyncMethodCallback;
+import org.apache.thrift.meta_data.FieldMetaData;
+import org.apache.thrift.protocol.TField;
+import org.apache.thrift.protocol.TMessageType;
+import org.apache.thrift.protocol.TProtocol;
+import org.apache.thrift.protocol.TProtocolUtil;
+import org.apache.thrift.protocol.TStruct;
+import org.apache.thrift.protocol.TType;
+import org.apache.thrift.server.AbstractNonblockingServer;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Ordering of the responses to pipelined calls by {@link ThriftInboundHandler}, and its bound on the calls in flight.
+ */
+public class ThriftInboundHandlerTest {
+    private final List<AsyncMethodCallback<Object>> started = new ArrayList<>();
+    private ThriftProcessorRegistry registry;
+
+    @Before
+    public void setUp() {
+        registry = new ThriftProcessorRegistry();
+        registry.register("echo", new Echo.AsyncIface() {
+            @Override
+            public void ping(AsyncMethodCallback<Object> callback) {
+                started.add(callback);
+            }
+
+            @Override
+            public void fire(AsyncMethodCallback<Object> callback) {
+                started.add(callback);
+            }
+        });
+    }
+
+    @Test
+    public void holdsResponsesCompletedOutOfOrder() {
+        EmbeddedChannel channel = newChannel(new ThriftServerConfig());
+        channel.writeInbound(call("ping", TMessageType.CALL, 1), call("ping", TMessageType.CALL, 2),
+                call("ping", TMessageType.CALL, 3));
+        started.get(2).onComplete(null);
+        started.get(1).onComplete(null);
+        assertNull(channel.readOutbound());
+        started.get(0).onComplete(null);
+        assertResponse(1, channel.readOutbound());
+        assertResponse(2, channel.readOutbound());
+        assertResponse(3, channel.readOutbound());
+        assertFalse(channel.finish());
+    }
+
+    @Test
+    public void writesResponsesInCompletionOrderWhenAllowed() {
+        ThriftServerConfig config = new ThriftServerConfig();
+        config.setOutOfOrderResponses(true);
+        EmbeddedChannel channel = newChannel(config);
+        channel.writeInbound(call("ping", TMessageType.CALL, 1), call("ping", TMessageType.CALL, 2));
+        started.get(1).onComplete(null);
+        assertResponse(2, channel.readOutbound());
+        started.get(0).onComplete(null);
+        assertResponse(1, channel.readOutbound());
+        assertFalse(channel.finish());
+    }
+
+    @Test
+    public void onewayCallsKeepTheirPlaceWithoutResponse() {
+        EmbeddedChannel channel = newChannel(new ThriftServerConfig());
+        channel.writeInbound(call("ping", TMessageType.CALL, 1), call("fire", TMessageType.ONEWAY, 2),
+                call("ping", TMessageType.CALL, 3));
+        started.get(1).onComplete(null);
+        started.get(2).onComplete(null);
+        assertNull(channel.readOutbound());
+        started.get(0).onComplete(null);
+        assertResponse(1, channel.readOutbound());
+        assertResponse(3, channel.readOutbound());
+        assertNull(channel.readOutbound());
+        assertFalse(channel.finish());
+    }
+
+    @Test
+    public void boundsCallsInFlight() {
+        ThriftServerConfig config = new ThriftServerConfig();
+        config.setMaxPipelinedRequests(2);
+        EmbeddedChannel channel = newChannel(config);
+        // All three arrive together, as if decoded from a single read
+        channel.writeInbound(call("ping", TMessageType.CALL, 1), call("ping", TMessageType.CALL, 2),
+                call("ping", TMessageType.CALL, 3));
+        assertEquals(2, started.size());
+        assertFalse(channel.config().isAutoRead());
+        started.get(0).onComplete(null);
+        assertEquals(3, started.size());
+        assertFalse(channel.config().isAutoRead());
+        started.get(1).onComplete(null);
+        assertTrue(channel.config().isAutoRead());
+        started.get(2).onComplete(null);
+        assertResponse(1, channel.readOutbound());
+        assertResponse(2, channel.readOutbound());
+        assertResponse(3, channel.readOutbound());
+        assertFalse(channel.finish());
+    }
+
+    @Test
+    public void releasesWaitingCallsOnClose() {
+        ThriftServerConfig config = new ThriftServerConfig();
+        config.setMaxPipelinedRequests(1);
+        EmbeddedChannel channel = newChannel(config);
+        ThriftMessage waiting = call("ping", TMessageType.CALL, 2);
+        channel.writeInbound(call("ping", TMessageType.CALL, 1), waiting);
+        assertEquals(1, started.size());
+        channel.close();
+        assertEquals(0, waiting.getBuffer().refCnt());
+    }
+
+    private EmbeddedChannel newChannel(ThriftServerConfig config) {
+        return new EmbeddedChannel(new ThriftInboundHandler(registry, 0, null, config));
+    }
+
+    /**
+     * A framed binary protocol call without arguments.
+     */
+    private static ThriftMessage call(String name, byte type, int seqid) {
+        ByteBuf buffer = Unpooled.buffer();
+        buffer.writeInt(0x80010000 | type);
+        byte[] nameBytes = name.getBytes(CharsetUtil.UTF_8);
+        buffer.writeInt(nameBytes.length);
+        buffer.writeBytes(nameBytes);
+        buffer.writeInt(seqid);
+        buffer.writeByte(TType.STOP);
+        return new ThriftMessage(buffer, ThriftTransportType.FRAMED);
+    }
+
+    private static void assertResponse(int seqid, Object response) {
+        ByteBuf buffer = (ByteBuf) response;
+        try {
+            assertEquals(buffer.readableBytes() - 4, buffer.readInt());
+            assertEquals(0x80010000 | TMessageType.REPLY, buffer.readInt());
+            buffer.skipBytes(buffer.readInt());
+            assertEquals(seqid, buffer.readInt());
+        } finally {
+            buffer.release();
+        }
+    }
+
+    /**
+     * Stands in for the code the Thrift compiler generates for
+     * <pre>
+     * service Echo {
+     *     void ping()
+     *     oneway void fire()
+     * }
+     * </pre>
+     * with results handed back to the callbacks by the tests.
+     */
+    public static class Echo {
+        public interface AsyncIface {
+            void ping(AsyncMethodCallback<Object> callback) throws TException;
+
+            void fire(AsyncMethodCallback<Object> callback) throws TException;
+        }
+
+        public static class AsyncProcessor<I extends AsyncIface> extends TBaseAsyncProcessor<I> {
+            public AsyncProcessor(I iface) {
+                super(iface, Echo.<I>processMap());
+            }
+        }
+
+        private static <I extends AsyncIface> Map<String, AsyncProcessFunction<I, ? extends TBase, ?>> processMap() {
+            Map<String, AsyncProcessFunction<I, ? extends TBase, ?>> processMap = new HashMap<>();
+            processMap.put("ping", new Function<I>("ping", false) {
+                @Override
+                public void start(I iface, Empty args, AsyncMethodCallback<Object> callback) throws TException {
+                    iface.ping(callback);
+                }
+            });
+            processMap.put("fire", new Function<I>("fire", true) {
+                @Override
+                public void start(I iface, Empty args, AsyncMethodCallback<Object> callback) throws TException {
+                    iface.fire(callback);
+                }
+            });
+            return processMap;
+        }
+
+        private abstract static class Function<I> extends AsyncProcessFunction<I, Empty, Object> {
+            private final boolean oneway;
+
+            Function(String methodName, boolean oneway) {
+                super(methodName);
+                this.oneway = oneway;
+            }
+
+            @Override
+            protected boolean isOneway() {
+                return oneway;
+            }
+
+            @Override
+            public Empty getEmptyArgsInstance() {
+                return new Empty();
+            }
+
+            @Override
+            public AsyncMethodCallback getResultHandler(AbstractNonblockingServer.AsyncFrameBuffer fb, int seqid) {
+                throw new UnsupportedOperationException();
+            }
+        }
+
+        public static class ping_result extends Empty {
+            static {
+                FieldMetaData.addStructMetaDataMap(ping_result.class, Collections.<NoFields, FieldMetaData>emptyMap());
+            }
+        }
+    }
+
+    /**
+     * A struct without fields, for the arguments and results of {@link Echo}.
+     */
+    public static class Empty implements TBase<Empty, NoFields> {
+        @Override
+        public void read(TProtocol in) throws TException {
+            in.readStructBegin();
+            TField field;
+            while ((field = in.readFieldBegin()).type != TType.STOP) {
+                TProtocolUtil.skip(in, field.type);
+                in.readFieldEnd();
+            }
+            in.readStructEnd();
+        }
+
+        @Override
+        public void write(TProtocol out) throws TException {
+            out.writeStructBegin(new TStruct(getClass().getSimpleName()));
+            out.writeFieldStop();
+            out.writeStructEnd();
+        }
+
+        @Override
+        public NoFields fieldForId(int fieldId) {
+            return null;
+        }
+
+        @Override
+        public boolean isSet(NoFields field) {
+            return false;
+        }
+
+        @Override
+        public Object getFieldValue(NoFields field) {
+            throw new IllegalArgumentException();
+        }
+
+        @Override
+        public void setFieldValue(NoFields field, Object value) {
+            throw new IllegalArgumentException();
+        }
+
+        @Override
+        public Empty deepCopy() {
+            return new Empty();
+        }
+
+        @Override
+        public void clear() {
+        }
+
+        @Override
+        public int compareTo(Empty other) {
+            return 0;
+        }
+    }
+
+    public enum NoFields implements TFieldIdEnum {
+        ;
+
+        @Override
+        public short getThriftFieldId() {
+            return 0;
+        }
+
+        @Override
+        public String getFieldName() {
+            return null;
+        }
+    }
+}
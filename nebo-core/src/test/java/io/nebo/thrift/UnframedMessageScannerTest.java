@@ -0,0 +1,349 @@
+package io.nebo.thrift;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.handler.codec.CorruptedFrameException;
+import io.netty.handler.codec.TooLongFrameException;
+import org.apache.thrift.TException;
+import org.apache.thrift.protocol.TBinaryProtocol;
+import org.apache.thrift.protocol.TCompactProtocol;
+import org.apache.thrift.protocol.TField;
+import org.apache.thrift.protocol.TList;
+import org.apache.thrift.protocol.TMap;
+import org.apache.thrift.protocol.TMessage;
+import org.apache.thrift.protocol.TMessageType;
+import org.apache.thrift.protocol.TProtocol;
+import org.apache.thrift.protocol.TProtocolFactory;
+import org.apache.thrift.protocol.TSet;
+import org.apache.thrift.protocol.TStruct;
+import org.apache.thrift.protocol.TType;
+import org.apache.thrift.transport.TMemoryBuffer;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+/**
+ * Finding the end of unframed Thrift messages with {@link UnframedMessageScanner}.
+ */
+public class UnframedMessageScannerTest {
+    private static final int MAX_LENGTH = 64 * 1024;
+    private static final TStruct STRUCT = new TStruct("s");
+
+    @Test
+    public void scansBinaryMessageSplitAtEveryByte() throws TException {
+        assertSplitAtEveryByte(ThriftProtocolType.BINARY, message(new TBinaryProtocol.Factory()));
+    }
+
+    @Test
+    public void scansCompactMessageSplitAtEveryByte() throws TException {
+        assertSplitAtEveryByte(ThriftProtocolType.COMPACT, message(new TCompactProtocol.Factory()));
+    }
+
+    @Test
+    public void scansBinaryMessageOneByteAtATime() throws TException {
+        assertOneByteAtATime(ThriftProtocolType.BINARY, message(new TBinaryProtocol.Factory()));
+    }
+
+    @Test
+    public void scansCompactMessageOneByteAtATime() throws TException {
+        assertOneByteAtATime(ThriftProtocolType.COMPACT, message(new TCompactProtocol.Factory()));
+    }
+
+    @Test
+    public void scansEmptyContainers() throws TException {
+        for (TProtocolFactory factory : new TProtocolFactory[]{new TBinaryProtocol.Factory(), new TCompactProtocol.Factory()}) {
+            TMemoryBuffer transport = new TMemoryBuffer(64);
+            TProtocol out = factory.getProtocol(transport);
+            out.writeMessageBegin(new TMessage("empty", TMessageType.CALL, 1));
+            out.writeStructBegin(STRUCT);
+            out.writeFieldBegin(new TField("list", TType.LIST, (short) 1));
+            out.writeListBegin(new TList(TType.I32, 0));
+            out.writeListEnd();
+            out.writeFieldEnd();
+            out.writeFieldBegin(new TField("map", TType.MAP, (short) 2));
+            out.writeMapBegin(new TMap(TType.STRING, TType.I64, 0));
+            out.writeMapEnd();
+            out.writeFieldEnd();
+            out.writeFieldBegin(new TField("set", TType.SET, (short) 3));
+            out.writeSetBegin(new TSet(TType.STRUCT, 0));
+            out.writeSetEnd();
+            out.writeFieldEnd();
+            out.writeFieldStop();
+            out.writeStructEnd();
+            out.writeMessageEnd();
+            byte[] message = Arrays.copyOf(transport.getArray(), transport.length());
+            ThriftProtocolType protocolType = factory instanceof TCompactProtocol.Factory
+                    ? ThriftProtocolType.COMPACT : ThriftProtocolType.BINARY;
+            assertEquals(message.length, new UnframedMessageScanner(protocolType, MAX_LENGTH).scan(withTrailer(message)));
+        }
+    }
+
+    @Test
+    public void scansCompactVarintsOfEveryLength() throws TException {
+        TMemoryBuffer transport = new TMemoryBuffer(256);
+        TProtocol out = new TCompactProtocol(transport);
+        // A seqid taking the full five bytes
+        out.writeMessageBegin(new TMessage("varints", TMessageType.CALL, Integer.MIN_VALUE));
+        out.writeStructBegin(STRUCT);
+        long[] values = {0, -1, 63, -64, 64, 8191, 8192, Integer.MAX_VALUE, Integer.MIN_VALUE, Long.MAX_VALUE,
+                Long.MIN_VALUE};
+        short id = 1;
+        for (long value : values) {
+            out.writeFieldBegin(new TField("i64", TType.I64, id++));
+            out.writeI64(value);
+            out.writeFieldEnd();
+        }
+        // Field ids too far apart for a delta in the field header, and negative ones, carried as varints
+        out.writeFieldBegin(new TField("far", TType.I32, (short) 1000));
+        out.writeI32(Integer.MIN_VALUE);
+        out.writeFieldEnd();
+        out.writeFieldBegin(new TField("negative", TType.I16, (short) -5));
+        out.writeI16(Short.MIN_VALUE);
+        out.writeFieldEnd();
+        // A list long enough for its size to follow as a varint
+        out.writeFieldBegin(new TField("list", TType.LIST, (short) 1));
+        out.writeListBegin(new TList(TType.BYTE, 200));
+        for (int i = 0; i < 200; i++) {
+            out.writeByte((byte) i);
+        }
+        out.writeListEnd();
+        out.writeFieldEnd();
+        // A string long enough for a two byte length
+        out.writeFieldBegin(new TField("string", TType.STRING, (short) 2));
+        out.writeBinary(ByteBuffer.wrap(new byte[300]));
+        out.writeFieldEnd();
+        out.writeFieldStop();
+        out.writeStructEnd();
+        out.writeMessageEnd();
+        byte[] message = Arrays.copyOf(transport.getArray(), transport.length());
+        assertSplitAtEveryByte(ThriftProtocolType.COMPACT, message);
+    }
+
+    @Test
+    public void rejectsOverlongCompactVarint() {
+        ByteBuf buffer = Unpooled.buffer();
+        // Protocol id, version and type, then a seqid that never ends
+        buffer.writeByte(0x82).writeByte(0x21);
+        for (int i = 0; i < 11; i++) {
+            buffer.writeByte(0xff);
+        }
+        try {
+            new UnframedMessageScanner(ThriftProtocolType.COMPACT, MAX_LENGTH).scan(buffer);
+            fail();
+        } catch (CorruptedFrameException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void rejectsBadBinaryVersion() {
+        ByteBuf buffer = Unpooled.buffer();
+        buffer.writeInt(0x80020000 | TMessageType.CALL).writeInt(0).writeInt(1).writeByte(TType.STOP);
+        try {
+            new UnframedMessageScanner(ThriftProtocolType.BINARY, MAX_LENGTH).scan(buffer);
+            fail();
+        } catch (CorruptedFrameException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void rejectsBinaryListLargerThanMaxLength() throws TException {
+        assertContainerTooLong(ThriftProtocolType.BINARY, new TBinaryProtocol.Factory(), TType.LIST);
+    }
+
+    @Test
+    public void rejectsBinaryMapLargerThanMaxLength() throws TException {
+        assertContainerTooLong(ThriftProtocolType.BINARY, new TBinaryProtocol.Factory(), TType.MAP);
+    }
+
+    @Test
+    public void rejectsCompactListLargerThanMaxLength() throws TException {
+        assertContainerTooLong(ThriftProtocolType.COMPACT, new TCompactProtocol.Factory(), TType.LIST);
+    }
+
+    @Test
+    public void rejectsCompactMapLargerThanMaxLength() throws TException {
+        assertContainerTooLong(ThriftProtocolType.COMPACT, new TCompactProtocol.Factory(), TType.MAP);
+    }
+
+    @Test
+    public void acceptsContainerFillingMaxLength() throws TException {
+        TMemoryBuffer transport = new TMemoryBuffer(64);
+        TProtocol out = new TBinaryProtocol(transport);
+        out.writeMessageBegin(new TMessage("fill", TMessageType.CALL, 1));
+        out.writeStructBegin(STRUCT);
+        out.writeFieldBegin(new TField("list", TType.LIST, (short) 1));
+        out.writeListBegin(new TList(TType.I32, 100));
+        int listStart = transport.length();
+        // Only the header of the list has arrived, its elements would end exactly at the maximum length
+        ByteBuf buffer = Unpooled.wrappedBuffer(Arrays.copyOf(transport.getArray(), listStart));
+        assertEquals(-1, new UnframedMessageScanner(ThriftProtocolType.BINARY, listStart + 100 * 4).scan(buffer));
+    }
+
+    @Test
+    public void rejectsNegativeBinaryListSize() {
+        ByteBuf buffer = Unpooled.buffer();
+        buffer.writeInt(0x80010000 | TMessageType.CALL).writeInt(0).writeInt(1);
+        buffer.writeByte(TType.LIST).writeShort(1).writeByte(TType.I32).writeInt(-1);
+        try {
+            new UnframedMessageScanner(ThriftProtocolType.BINARY, MAX_LENGTH).scan(buffer);
+            fail();
+        } catch (CorruptedFrameException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void scansConsecutiveMessagesAfterReset() throws TException {
+        byte[] message = message(new TBinaryProtocol.Factory());
+        ByteBuf buffer = Unpooled.buffer();
+        buffer.writeBytes(message).writeBytes(message);
+        UnframedMessageScanner scanner = new UnframedMessageScanner(ThriftProtocolType.BINARY, MAX_LENGTH);
+        assertEquals(message.length, scanner.scan(buffer));
+        buffer.skipBytes(message.length);
+        scanner.reset();
+        assertEquals(message.length, scanner.scan(buffer));
+    }
+
+    /**
+     * A call whose arguments hold every type, nested in structs, lists, sets and maps.
+     */
+    private static byte[] message(TProtocolFactory factory) throws TException {
+        TMemoryBuffer transport = new TMemoryBuffer(1024);
+        TProtocol out = factory.getProtocol(transport);
+        out.writeMessageBegin(new TMessage("nested", TMessageType.CALL, 42));
+        out.writeStructBegin(STRUCT);
+        out.writeFieldBegin(new TField("bool", TType.BOOL, (short) 1));
+        out.writeBool(true);
+        out.writeFieldEnd();
+        out.writeFieldBegin(new TField("byte", TType.BYTE, (short) 2));
+        out.writeByte((byte) -1);
+        out.writeFieldEnd();
+        out.writeFieldBegin(new TField("i16", TType.I16, (short) 3));
+        out.writeI16((short) 300);
+        out.writeFieldEnd();
+        out.writeFieldBegin(new TField("i32", TType.I32, (short) 4));
+        out.writeI32(-70000);
+        out.writeFieldEnd();
+        out.writeFieldBegin(new TField("i64", TType.I64, (short) 5));
+        out.writeI64(1L << 40);
+        out.writeFieldEnd();
+        out.writeFieldBegin(new TField("double", TType.DOUBLE, (short) 6));
+        out.writeDouble(Math.PI);
+        out.writeFieldEnd();
+        out.writeFieldBegin(new TField("string", TType.STRING, (short) 7));
+        out.writeString("h\u00e9llo");
+        out.writeFieldEnd();
+        // list<map<string, set<i64>>>
+        out.writeFieldBegin(new TField("list", TType.LIST, (short) 8));
+        out.writeListBegin(new TList(TType.MAP, 2));
+        for (int i = 0; i < 2; i++) {
+            out.writeMapBegin(new TMap(TType.STRING, TType.SET, 2));
+            for (int j = 0; j < 2; j++) {
+                out.writeString("key" + j);
+                out.writeSetBegin(new TSet(TType.I64, 3));
+                for (long k = 0; k < 3; k++) {
+                    out.writeI64(k << (20 * i));
+                }
+                out.writeSetEnd();
+            }
+            out.writeMapEnd();
+        }
+        out.writeListEnd();
+        out.writeFieldEnd();
+        // map<i32, list<struct>> with a struct nested in each struct
+        out.writeFieldBegin(new TField("map", TType.MAP, (short) 9));
+        out.writeMapBegin(new TMap(TType.I32, TType.LIST, 1));
+        out.writeI32(7);
+        out.writeListBegin(new TList(TType.STRUCT, 2));
+        for (int i = 0; i < 2; i++) {
+            out.writeStructBegin(STRUCT);
+            out.writeFieldBegin(new TField("inner", TType.STRUCT, (short) 1));
+            out.writeStructBegin(STRUCT);
+            out.writeFieldBegin(new TField("flag", TType.BOOL, (short) 1));
+            out.writeBool(i == 0);
+            out.writeFieldEnd();
+            out.writeFieldStop();
+            out.writeStructEnd();
+            out.writeFieldEnd();
+            out.writeFieldStop();
+            out.writeStructEnd();
+        }
+        out.writeListEnd();
+        out.writeMapEnd();
+        out.writeFieldEnd();
+        // list<bool> and list<double>, elements the compact protocol writes differently from fields
+        out.writeFieldBegin(new TField("bools", TType.LIST, (short) 10));
+        out.writeListBegin(new TList(TType.BOOL, 3));
+        out.writeBool(true);
+        out.writeBool(false);
+        out.writeBool(true);
+        out.writeListEnd();
+        out.writeFieldEnd();
+        out.writeFieldBegin(new TField("doubles", TType.LIST, (short) 11));
+        out.writeListBegin(new TList(TType.DOUBLE, 2));
+        out.writeDouble(1.5);
+        out.writeDouble(-2.5);
+        out.writeListEnd();
+        out.writeFieldEnd();
+        out.writeFieldStop();
+        out.writeStructEnd();
+        out.writeMessageEnd();
+        return Arrays.copyOf(transport.getArray(), transport.length());
+    }
+
+    /**
+     * Scan the message with the bytes arriving in two parts, for every place it can be split.
+     */
+    private static void assertSplitAtEveryByte(ThriftProtocolType protocolType, byte[] message) {
+        for (int split = 0; split < message.length; split++) {
+            UnframedMessageScanner scanner = new UnframedMessageScanner(protocolType, MAX_LENGTH);
+            assertEquals("split at " + split, -1, scanner.scan(Unpooled.wrappedBuffer(message, 0, split)));
+            assertEquals("split at " + split, message.length, scanner.scan(withTrailer(message)));
+        }
+    }
+
+    private static void assertOneByteAtATime(ThriftProtocolType protocolType, byte[] message) {
+        UnframedMessageScanner scanner = new UnframedMessageScanner(protocolType, MAX_LENGTH);
+        for (int length = 0; length < message.length; length++) {
+            assertEquals("length " + length, -1, scanner.scan(Unpooled.wrappedBuffer(message, 0, length)));
+        }
+        assertEquals(message.length, scanner.scan(Unpooled.wrappedBuffer(message)));
+    }
+
+    /**
+     * The message followed by the start of the next one, which must not be taken as part of it.
+     */
+    private static ByteBuf withTrailer(byte[] message) {
+        return Unpooled.buffer().writeBytes(message).writeBytes(new byte[]{(byte) 0x80, 0x01, 0x00, 0x01});
+    }
+
+    /**
+     * A container announcing far more elements than the maximum length, of which only the size has arrived.
+     */
+    private static void assertContainerTooLong(ThriftProtocolType protocolType, TProtocolFactory factory, byte type)
+            throws TException {
+        TMemoryBuffer transport = new TMemoryBuffer(64);
+        TProtocol out = factory.getProtocol(transport);
+        out.writeMessageBegin(new TMessage("huge", TMessageType.CALL, 1));
+        out.writeStructBegin(STRUCT);
+        out.writeFieldBegin(new TField("huge", type, (short) 1));
+        if (type == TType.MAP) {
+            out.writeMapBegin(new TMap(TType.I32, TType.I32, 1 << 20));
+        } else {
+            out.writeListBegin(new TList(TType.I64, 1 << 20));
+        }
+        ByteBuf buffer = Unpooled.wrappedBuffer(Arrays.copyOf(transport.getArray(), transport.length()));
+        try {
+            new UnframedMessageScanner(protocolType, MAX_LENGTH).scan(buffer);
+            fail();
+        } catch (TooLongFrameException e) {
+            // expected
+        }
+    }
+}
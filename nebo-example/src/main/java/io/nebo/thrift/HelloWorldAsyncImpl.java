@@ -0,0 +1,39 @@
+package io.nebo.thrift;
+
+import org.apache.thrift.TException;
+import org.apache.thrift.async.AsyncMethodCallback;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The asynchronous flavour of {@link HelloWorldImpl}. Each call waits {@link #LATENCY_MILLIS} for a simulated downstream
+ * service without holding a thread, the result is handed to the callback by a single scheduler thread.
+ */
+@Component
+@ThriftEndpoint(serviceName="helloWorldAsync")
+public class HelloWorldAsyncImpl implements HelloWorld.AsyncIface {
+    public static final long LATENCY_MILLIS = 100;
+
+    private final ScheduledExecutorService downstream = Executors.newSingleThreadScheduledExecutor();
+
+    @Override
+    public void createNewBaseResInfo(final User user, final AsyncMethodCallback resultHandler) throws TException {
+        downstream.schedule(new Runnable() {
+            @Override
+            public void run() {
+                Result result = new Result();
+                result.setMsg(user.name + ">>" + user.id + ">>" + user.isIsman() + "你好");
+                resultHandler.onComplete(result);
+            }
+        }, LATENCY_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        downstream.shutdownNow();
+    }
+}
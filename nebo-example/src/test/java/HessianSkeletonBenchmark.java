@@ -0,0 +1,58 @@
+import com.caucho.hessian.io.Hessian2Output;
+import com.caucho.hessian.server.HessianSkeleton;
+import io.nebo.hessian.HessianEndpointSkeleton;
+import io.nebo.hessian.IHelloService;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+
+/**
+ * Dispatch throughput of an {@link IHelloService} call through Hessian's reflective {@link HessianSkeleton} and the
+ * precompiled {@link HessianEndpointSkeleton}.
+ * <p/>
+ * Run with {@code java -cp <test classpath> HessianSkeletonBenchmark [iterations]}.
+ */
+public class HessianSkeletonBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 2000000;
+        // Not HelloServiceImpl, which prints every call
+        IHelloService service = new IHelloService() {
+            @Override
+            public String sayHi(String user) {
+                return "sayHi : " + user;
+            }
+        };
+        byte[] call = encodeCall("sayHi", "nebo");
+        HessianSkeleton reflective = new HessianSkeleton(service, IHelloService.class);
+        HessianSkeleton precompiled = new HessianEndpointSkeleton(service, IHelloService.class);
+        for (int round = 0; round < 2; round++) {
+            // The first round warms up the JIT
+            benchmark("reflective", reflective, call, iterations, round > 0);
+            benchmark("precompiled", precompiled, call, iterations, round > 0);
+        }
+    }
+
+    private static byte[] encodeCall(String method, Object... args) throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        Hessian2Output out = new Hessian2Output(bytes);
+        out.call(method, args);
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    private static void benchmark(String name, HessianSkeleton skeleton, byte[] call, int iterations, boolean report)
+            throws Exception {
+        ByteArrayOutputStream reply = new ByteArrayOutputStream(256);
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            reply.reset();
+            skeleton.invoke(new ByteArrayInputStream(call), reply);
+        }
+        long nanos = System.nanoTime() - start;
+        if (report) {
+            System.out.printf("%-12s %4d bytes/reply  %,8.1f ns/call  %,12.0f calls/s%n", name, reply.size(),
+                    (double) nanos / iterations, iterations * 1e9 / nanos);
+        }
+    }
+}
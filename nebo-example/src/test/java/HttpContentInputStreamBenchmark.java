@@ -0,0 +1,81 @@
+import io.nebo.container.HttpContentInputStream;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.http.DefaultHttpContent;
+import io.netty.handler.codec.http.DefaultLastHttpContent;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Read throughput of a request body queued on an {@link HttpContentInputStream}, one byte at a time as
+ * {@code InputStream.read(byte[], int, int)} used to, with bulk reads, and transferred to a stream.
+ * <p/>
+ * Run with {@code java -cp <test classpath> HttpContentInputStreamBenchmark [body bytes] [iterations]}.
+ */
+public class HttpContentInputStreamBenchmark {
+    private static final int CHUNK_SIZE = 8192;
+
+    public static void main(String[] args) throws IOException {
+        int bodySize = args.length > 0 ? Integer.parseInt(args[0]) : 1024 * 1024;
+        int iterations = args.length > 1 ? Integer.parseInt(args[1]) : 200;
+        ByteBuf body = Unpooled.directBuffer(bodySize).writeZero(bodySize);
+        EmbeddedChannel channel = new EmbeddedChannel();
+        for (int round = 0; round < 2; round++) {
+            // The first round warms up the JIT
+            benchmark("byte", body, channel, iterations, round > 0);
+            benchmark("bulk", body, channel, iterations, round > 0);
+            benchmark("transfer", body, channel, iterations, round > 0);
+        }
+        channel.finish();
+        body.release();
+    }
+
+    private static void benchmark(String mode, ByteBuf body, EmbeddedChannel channel, int iterations, boolean report)
+            throws IOException {
+        byte[] buffer = new byte[CHUNK_SIZE];
+        OutputStream sink = new OutputStream() {
+            @Override
+            public void write(int b) {
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+            }
+        };
+        long bytes = 0;
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            HttpContentInputStream in = new HttpContentInputStream(channel, Integer.MAX_VALUE, 0);
+            for (int offset = 0; offset < body.readableBytes(); offset += CHUNK_SIZE) {
+                int length = Math.min(CHUNK_SIZE, body.readableBytes() - offset);
+                // The stream retains the slices it queues, and releases them once read
+                in.addContent(new DefaultHttpContent(body.slice(offset, length)));
+            }
+            in.addContent(new DefaultLastHttpContent());
+            switch (mode) {
+                case "byte":
+                    // What the default InputStream.read(byte[], int, int) does
+                    while (in.read() >= 0) {
+                        bytes++;
+                    }
+                    break;
+                case "bulk":
+                    int n;
+                    while ((n = in.read(buffer, 0, buffer.length)) >= 0) {
+                        bytes += n;
+                    }
+                    break;
+                default:
+                    bytes += in.transferTo(sink);
+                    break;
+            }
+            in.close();
+        }
+        long nanos = System.nanoTime() - start;
+        if (report) {
+            System.out.printf("%-8s %,12.0f MB/s%n", mode, bytes * 1e3 / nanos);
+        }
+    }
+}
@@ -0,0 +1,225 @@
+import io.nebo.App;
+import io.nebo.container.NettyEmbeddedServletContainerFactory;
+import io.nebo.container.WorkerExecutor;
+import io.netty.bootstrap.Bootstrap;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.handler.codec.http.DefaultFullHttpRequest;
+import io.netty.handler.codec.http.FullHttpRequest;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpClientCodec;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpObjectAggregator;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpVersion;
+import io.netty.util.AttributeKey;
+import org.springframework.boot.SpringApplication;
+import org.springframework.boot.context.embedded.ConfigurableEmbeddedServletContainer;
+import org.springframework.boot.context.embedded.EmbeddedServletContainerCustomizer;
+import org.springframework.boot.context.embedded.EmbeddedWebApplicationContext;
+import org.springframework.context.ApplicationContextInitializer;
+import org.springframework.context.ConfigurableApplicationContext;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Throughput and latency of the echo servlet at 200, 400 and 4000 concurrent keep-alive connections, for comparing the
+ * {@link WorkerExecutor.Mode servlet execution modes}. Every connection sends its next request as soon as the response
+ * to the last one has arrived, like a JMeter thread group with no think time; responses other than {@code 200}, such
+ * as the {@code 503} of a saturated executor, are counted as errors.
+ * <p/>
+ * The server runs in-process on port 8080 in the given mode, and is driven by a Netty client on
+ * {@value #CLIENT_THREADS} threads. {@link WorkerExecutor.Mode#VIRTUAL} needs a Java 21 runtime. Run with
+ * {@code java -cp <test classpath> ServletExecutionBenchmark [POOLED|VIRTUAL] [connections...]}.
+ */
+public class ServletExecutionBenchmark {
+    private static final int CLIENT_THREADS = 4;
+    private static final long WARMUP_MILLIS = 3000;
+    private static final long MEASURE_MILLIS = 10000;
+    private static final String URI = "/hello/user?name=benchmark";
+    // Latencies are counted in buckets of 100 us, up to 10 s
+    private static final int LATENCY_BUCKET_MICROS = 100;
+    private static final int LATENCY_BUCKETS = 100000;
+    private static final AttributeKey<Long> SENT = AttributeKey.valueOf("sent");
+
+    public static void main(String[] args) throws Exception {
+        final WorkerExecutor.Mode mode = args.length > 0 ? WorkerExecutor.Mode.valueOf(args[0]) : WorkerExecutor.Mode.POOLED;
+        int[] levels = {200, 400, 4000};
+        if (args.length > 1) {
+            levels = new int[args.length - 1];
+            for (int i = 1; i < args.length; i++) {
+                levels[i - 1] = Integer.parseInt(args[i]);
+            }
+        }
+        SpringApplication application = new SpringApplication(App.class);
+        application.addInitializers(new ApplicationContextInitializer<ConfigurableApplicationContext>() {
+            @Override
+            public void initialize(ConfigurableApplicationContext context) {
+                context.getBeanFactory().registerSingleton("servletExecutionModeCustomizer", new EmbeddedServletContainerCustomizer() {
+                    @Override
+                    public void customize(ConfigurableEmbeddedServletContainer container) {
+                        ((NettyEmbeddedServletContainerFactory) container).setServletExecutionMode(mode);
+                    }
+                });
+            }
+        });
+        ConfigurableApplicationContext context = application.run();
+        EventLoopGroup group = new NioEventLoopGroup(CLIENT_THREADS);
+        try {
+            WorkerExecutor executor = (WorkerExecutor) ((EmbeddedWebApplicationContext) context).getServletContext()
+                    .getAttribute(WorkerExecutor.ATTRIBUTE);
+            ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+            System.out.println(executor);
+            // Warm up the JIT before the first level is measured
+            Load warmup = new Load(group, levels[0]);
+            warmup.measure(MEASURE_MILLIS);
+            warmup.stop();
+            for (int connections : levels) {
+                Load load = new Load(group, connections);
+                Thread.sleep(WARMUP_MILLIS);
+                threads.resetPeakThreadCount();
+                long rejectedBefore = executor.getRejectedCount();
+                Stats stats = load.measure(MEASURE_MILLIS);
+                load.stop();
+                System.out.printf("%s connections=%5d  %,8.0f req/s  mean=%6.2f ms  p50=%6.1f ms  p99=%6.1f ms  errors=%d"
+                                + "  rejected=%d  peak threads=%d%n",
+                        executor.getMode(), connections, stats.throughput(), stats.meanMillis(), stats.percentileMillis(0.5),
+                        stats.percentileMillis(0.99), stats.errors.get(), executor.getRejectedCount() - rejectedBefore,
+                        threads.getPeakThreadCount());
+            }
+        } finally {
+            group.shutdownGracefully().sync();
+            context.close();
+        }
+        // The session manager's sweeper thread outlives the context
+        System.exit(0);
+    }
+
+    /**
+     * Requests looping on a number of connections, counted into the {@link Stats} being measured.
+     */
+    private static final class Load {
+        private final List<Channel> channels = new ArrayList<>();
+        private volatile Stats stats = new Stats();
+        private volatile boolean stopped;
+
+        Load(EventLoopGroup group, int connections) throws InterruptedException {
+            Bootstrap bootstrap = new Bootstrap()
+                    .group(group)
+                    .channel(NioSocketChannel.class)
+                    .option(ChannelOption.TCP_NODELAY, true)
+                    .handler(new ChannelInitializer<SocketChannel>() {
+                        @Override
+                        protected void initChannel(SocketChannel ch) {
+                            ch.pipeline().addLast(new HttpClientCodec(), new HttpObjectAggregator(64 * 1024), new Client());
+                        }
+                    });
+            List<ChannelFuture> connecting = new ArrayList<>();
+            for (int i = 0; i < connections; i++) {
+                connecting.add(bootstrap.connect("127.0.0.1", 8080));
+                if (connecting.size() == 50 || i == connections - 1) {
+                    // In batches, so as not to overflow the server's accept backlog
+                    for (ChannelFuture future : connecting) {
+                        channels.add(future.sync().channel());
+                    }
+                    connecting.clear();
+                }
+            }
+            for (Channel channel : channels) {
+                send(channel);
+            }
+        }
+
+        Stats measure(long millis) throws InterruptedException {
+            Stats measured = new Stats();
+            stats = measured;
+            Thread.sleep(millis);
+            stats = new Stats();
+            measured.nanos = millis * 1000000;
+            return measured;
+        }
+
+        void stop() throws InterruptedException {
+            stopped = true;
+            for (Channel channel : channels) {
+                channel.close().sync();
+            }
+        }
+
+        private void send(Channel channel) {
+            FullHttpRequest request = new DefaultFullHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.GET, URI);
+            request.headers().set(HttpHeaderNames.HOST, "127.0.0.1");
+            channel.attr(SENT).set(System.nanoTime());
+            channel.writeAndFlush(request);
+        }
+
+        private final class Client extends SimpleChannelInboundHandler<FullHttpResponse> {
+            @Override
+            protected void channelRead0(ChannelHandlerContext ctx, FullHttpResponse response) {
+                stats.record(System.nanoTime() - ctx.channel().attr(SENT).get(),
+                        HttpResponseStatus.OK.equals(response.status()));
+                if (!stopped) {
+                    send(ctx.channel());
+                }
+            }
+
+            @Override
+            public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+                stats.errors.incrementAndGet();
+                ctx.close();
+            }
+        }
+    }
+
+    private static final class Stats {
+        private final AtomicLong count = new AtomicLong();
+        private final AtomicLong errors = new AtomicLong();
+        private final AtomicLong totalNanos = new AtomicLong();
+        private final AtomicLongArray latencies = new AtomicLongArray(LATENCY_BUCKETS);
+        private long nanos;
+
+        void record(long latencyNanos, boolean ok) {
+            if (!ok) {
+                errors.incrementAndGet();
+                return;
+            }
+            count.incrementAndGet();
+            totalNanos.addAndGet(latencyNanos);
+            latencies.incrementAndGet((int) Math.min(LATENCY_BUCKETS - 1, latencyNanos / 1000 / LATENCY_BUCKET_MICROS));
+        }
+
+        double throughput() {
+            return count.get() * 1e9 / nanos;
+        }
+
+        double meanMillis() {
+            return count.get() == 0 ? 0 : totalNanos.get() / 1e6 / count.get();
+        }
+
+        double percentileMillis(double percentile) {
+            long rank = (long) Math.ceil(count.get() * percentile);
+            long seen = 0;
+            for (int i = 0; i < LATENCY_BUCKETS; i++) {
+                seen += latencies.get(i);
+                if (seen >= rank && seen > 0) {
+                    return (i + 1) * LATENCY_BUCKET_MICROS / 1000.0;
+                }
+            }
+            return 0;
+        }
+    }
+}
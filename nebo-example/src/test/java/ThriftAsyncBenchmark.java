@@ -0,0 +1,84 @@
+import io.nebo.App;
+import io.nebo.thrift.HelloWorld;
+import io.nebo.thrift.HelloWorldAsyncImpl;
+import io.nebo.thrift.User;
+import org.apache.thrift.TException;
+import org.apache.thrift.protocol.TBinaryProtocol;
+import org.apache.thrift.protocol.TMultiplexedProtocol;
+import org.apache.thrift.transport.TSocket;
+import org.springframework.boot.SpringApplication;
+import org.springframework.context.ConfigurableApplicationContext;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+/**
+ * Server threads while a rising number of {@code helloWorldAsync} calls are in flight. Every call waits
+ * {@link HelloWorldAsyncImpl#LATENCY_MILLIS} for its simulated downstream service; as the handler holds no thread
+ * meanwhile the thread count stays flat, where a blocking handler would need a worker thread per call in flight.
+ * <p/>
+ * The server runs in-process on port 8080 and the calls are sent from the main thread, so every other thread counted
+ * is the server's. Run with {@code java -cp <test classpath> ThriftAsyncBenchmark [concurrency...]}.
+ */
+public class ThriftAsyncBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int[] levels = {10, 100, 500, 1000};
+        if (args.length > 0) {
+            levels = new int[args.length];
+            for (int i = 0; i < args.length; i++) {
+                levels[i] = Integer.parseInt(args[i]);
+            }
+        }
+        ConfigurableApplicationContext context = SpringApplication.run(App.class);
+        try {
+            ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+            // Warm up, which also starts the event loop threads of the first connections
+            run(levels[0]);
+            for (int concurrency : levels) {
+                threads.resetPeakThreadCount();
+                int before = threads.getThreadCount();
+                long millis = run(concurrency);
+                System.out.printf("concurrency=%5d  elapsed=%5d ms  threads before=%d peak=%d%n",
+                        concurrency, millis, before, threads.getPeakThreadCount());
+            }
+        } finally {
+            context.close();
+        }
+        // The session manager's sweeper thread outlives the context
+        System.exit(0);
+    }
+
+    /**
+     * Send one call on each of {@code concurrency} connections, then read the responses.
+     *
+     * @return milliseconds until every response has been read
+     */
+    private static long run(int concurrency) throws TException {
+        User user = new User();
+        user.setId(1);
+        user.setName("benchmark");
+        user.setIsman(true);
+        TSocket[] sockets = new TSocket[concurrency];
+        HelloWorld.Client[] clients = new HelloWorld.Client[concurrency];
+        for (int i = 0; i < concurrency; i++) {
+            sockets[i] = new TSocket("127.0.0.1", 8080);
+            sockets[i].open();
+            clients[i] = new HelloWorld.Client(new TMultiplexedProtocol(new TBinaryProtocol(sockets[i]), "helloWorldAsync"));
+        }
+        long start = System.nanoTime();
+        try {
+            for (HelloWorld.Client client : clients) {
+                client.send_createNewBaseResInfo(user);
+            }
+            for (HelloWorld.Client client : clients) {
+                client.recv_createNewBaseResInfo();
+            }
+            return (System.nanoTime() - start) / 1000000;
+        } finally {
+            for (TSocket socket : sockets) {
+                socket.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,66 @@
+import io.nebo.thrift.HelloWorld;
+import io.nebo.thrift.User;
+import org.apache.thrift.TByteArrayOutputStream;
+import org.apache.thrift.TException;
+import org.apache.thrift.protocol.TBinaryProtocol;
+import org.apache.thrift.protocol.TCompactProtocol;
+import org.apache.thrift.protocol.TMessage;
+import org.apache.thrift.protocol.TMessageType;
+import org.apache.thrift.protocol.TProtocol;
+import org.apache.thrift.protocol.TProtocolFactory;
+import org.apache.thrift.transport.TIOStreamTransport;
+import org.apache.thrift.transport.TMemoryInputTransport;
+
+/**
+ * Encode/decode throughput of a {@link HelloWorld} call with the binary and compact protocols.
+ * <p/>
+ * Run with {@code java -cp <test classpath> ThriftProtocolBenchmark [iterations]}.
+ */
+public class ThriftProtocolBenchmark {
+
+    public static void main(String[] args) throws TException {
+        int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 2000000;
+        for (int round = 0; round < 2; round++) {
+            // The first round warms up the JIT
+            benchmark("binary", new TBinaryProtocol.Factory(true, true), iterations, round > 0);
+            benchmark("compact", new TCompactProtocol.Factory(), iterations, round > 0);
+        }
+    }
+
+    private static void benchmark(String name, TProtocolFactory factory, int iterations, boolean report) throws TException {
+        User user = new User();
+        user.setId(234242453);
+        user.setName("{\"fabaoId\":\"aaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaa\"}");
+        user.setIsman(true);
+        HelloWorld.createNewBaseResInfo_args call = new HelloWorld.createNewBaseResInfo_args(user);
+
+        TByteArrayOutputStream bytes = new TByteArrayOutputStream(1024);
+        TProtocol out = factory.getProtocol(new TIOStreamTransport(bytes));
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            bytes.reset();
+            out.writeMessageBegin(new TMessage("helloWorld:createNewBaseResInfo", TMessageType.CALL, i));
+            call.write(out);
+            out.writeMessageEnd();
+        }
+        long encodeNanos = System.nanoTime() - start;
+        byte[] encoded = bytes.toByteArray();
+
+        TMemoryInputTransport inTransport = new TMemoryInputTransport();
+        TProtocol in = factory.getProtocol(inTransport);
+        HelloWorld.createNewBaseResInfo_args decoded = new HelloWorld.createNewBaseResInfo_args();
+        start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            inTransport.reset(encoded);
+            in.readMessageBegin();
+            decoded.read(in);
+            in.readMessageEnd();
+        }
+        long decodeNanos = System.nanoTime() - start;
+
+        if (report) {
+            System.out.printf("%-8s %4d bytes/call  encode %,12.0f calls/s  decode %,12.0f calls/s%n", name, encoded.length,
+                    iterations * 1e9 / encodeNanos, iterations * 1e9 / decodeNanos);
+        }
+    }
+}